@@ -1,10 +1,7 @@
 package com.lmax.api;
 
-import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 
 import com.lmax.api.account.AccountStateEvent;
 import com.lmax.api.account.AccountStateEventListener;
@@ -27,16 +24,23 @@ public class AccountEventsClient implements LoginCallback,
     InstructionRejectedEventListener, OrderEventListener,
     PositionEventListener, SessionDisconnectedListener, HeartbeatEventListener,
     StreamFailureListener {
-  private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat(
-      "yy-MM-dd HH:mm:ss.SSS");
-  private final URL longPollKeyRequestUrl;
+  private static final long KEEP_ALIVE_MILLIS = 30 * 1000;
+  private static final int LOG_SIZE = 1 << 12;
+
+  private final String url;
+  private final SessionLivenessService livenessService;
+  private final AsyncEventLogger logger;
 
   @Override
   public void onLoginSuccess(final Session session) {
     System.out.println("My accountId is: "
         + session.getAccountDetails().getAccountId());
 
-    startSessionKeepAliveThread(session);
+    // Ordinarily, we would use a heartbeat, but a heartbeat would send data
+    // to all heartbeat subscribers (interfering with their streams), so only
+    // keep the session alive.
+    SessionLivenessService.Liveness liveness = livenessService.register(
+        session, url, KEEP_ALIVE_MILLIS, 0, null);
 
     session.registerAccountStateEventListener(this);
     session.registerExecutionEventListener(this);
@@ -58,6 +62,8 @@ public class AccountEventsClient implements LoginCallback,
         throw new RuntimeException("Failed");
       }
     });
+
+    liveness.cancel();
   }
 
   @Override
@@ -78,10 +84,18 @@ public class AccountEventsClient implements LoginCallback,
     ProductType productType = ProductType.valueOf(args[3].toUpperCase());
 
     LmaxApi lmaxApi = new LmaxApi(url);
-    AccountEventsClient accountEventsClient = new AccountEventsClient(url);
+    SessionLivenessService livenessService = new SessionLivenessService(1);
+    AsyncEventLogger logger = new AsyncEventLogger(new FileOutputStream(
+        FileDescriptor.out).getChannel(), LOG_SIZE, WaitStrategy.PARK);
+    logger.start();
+    AccountEventsClient accountEventsClient = new AccountEventsClient(url,
+        livenessService, logger);
 
     lmaxApi.login(new LoginRequest(username, password, productType),
         accountEventsClient);
+    livenessService.shutdown();
+    // Standard output stays open.
+    logger.stop();
   }
 
   @Override
@@ -125,49 +139,14 @@ public class AccountEventsClient implements LoginCallback,
   }
 
   private void logEvent(final Object event) {
-    System.out.println(DATE_FORMAT.format(new Date()) + "  " + event);
+    logger.log(event);
   }
 
-  private void startSessionKeepAliveThread(final Session session) {
-    new Thread() {
-      @Override
-      public void run() {
-        // noinspection InfiniteLoopStatement
-        while (true) {
-          // Ordinarily, we would use a heartbeat, but a heartbeat would send
-          // data to all heartbeat subscribers
-          // (interfering with their streams).
-          // The long poll key request won't send anything down the async
-          // channel.
-          // The call will fail because I'm not accepting XML or JSON, but it's
-          // fine: it still refreshes the session.
-          session.openUrl(longPollKeyRequestUrl, new UrlCallback() {
-            @Override
-            public void onSuccess(final URL url, final InputStream inputStream) {
-              // do nothing
-            }
-
-            @Override
-            public void onFailure(final FailureResponse failureResponse) {
-              // do nothing
-            }
-          });
-
-          try {
-            Thread.sleep(30 * 1000);
-          } catch (InterruptedException e) {
-            e.printStackTrace();
-          }
-        }
-      }
-    }.start();
-  }
-
-  public AccountEventsClient(final String urlBase) {
-    try {
-      this.longPollKeyRequestUrl = new URL(urlBase + "/secure/longPollKey");
-    } catch (MalformedURLException e) {
-      throw new IllegalArgumentException(e);
-    }
+  public AccountEventsClient(final String url,
+      final SessionLivenessService livenessService,
+      final AsyncEventLogger logger) {
+    this.url = url;
+    this.livenessService = livenessService;
+    this.logger = logger;
   }
 }
@@ -0,0 +1,245 @@
+package com.lmax.api;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Logs timestamped lines from any thread without doing I/O on it. Each record
+ * is copied into a preallocated ring of reusable builders along with the time
+ * it was logged; a background thread formats the timestamps, encodes the
+ * records into one direct buffer and writes them to the channel in batches,
+ * whenever the buffer fills or it has caught up with the loggers.
+ * <p>
+ * Timestamps are formatted as <code>yy-MM-dd HH:mm:ss.SSS</code>, reusing the
+ * formatted date and time for every record in the same second. Text is
+ * written as ASCII, with any other character replaced by '?'.
+ * <p>
+ * Loggers only wait if the writer falls a full ring behind. If writing fails
+ * the writer stops, and records that would have waited for it are dropped
+ * and counted instead.
+ */
+public class AsyncEventLogger {
+  private static final int RECORD_LENGTH = 256;
+  private static final int BATCH_BYTES = 64 * 1024;
+  private static final byte[] SEPARATOR = { ' ', ' ' };
+  private static final long DROPPED = -1;
+
+  private final int mask;
+  private final StringBuilder[] records;
+  private final long[] timestamps;
+  private final AtomicLongArray published;
+  private final AtomicLong claimed = new AtomicLong(-1);
+  private final AtomicLong waitCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final Sequence written = new Sequence(-1);
+  private final WritableByteChannel channel;
+  private final WaitStrategy waitStrategy;
+  private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+  private final SimpleDateFormat dateFormat = new SimpleDateFormat(
+      "yy-MM-dd HH:mm:ss.");
+  private final byte[] formattedSecond = new byte[18];
+  private long currentSecond = -1;
+  private volatile boolean running = false;
+  private volatile boolean failed = false;
+  private Thread writerThread;
+
+  /**
+   * @param size
+   *          number of records the ring holds, must be a power of 2.
+   */
+  public AsyncEventLogger(WritableByteChannel channel, int size,
+      WaitStrategy waitStrategy) {
+    if (Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("Size must be a power of 2: " + size);
+    }
+
+    this.mask = size - 1;
+    this.records = new StringBuilder[size];
+    this.timestamps = new long[size];
+    this.published = new AtomicLongArray(size);
+    this.channel = channel;
+    this.waitStrategy = waitStrategy;
+
+    for (int i = 0; i < size; i++) {
+      records[i] = new StringBuilder(RECORD_LENGTH);
+      published.set(i, -1);
+    }
+  }
+
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+
+    running = true;
+    writerThread = new Thread(new Writer(), "async-event-logger");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Writes everything logged so far, then closes the channel.
+   */
+  public synchronized void close() throws IOException {
+    stop();
+    channel.close();
+  }
+
+  /**
+   * Writes everything logged so far, leaving the channel open, as it should
+   * be for standard output.
+   */
+  public synchronized void stop() {
+    running = false;
+    if (writerThread != null) {
+      try {
+        writerThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      writerThread = null;
+    }
+  }
+
+  /**
+   * The number of times a logger has had to wait for the writer to free up a
+   * slot.
+   */
+  public long getWaitCount() {
+    return waitCount.get();
+  }
+
+  /**
+   * The number of records dropped because the writer had failed.
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  public void log(Object event) {
+    long sequence = claim();
+    if (sequence == DROPPED) {
+      return;
+    }
+    StringBuilder record = records[(int) sequence & mask];
+    record.setLength(0);
+    record.append(event);
+    publish(sequence);
+  }
+
+  public void log(CharSequence text) {
+    long sequence = claim();
+    if (sequence == DROPPED) {
+      return;
+    }
+    StringBuilder record = records[(int) sequence & mask];
+    record.setLength(0);
+    record.append(text);
+    publish(sequence);
+  }
+
+  private long claim() {
+    long sequence = claimed.incrementAndGet();
+    long wrapPoint = sequence - records.length;
+
+    int attempt = 0;
+    while (wrapPoint > written.get()) {
+      // The writer will never free the slot.
+      if (failed) {
+        droppedCount.incrementAndGet();
+        return DROPPED;
+      }
+      if (attempt == 0) {
+        waitCount.incrementAndGet();
+      }
+      waitStrategy.idle(attempt++);
+    }
+
+    timestamps[(int) sequence & mask] = System.currentTimeMillis();
+    return sequence;
+  }
+
+  private void publish(long sequence) {
+    published.lazySet((int) sequence & mask, sequence);
+  }
+
+  private final class Writer implements Runnable {
+    @Override
+    public void run() {
+      long next = 0;
+      int attempt = 0;
+
+      try {
+        while (true) {
+          int index = (int) next & mask;
+          if (published.get(index) != next) {
+            flush();
+            if (!running && claimed.get() < next) {
+              return;
+            }
+            waitStrategy.idle(attempt++);
+            continue;
+          }
+
+          encode(timestamps[index], records[index]);
+          written.lazySet(next++);
+          attempt = 0;
+        }
+      } catch (IOException e) {
+        failed = true;
+        e.printStackTrace();
+      }
+    }
+
+    private void encode(long timestamp, StringBuilder record)
+        throws IOException {
+      if (batch.remaining() < formattedSecond.length + 3 + SEPARATOR.length
+          + record.length() + 1) {
+        flush();
+      }
+
+      long second = timestamp / 1000;
+      if (second != currentSecond) {
+        String formatted = dateFormat.format(new Date(timestamp));
+        for (int i = 0; i < formattedSecond.length; i++) {
+          formattedSecond[i] = (byte) formatted.charAt(i);
+        }
+        currentSecond = second;
+      }
+
+      int millis = (int) (timestamp % 1000);
+      batch.put(formattedSecond);
+      batch.put((byte) ('0' + millis / 100));
+      batch.put((byte) ('0' + millis / 10 % 10));
+      batch.put((byte) ('0' + millis % 10));
+      batch.put(SEPARATOR);
+
+      for (int i = 0, length = record.length(); i < length; i++) {
+        if (!batch.hasRemaining()) {
+          flush();
+        }
+
+        char c = record.charAt(i);
+        batch.put(c < 0x80 ? (byte) c : (byte) '?');
+      }
+
+      if (!batch.hasRemaining()) {
+        flush();
+      }
+      batch.put((byte) '\n');
+    }
+
+    private void flush() throws IOException {
+      batch.flip();
+      while (batch.hasRemaining()) {
+        channel.write(batch);
+      }
+      batch.clear();
+    }
+  }
+}
@@ -0,0 +1,262 @@
+package com.lmax.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lmax.api.order.CancelOrderRequest;
+import com.lmax.api.order.LimitOrderSpecification;
+import com.lmax.api.order.MarketOrderSpecification;
+import com.lmax.api.order.OrderCallback;
+
+/**
+ * Sends orders and cancels from a small pool of sender threads, so that the
+ * caller, usually the session's event loop, never waits on the HTTP round trip
+ * that {@link Session#placeMarketOrder} and friends make on the calling
+ * thread. Requests wait on a bounded queue and at most a configured number
+ * are in flight at once, from being sent until their callback has run on the
+ * chosen executor.
+ * <p>
+ * Each sender reuses its HTTP connection between requests, but
+ * HttpURLConnection only keeps <code>http.maxConnections</code> (5 by
+ * default) idle connections per host. Set it to at least the number of
+ * senders.
+ */
+public class AsyncOrderGateway {
+  private static final int MARKET_ORDER = 0;
+  private static final int LIMIT_ORDER = 1;
+  private static final int CANCEL_ORDER = 2;
+
+  private final Session session;
+  private final BlockingQueue<Submission> queue;
+  private final Semaphore window;
+  private final int maxInFlight;
+  private final Executor callbackExecutor;
+  private final List<Thread> senders = new ArrayList<Thread>();
+  private final int senderCount;
+  private final AtomicLong refusedCount = new AtomicLong();
+  private volatile boolean running = false;
+
+  /**
+   * @param queueCapacity
+   *          requests that can wait to be sent before further ones are
+   *          refused.
+   * @param senderCount
+   *          number of sender threads.
+   * @param maxInFlight
+   *          requests that can be sent but not yet have had their callback
+   *          run.
+   * @param callbackExecutor
+   *          runs the callbacks, one task per request.
+   */
+  public AsyncOrderGateway(Session session, int queueCapacity,
+      int senderCount, int maxInFlight, Executor callbackExecutor) {
+    this.session = session;
+    this.queue = new ArrayBlockingQueue<Submission>(queueCapacity);
+    this.senderCount = senderCount;
+    this.maxInFlight = maxInFlight;
+    this.window = new Semaphore(maxInFlight);
+    this.callbackExecutor = callbackExecutor;
+  }
+
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+
+    running = true;
+    for (int i = 0; i < senderCount; i++) {
+      Thread thread = new Thread(new Sender(), "order-sender-" + i);
+      thread.setDaemon(true);
+      thread.start();
+      senders.add(thread);
+    }
+  }
+
+  /**
+   * Stops the senders. Requests still waiting to be sent are failed.
+   */
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+
+    running = false;
+    for (Thread sender : senders) {
+      sender.interrupt();
+    }
+    senders.clear();
+
+    Submission submission;
+    while ((submission = queue.poll()) != null) {
+      submission.fail("Order gateway stopped");
+    }
+  }
+
+  /**
+   * @return false if the request was refused because the queue is full or
+   *         the gateway is not running, in which case the callback is not
+   *         called.
+   */
+  public boolean placeMarketOrder(MarketOrderSpecification specification,
+      OrderCallback callback) {
+    return submit(new Submission(MARKET_ORDER, specification, callback));
+  }
+
+  /**
+   * @see #placeMarketOrder(MarketOrderSpecification, OrderCallback)
+   */
+  public boolean placeLimitOrder(LimitOrderSpecification specification,
+      OrderCallback callback) {
+    return submit(new Submission(LIMIT_ORDER, specification, callback));
+  }
+
+  /**
+   * @see #placeMarketOrder(MarketOrderSpecification, OrderCallback)
+   */
+  public boolean cancelOrder(CancelOrderRequest request,
+      OrderCallback callback) {
+    return submit(new Submission(CANCEL_ORDER, request, callback));
+  }
+
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public int getInFlight() {
+    return maxInFlight - window.availablePermits();
+  }
+
+  public long getRefusedCount() {
+    return refusedCount.get();
+  }
+
+  private boolean submit(Submission submission) {
+    if (!running || !queue.offer(submission)) {
+      refusedCount.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  private final class Sender implements Runnable {
+    @Override
+    public void run() {
+      while (running) {
+        Submission submission;
+        try {
+          submission = queue.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+
+        try {
+          window.acquire();
+        } catch (InterruptedException e) {
+          submission.fail("Order gateway stopped");
+          return;
+        }
+
+        submission.send();
+      }
+    }
+  }
+
+  /**
+   * A queued request, which is also the callback the session completes and
+   * the task that then delivers the result on the callback executor.
+   */
+  private final class Submission implements OrderCallback, Runnable {
+    private final int type;
+    private final Object request;
+    private final OrderCallback callback;
+    private boolean holdsPermit = false;
+    private boolean completed = false;
+    private long instructionId;
+    private FailureResponse failureResponse;
+
+    public Submission(int type, Object request, OrderCallback callback) {
+      this.type = type;
+      this.request = request;
+      this.callback = callback;
+    }
+
+    public void send() {
+      holdsPermit = true;
+      try {
+        switch (type) {
+          case MARKET_ORDER:
+            session.placeMarketOrder((MarketOrderSpecification) request, this);
+            break;
+
+          case LIMIT_ORDER:
+            session.placeLimitOrder((LimitOrderSpecification) request, this);
+            break;
+
+          case CANCEL_ORDER:
+            session.cancelOrder((CancelOrderRequest) request, this);
+            break;
+
+          default:
+            throw new IllegalStateException("Unknown request type: " + type);
+        }
+      } catch (RuntimeException e) {
+        onFailure(new FailureResponse(e));
+      }
+    }
+
+    public void fail(String message) {
+      onFailure(new FailureResponse(false, message));
+    }
+
+    @Override
+    public void onSuccess(long instructionId) {
+      this.instructionId = instructionId;
+      complete();
+    }
+
+    @Override
+    public void onFailure(FailureResponse failureResponse) {
+      this.failureResponse = failureResponse;
+      complete();
+    }
+
+    private void complete() {
+      if (completed) {
+        return;
+      }
+
+      completed = true;
+      try {
+        callbackExecutor.execute(this);
+      } catch (RuntimeException e) {
+        releasePermit();
+        e.printStackTrace();
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (failureResponse == null) {
+          callback.onSuccess(instructionId);
+        } else {
+          callback.onFailure(failureResponse);
+        }
+      } finally {
+        releasePermit();
+      }
+    }
+
+    private void releasePermit() {
+      if (holdsPermit) {
+        holdsPermit = false;
+        window.release();
+      }
+    }
+  }
+}
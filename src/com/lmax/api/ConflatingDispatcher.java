@@ -0,0 +1,188 @@
+package com.lmax.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.lmax.api.orderbook.OrderBookEvent;
+import com.lmax.api.orderbook.OrderBookEventListener;
+
+/**
+ * Hands order book events to consumers that only need the latest price of
+ * each instrument. Register the dispatcher with the {@link Session} in place
+ * of the real listeners; each consumer thread then delivers to its own
+ * listener at its own pace.
+ * <p>
+ * Every consumer has a slot per instrument holding the latest event it has
+ * not yet delivered, and a queue of the instruments whose slots are full. A
+ * new event replaces whatever is in the slot, counting the replaced event as
+ * conflated, and only queues the instrument if the slot was empty. An
+ * instrument is therefore queued at most once per consumer however fast it
+ * ticks, so a busy instrument never holds up updates to the others, and the
+ * event loop never waits for a slow consumer.
+ * <p>
+ * Slots are allocated as instruments are first seen, up to the capacity;
+ * events for further instruments are dropped and counted.
+ */
+public class ConflatingDispatcher implements OrderBookEventListener {
+  private final LongIntHashMap slotByInstrumentId;
+  private final int capacity;
+  private final WaitStrategy waitStrategy;
+  private final List<Consumer> consumerList = new ArrayList<Consumer>();
+  private volatile Consumer[] consumers = new Consumer[0];
+  private volatile boolean running = false;
+  private int size = 0;
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  public ConflatingDispatcher(int capacity, WaitStrategy waitStrategy) {
+    this.slotByInstrumentId = new LongIntHashMap(capacity);
+    this.capacity = capacity;
+    this.waitStrategy = waitStrategy;
+  }
+
+  public synchronized void addConsumer(String name,
+      OrderBookEventListener listener) {
+    if (running) {
+      throw new IllegalStateException("Dispatcher already started");
+    }
+
+    consumerList.add(new Consumer(name, listener, capacity));
+    consumers = consumerList.toArray(new Consumer[consumerList.size()]);
+  }
+
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+
+    running = true;
+    for (Consumer consumer : consumers) {
+      Thread thread = new Thread(consumer, consumer.name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Stops the consumer threads once they have delivered the latest event of
+   * every instrument published so far.
+   */
+  public void halt() {
+    running = false;
+  }
+
+  /**
+   * The number of events a consumer has skipped because a later event for the
+   * same instrument arrived before it was delivered.
+   */
+  public long getConflatedCount(int consumer) {
+    return consumers[consumer].conflatedCount.get();
+  }
+
+  public long getDeliveredCount(int consumer) {
+    return consumers[consumer].deliveredCount.get();
+  }
+
+  /**
+   * The number of events dropped because every slot was already taken by
+   * another instrument.
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  @Override
+  public void notify(OrderBookEvent orderBookEvent) {
+    int slot = slotOf(orderBookEvent.getInstrumentId());
+    if (slot == LongIntHashMap.MISSING_VALUE) {
+      droppedCount.lazySet(droppedCount.get() + 1);
+      return;
+    }
+
+    for (Consumer consumer : consumers) {
+      consumer.publish(slot, orderBookEvent);
+    }
+  }
+
+  private int slotOf(long instrumentId) {
+    int slot = slotByInstrumentId.get(instrumentId);
+    if (slot == LongIntHashMap.MISSING_VALUE && size < capacity) {
+      slot = size++;
+      slotByInstrumentId.put(instrumentId, slot);
+    }
+    return slot;
+  }
+
+  private final class Consumer implements Runnable {
+    private final String name;
+    private final OrderBookEventListener listener;
+    private final AtomicReferenceArray<OrderBookEvent> latestEvents;
+    private final int[] queue;
+    private final int mask;
+    private final Sequence cursor = new Sequence(-1);
+    private final AtomicLong conflatedCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+
+    public Consumer(String name, OrderBookEventListener listener,
+        int capacity) {
+      // Every queued slot holds an undelivered event, so there are never
+      // more than capacity entries waiting.
+      int queueSize = Integer.highestOneBit(Math.max(capacity, 1)) << 1;
+
+      this.name = name;
+      this.listener = listener;
+      this.latestEvents = new AtomicReferenceArray<OrderBookEvent>(capacity);
+      this.queue = new int[queueSize];
+      this.mask = queueSize - 1;
+    }
+
+    /**
+     * Called only from the event loop.
+     */
+    public void publish(int slot, OrderBookEvent orderBookEvent) {
+      if (latestEvents.getAndSet(slot, orderBookEvent) != null) {
+        conflatedCount.lazySet(conflatedCount.get() + 1);
+        return;
+      }
+
+      long next = cursor.get() + 1;
+      queue[(int) next & mask] = slot;
+      cursor.lazySet(next);
+    }
+
+    @Override
+    public void run() {
+      long next = 0;
+      int attempt = 0;
+
+      while (true) {
+        long available = cursor.get();
+
+        if (available < next) {
+          if (!running && cursor.get() < next) {
+            return;
+          }
+          waitStrategy.idle(attempt++);
+          continue;
+        }
+
+        for (; next <= available; next++) {
+          // Emptying the slot means a newer event queues it again rather
+          // than being conflated into this delivery after it has been made.
+          int slot = queue[(int) next & mask];
+          OrderBookEvent orderBookEvent = latestEvents.getAndSet(slot, null);
+
+          try {
+            listener.notify(orderBookEvent);
+          } catch (RuntimeException e) {
+            e.printStackTrace();
+          }
+          deliveredCount.lazySet(deliveredCount.get() + 1);
+        }
+
+        attempt = 0;
+      }
+    }
+  }
+}
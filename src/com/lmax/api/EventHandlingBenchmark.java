@@ -0,0 +1,484 @@
+package com.lmax.api;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xml.sax.SAXException;
+
+import com.lmax.api.account.LoginRequest.ProductType;
+import com.lmax.api.internal.protocol.Handler;
+import com.lmax.api.internal.protocol.OrderBookEventHandler;
+import com.lmax.api.order.Order;
+import com.lmax.api.order.OrderEventListener;
+import com.lmax.api.order.OrderType;
+import com.lmax.api.orderbook.OrderBookEvent;
+import com.lmax.api.orderbook.OrderBookEventListener;
+import com.lmax.api.orderbook.PricePoint;
+import com.lmax.api.profile.Timer;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Micro benchmarks for the event handling hot paths of the sample clients.
+ * Each benchmark is warmed up and then measured over several iterations,
+ * reporting throughput, bytes allocated per operation and the garbage
+ * collections that ran while it was measured.
+ * <p>
+ * Run with a fixed heap and the JIT settings of the trading box, e.g.
+ * <code>java -Xms1g -Xmx1g com.lmax.api.EventHandlingBenchmark</code>
+ */
+public class EventHandlingBenchmark {
+  private static final long INSTRUMENT_ID = 4001;
+  private static final int WARMUP_ITERATIONS = 5;
+  private static final int MEASUREMENT_ITERATIONS = 5;
+  private static final int DEFAULT_OPERATIONS = 1000000;
+
+  private static final char[][] OB2_MESSAGES = {
+      ("4001|13a1f7c9b00|1@1.3245;2@1.3244;3@1.3243;4@1.3242;5@1.3241|"
+          + "1@1.3246;2@1.3247;3@1.3248;4@1.3249;5@1.325||1.3246|1.3245|"
+          + "1.3245|1.3246|1.32455").toCharArray(),
+      ("4001|13a1f7c9b01|1@1.3244;2@1.3243;3@1.3242;4@1.3241;5@1.324|"
+          + "1@1.3245;2@1.3246;3@1.3247;4@1.3248;5@1.3249||1.3246|1.3244|"
+          + "1.3244|1.3245|1.32445").toCharArray() };
+
+  private static volatile long sink;
+
+  private final ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory
+      .getThreadMXBean();
+  private final int operations;
+
+  public EventHandlingBenchmark(int operations) {
+    this.operations = operations;
+  }
+
+  public void runAll() {
+    System.out.printf("%-40s %15s %12s %10s %10s%n", "Benchmark", "ops/s",
+        "B/op", "gc.count", "gc.ms");
+
+    run(marketDataClientNotify());
+    run(tradeInsideTheSpreadBotHandlePrices());
+    run(rawOrderEventListener());
+    run(timedOrderEventListener());
+    run(recordedOrderEventListener());
+    run(fixedPointNumberArithmetic());
+    run(fixedPointNumberParse());
+    run(orderBookEventDecode());
+    run(flyweightOrderBookEventDecode());
+  }
+
+  private void run(Benchmark benchmark) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      sink += benchmark.run(operations);
+    }
+
+    long threadId = Thread.currentThread().getId();
+    long gcCount = getCollectionCount();
+    long gcTime = getCollectionTime();
+    long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+    long start = System.nanoTime();
+
+    for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+      sink += benchmark.run(operations);
+    }
+
+    long elapsed = System.nanoTime() - start;
+    allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+    long totalOperations = (long) operations * MEASUREMENT_ITERATIONS;
+
+    System.out.printf("%-40s %,15.0f %12.2f %10d %10d%n", benchmark.name,
+        totalOperations * 1e9 / elapsed, (double) allocated / totalOperations,
+        getCollectionCount() - gcCount, getCollectionTime() - gcTime);
+  }
+
+  private static long getCollectionCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean bean : ManagementFactory
+        .getGarbageCollectorMXBeans()) {
+      count += Math.max(0, bean.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long getCollectionTime() {
+    long time = 0;
+    for (GarbageCollectorMXBean bean : ManagementFactory
+        .getGarbageCollectorMXBeans()) {
+      time += Math.max(0, bean.getCollectionTime());
+    }
+    return time;
+  }
+
+  private Benchmark marketDataClientNotify() {
+    final MarketDataClient client = new MarketDataClient(
+        ProductType.CFD_DEMO);
+    client.getTopOfBookStore().register(INSTRUMENT_ID);
+    final OrderBookEvent[] events = createOrderBookEvents();
+
+    return new Benchmark("MarketDataClient.notify") {
+      @Override
+      long run(int operations) {
+        for (int i = 0; i < operations; i++) {
+          client.notify(events[i & 1]);
+        }
+        return client.getTopOfBookStore().getVersion(0);
+      }
+    };
+  }
+
+  private Benchmark tradeInsideTheSpreadBotHandlePrices() {
+    final TradeInsideTheSpreadBot bot = new TradeInsideTheSpreadBot(
+        INSTRUMENT_ID, FixedPointNumber.valueOf("0.00001"));
+    bot.onLoginSuccess(new NoOpSession());
+    final OrderBookEvent[] events = createOrderBookEvents();
+
+    return new Benchmark("TradeInsideTheSpreadBot.handlePrices") {
+      @Override
+      long run(int operations) {
+        for (int i = 0; i < operations; i++) {
+          bot.handlePrices(events[i & 1]);
+        }
+        return operations;
+      }
+    };
+  }
+
+  private Benchmark rawOrderEventListener() {
+    final CountingOrderEventListener listener = new CountingOrderEventListener();
+    final Order[] orders = { new StubOrder(1), new StubOrder(2) };
+
+    return new Benchmark("OrderEventListener.notify") {
+      @Override
+      long run(int operations) {
+        for (int i = 0; i < operations; i++) {
+          listener.notify(orders[i & 1]);
+        }
+        return listener.sum;
+      }
+    };
+  }
+
+  private Benchmark timedOrderEventListener() {
+    final CountingOrderEventListener listener = new CountingOrderEventListener();
+    final OrderEventListener timed = Timer.forOrderEvents(listener);
+    final Order[] orders = { new StubOrder(1), new StubOrder(2) };
+
+    return new Benchmark("Timer.forOrderEvents.notify") {
+      @Override
+      long run(int operations) {
+        for (int i = 0; i < operations; i++) {
+          timed.notify(orders[i & 1]);
+        }
+        return listener.sum;
+      }
+    };
+  }
+
+  private Benchmark recordedOrderEventListener() {
+    final CountingOrderEventListener listener = new CountingOrderEventListener();
+    final OrderEventListener timed = new ListenerTimer()
+        .forOrderEvents(listener);
+    final Order[] orders = { new StubOrder(1), new StubOrder(2) };
+
+    return new Benchmark("ListenerTimer.forOrderEvents.notify") {
+      @Override
+      long run(int operations) {
+        for (int i = 0; i < operations; i++) {
+          timed.notify(orders[i & 1]);
+        }
+        return listener.sum;
+      }
+    };
+  }
+
+  private Benchmark fixedPointNumberArithmetic() {
+    final FixedPointNumber price = FixedPointNumber.valueOf("1.32451");
+    final FixedPointNumber tickSize = FixedPointNumber.valueOf("0.00001");
+
+    return new Benchmark("FixedPointNumber add/negate/equals") {
+      @Override
+      long run(int operations) {
+        long result = 0;
+        for (int i = 0; i < operations; i++) {
+          FixedPointNumber inside = FixedPointNumber.valueOf(price.longValue()
+              + (i & 7) * tickSize.longValue());
+          FixedPointNumber side = inside.negate();
+          if (!side.equals(FixedPointNumber.ZERO)) {
+            result += side.longValue();
+          }
+        }
+        return result;
+      }
+    };
+  }
+
+  private Benchmark fixedPointNumberParse() {
+    final char[] price = "1.32451".toCharArray();
+
+    return new Benchmark("FixedPointNumber.valueOf(char[])") {
+      @Override
+      long run(int operations) {
+        long result = 0;
+        for (int i = 0; i < operations; i++) {
+          result += FixedPointNumber.valueOf(price, 0, price.length)
+              .longValue();
+        }
+        return result;
+      }
+    };
+  }
+
+  private Benchmark orderBookEventDecode() {
+    final CountingOrderBookEventListener listener = new CountingOrderBookEventListener();
+    final OrderBookEventHandler handler = new OrderBookEventHandler();
+    handler.setListener(listener);
+
+    return new Benchmark("OrderBookEventHandler ob2 decode") {
+      @Override
+      long run(int operations) {
+        decode(handler, operations);
+        return listener.sum;
+      }
+    };
+  }
+
+  private Benchmark flyweightOrderBookEventDecode() {
+    final CountingOrderBookEventListener listener = new CountingOrderBookEventListener();
+    final Handler handler = new FlyweightOrderBookEventHandler(listener);
+
+    return new Benchmark("FlyweightOrderBookEventHandler decode") {
+      @Override
+      long run(int operations) {
+        decode(handler, operations);
+        return listener.sum;
+      }
+    };
+  }
+
+  private static void decode(Handler handler, int operations) {
+    try {
+      for (int i = 0; i < operations; i++) {
+        char[] message = OB2_MESSAGES[i & 1];
+        handler.reset("ob2");
+        handler.characters(message, 0, message.length);
+        handler.endElement("ob2");
+      }
+    } catch (SAXException e) {
+      throw new RuntimeException("Unable to decode order book event", e);
+    }
+  }
+
+  private static OrderBookEvent[] createOrderBookEvents() {
+    return new OrderBookEvent[] {
+        new StubOrderBookEvent(INSTRUMENT_ID, "1.32450", "1.32455"),
+        new StubOrderBookEvent(INSTRUMENT_ID, "1.32451", "1.32456") };
+  }
+
+  public static void main(String[] args) {
+    int operations = args.length > 0 ? Integer.parseInt(args[0])
+        : DEFAULT_OPERATIONS;
+
+    new EventHandlingBenchmark(operations).runAll();
+  }
+
+  private abstract static class Benchmark {
+    private final String name;
+
+    public Benchmark(String name) {
+      this.name = name;
+    }
+
+    /**
+     * @return a value derived from the work done, to stop the JIT eliminating
+     *         it.
+     */
+    abstract long run(int operations);
+  }
+
+  private static class CountingOrderBookEventListener implements
+      OrderBookEventListener, OrderBookViewListener {
+    private long sum;
+
+    @Override
+    public void notify(OrderBookEvent orderBookEvent) {
+      sum += orderBookEvent.getBidPrices().get(0).getPrice().longValue();
+    }
+
+    @Override
+    public void notify(OrderBookView orderBookView) {
+      sum += orderBookView.getBestBidPrice();
+    }
+  }
+
+  private static class CountingOrderEventListener implements
+      OrderEventListener {
+    private long sum = 0;
+
+    @Override
+    public void notify(Order order) {
+      sum += order.getInstructionId();
+    }
+  }
+
+  private static class StubPricePoint implements PricePoint {
+    private final FixedPointNumber price;
+    private final FixedPointNumber quantity;
+
+    public StubPricePoint(FixedPointNumber price, FixedPointNumber quantity) {
+      this.price = price;
+      this.quantity = quantity;
+    }
+
+    @Override
+    public FixedPointNumber getPrice() {
+      return price;
+    }
+
+    @Override
+    public FixedPointNumber getQuantity() {
+      return quantity;
+    }
+  }
+
+  private static class StubOrderBookEvent implements OrderBookEvent {
+    private final long instrumentId;
+    private final List<PricePoint> bidPrices = new ArrayList<PricePoint>();
+    private final List<PricePoint> askPrices = new ArrayList<PricePoint>();
+
+    public StubOrderBookEvent(long instrumentId, String bid, String ask) {
+      this.instrumentId = instrumentId;
+      bidPrices.add(new StubPricePoint(FixedPointNumber.valueOf(bid),
+          FixedPointNumber.TEN));
+      askPrices.add(new StubPricePoint(FixedPointNumber.valueOf(ask),
+          FixedPointNumber.TEN));
+    }
+
+    @Override
+    public long getInstrumentId() {
+      return instrumentId;
+    }
+
+    @Override
+    public FixedPointNumber getValuationBidPrice() {
+      return bidPrices.get(0).getPrice();
+    }
+
+    @Override
+    public FixedPointNumber getValuationAskPrice() {
+      return askPrices.get(0).getPrice();
+    }
+
+    @Override
+    public List<PricePoint> getBidPrices() {
+      return bidPrices;
+    }
+
+    @Override
+    public List<PricePoint> getAskPrices() {
+      return askPrices;
+    }
+
+    @Override
+    public FixedPointNumber getMarketClosePrice() {
+      return null;
+    }
+
+    @Override
+    public long getMarketClosePriceTimeStamp() {
+      return NO_TIMESTAMP;
+    }
+
+    @Override
+    public FixedPointNumber getLastTradedPrice() {
+      return null;
+    }
+
+    @Override
+    public FixedPointNumber getDailyHighestTradedPrice() {
+      return null;
+    }
+
+    @Override
+    public FixedPointNumber getDailyLowestTradedPrice() {
+      return null;
+    }
+
+    @Override
+    public long getTimeStamp() {
+      return NO_TIMESTAMP;
+    }
+  }
+
+  private static class StubOrder implements Order {
+    private final long instructionId;
+
+    public StubOrder(long instructionId) {
+      this.instructionId = instructionId;
+    }
+
+    @Override
+    public long getInstructionId() {
+      return instructionId;
+    }
+
+    @Override
+    public long getOriginalInstructionId() {
+      return instructionId;
+    }
+
+    @Override
+    public String getOrderId() {
+      return "1";
+    }
+
+    @Override
+    public long getInstrumentId() {
+      return INSTRUMENT_ID;
+    }
+
+    @Override
+    public long getAccountId() {
+      return 1;
+    }
+
+    @Override
+    public OrderType getOrderType() {
+      return OrderType.LIMIT;
+    }
+
+    @Override
+    public FixedPointNumber getQuantity() {
+      return FixedPointNumber.ONE;
+    }
+
+    @Override
+    public FixedPointNumber getFilledQuantity() {
+      return FixedPointNumber.ZERO;
+    }
+
+    @Override
+    public FixedPointNumber getLimitPrice() {
+      return FixedPointNumber.ONE;
+    }
+
+    @Override
+    public FixedPointNumber getStopReferencePrice() {
+      return null;
+    }
+
+    @Override
+    public FixedPointNumber getStopLossOffset() {
+      return null;
+    }
+
+    @Override
+    public FixedPointNumber getStopProfitOffset() {
+      return null;
+    }
+
+    @Override
+    public FixedPointNumber getCancelledQuantity() {
+      return FixedPointNumber.ZERO;
+    }
+  }
+}
@@ -0,0 +1,295 @@
+package com.lmax.api;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import com.lmax.api.order.Execution;
+import com.lmax.api.order.ExecutionEventListener;
+import com.lmax.api.order.Order;
+import com.lmax.api.order.OrderEventListener;
+import com.lmax.api.orderbook.OrderBookEvent;
+import com.lmax.api.orderbook.OrderBookEventListener;
+import com.lmax.api.orderbook.PricePoint;
+import com.lmax.api.reject.InstructionRejectedEvent;
+import com.lmax.api.reject.InstructionRejectedEventListener;
+
+/**
+ * Records decoded events, each stamped with the {@link System#nanoTime()} at
+ * which it was received, into a binary journal of memory-mapped, append-only
+ * segment files. A new segment is started whenever the current one is full.
+ * The journal can be played back with {@link JournalReplayer}.
+ * <p>
+ * Use the journal as a listener in its own right, or wrap the real listeners
+ * with the <code>record...Events</code> methods to journal each event before it is
+ * delivered. It must only be written from the session's event loop.
+ */
+public class EventJournal implements OrderBookEventListener,
+    OrderEventListener, ExecutionEventListener,
+    InstructionRejectedEventListener, Closeable {
+  static final String SEGMENT_PREFIX = "journal-";
+  static final String SEGMENT_SUFFIX = ".dat";
+  static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+  static final long NULL_VALUE = Long.MIN_VALUE;
+
+  static final byte ORDER_BOOK = 1;
+  static final byte ORDER = 2;
+  static final byte EXECUTION = 3;
+  static final byte INSTRUCTION_REJECTED = 4;
+
+  // length, type and receive timestamp
+  static final int HEADER_LENGTH = 4 + 1 + 8;
+  private static final int ORDER_LENGTH = 11 * 8 + 1 + 2;
+  private static final int ORDER_BOOK_LENGTH = 9 * 8 + 2 * 4;
+  private static final int EXECUTION_LENGTH = 4 * 8;
+  private static final int INSTRUCTION_REJECTED_LENGTH = 3 * 8 + 2;
+
+  private final File directory;
+  private final int segmentSize;
+  private int segmentIndex;
+  private MappedByteBuffer segment;
+
+  public EventJournal(File directory, int segmentSize) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory: " + directory);
+    }
+
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.segmentIndex = findLastSegmentIndex(directory);
+
+    nextSegment();
+  }
+
+  public OrderBookEventListener recordOrderBookEvents(
+      final OrderBookEventListener listener) {
+    return new OrderBookEventListener() {
+      @Override
+      public void notify(OrderBookEvent orderBookEvent) {
+        EventJournal.this.notify(orderBookEvent);
+        listener.notify(orderBookEvent);
+      }
+    };
+  }
+
+  public OrderEventListener recordOrderEvents(
+      final OrderEventListener listener) {
+    return new OrderEventListener() {
+      @Override
+      public void notify(Order order) {
+        EventJournal.this.notify(order);
+        listener.notify(order);
+      }
+    };
+  }
+
+  public ExecutionEventListener recordExecutionEvents(
+      final ExecutionEventListener listener) {
+    return new ExecutionEventListener() {
+      @Override
+      public void notify(Execution execution) {
+        EventJournal.this.notify(execution);
+        listener.notify(execution);
+      }
+    };
+  }
+
+  public InstructionRejectedEventListener recordInstructionRejectedEvents(
+      final InstructionRejectedEventListener listener) {
+    return new InstructionRejectedEventListener() {
+      @Override
+      public void notify(InstructionRejectedEvent instructionRejected) {
+        EventJournal.this.notify(instructionRejected);
+        listener.notify(instructionRejected);
+      }
+    };
+  }
+
+  @Override
+  public void notify(OrderBookEvent orderBookEvent) {
+    long timestamp = System.nanoTime();
+    List<PricePoint> bidPrices = orderBookEvent.getBidPrices();
+    List<PricePoint> askPrices = orderBookEvent.getAskPrices();
+    int length = ORDER_BOOK_LENGTH + 16
+        * (bidPrices.size() + askPrices.size());
+
+    int start = begin(ORDER_BOOK, length, timestamp);
+    segment.putLong(orderBookEvent.getInstrumentId());
+    segment.putLong(orderBookEvent.getTimeStamp());
+    putFixedPointNumber(orderBookEvent.getValuationBidPrice());
+    putFixedPointNumber(orderBookEvent.getValuationAskPrice());
+    putFixedPointNumber(orderBookEvent.getMarketClosePrice());
+    segment.putLong(orderBookEvent.getMarketClosePriceTimeStamp());
+    putFixedPointNumber(orderBookEvent.getLastTradedPrice());
+    putFixedPointNumber(orderBookEvent.getDailyHighestTradedPrice());
+    putFixedPointNumber(orderBookEvent.getDailyLowestTradedPrice());
+    putPricePoints(bidPrices);
+    putPricePoints(askPrices);
+    end(start);
+  }
+
+  @Override
+  public void notify(Order order) {
+    long timestamp = System.nanoTime();
+    int length = ORDER_LENGTH + 2 * order.getOrderId().length();
+
+    int start = begin(ORDER, length, timestamp);
+    putOrder(order);
+    end(start);
+  }
+
+  @Override
+  public void notify(Execution execution) {
+    long timestamp = System.nanoTime();
+    Order order = execution.getOrder();
+    int length = EXECUTION_LENGTH + ORDER_LENGTH + 2
+        * order.getOrderId().length();
+
+    int start = begin(EXECUTION, length, timestamp);
+    segment.putLong(execution.getExecutionId());
+    putFixedPointNumber(execution.getPrice());
+    putFixedPointNumber(execution.getQuantity());
+    putFixedPointNumber(execution.getCancelledQuantity());
+    putOrder(order);
+    end(start);
+  }
+
+  @Override
+  public void notify(InstructionRejectedEvent instructionRejected) {
+    long timestamp = System.nanoTime();
+    String reason = instructionRejected.getReason();
+    int length = INSTRUCTION_REJECTED_LENGTH + 2 * reason.length();
+
+    int start = begin(INSTRUCTION_REJECTED, length, timestamp);
+    segment.putLong(instructionRejected.getInstructionId());
+    segment.putLong(instructionRejected.getAccountId());
+    segment.putLong(instructionRejected.getInstrumentId());
+    putString(reason);
+    end(start);
+  }
+
+  /**
+   * Flushes the current segment to disk.
+   */
+  public void flush() {
+    segment.force();
+  }
+
+  @Override
+  public void close() {
+    flush();
+  }
+
+  private int begin(byte type, int bodyLength, long timestamp) {
+    int length = HEADER_LENGTH + bodyLength;
+    if (length + 4 > segmentSize) {
+      throw new IllegalArgumentException("Event of " + length
+          + " bytes does not fit in a segment of " + segmentSize);
+    }
+
+    // Always leave room for the zero length that marks the end of a segment.
+    if (segment.remaining() < length + 4) {
+      nextSegment();
+    }
+
+    int start = segment.position();
+    segment.position(start + 4);
+    segment.put(type);
+    segment.putLong(timestamp);
+
+    return start;
+  }
+
+  private void end(int start) {
+    // Writing the length last means a reader never sees a partial record.
+    segment.putInt(start, segment.position() - start);
+  }
+
+  private void putOrder(Order order) {
+    segment.putLong(order.getInstructionId());
+    segment.putLong(order.getOriginalInstructionId());
+    segment.putLong(order.getInstrumentId());
+    segment.putLong(order.getAccountId());
+    segment.put((byte) order.getOrderType().ordinal());
+    putFixedPointNumber(order.getQuantity());
+    putFixedPointNumber(order.getFilledQuantity());
+    putFixedPointNumber(order.getCancelledQuantity());
+    putFixedPointNumber(order.getLimitPrice());
+    putFixedPointNumber(order.getStopReferencePrice());
+    putFixedPointNumber(order.getStopLossOffset());
+    putFixedPointNumber(order.getStopProfitOffset());
+    putString(order.getOrderId());
+  }
+
+  private void putPricePoints(List<PricePoint> pricePoints) {
+    int size = pricePoints.size();
+    segment.putInt(size);
+    for (int i = 0; i < size; i++) {
+      PricePoint pricePoint = pricePoints.get(i);
+      segment.putLong(pricePoint.getPrice().longValue());
+      segment.putLong(pricePoint.getQuantity().longValue());
+    }
+  }
+
+  private void putFixedPointNumber(FixedPointNumber value) {
+    segment.putLong(value != null ? value.longValue() : NULL_VALUE);
+  }
+
+  private void putString(String value) {
+    int length = value.length();
+    segment.putShort((short) length);
+    for (int i = 0; i < length; i++) {
+      segment.putChar(value.charAt(i));
+    }
+  }
+
+  private void nextSegment() {
+    File file = segmentFile(directory, ++segmentIndex);
+
+    try {
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try {
+        randomAccessFile.setLength(segmentSize);
+        segment = randomAccessFile.getChannel().map(
+            FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.order(BYTE_ORDER);
+      } finally {
+        randomAccessFile.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to create journal segment: " + file,
+          e);
+    }
+  }
+
+  static File segmentFile(File directory, int index) {
+    return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX,
+        index, SEGMENT_SUFFIX));
+  }
+
+  static int findLastSegmentIndex(File directory) {
+    int lastIndex = 0;
+    String[] names = directory.list();
+    if (names == null) {
+      return lastIndex;
+    }
+
+    for (String name : names) {
+      if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+        try {
+          lastIndex = Math.max(lastIndex, Integer.parseInt(name.substring(
+              SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+        } catch (NumberFormatException e) {
+          // Not one of ours.
+        }
+      }
+    }
+
+    return lastIndex;
+  }
+}
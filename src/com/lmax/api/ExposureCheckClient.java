@@ -1,11 +1,14 @@
 package com.lmax.api;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import com.lmax.api.account.AccountSubscriptionRequest;
 import com.lmax.api.account.LoginCallback;
 import com.lmax.api.account.LoginRequest;
 import com.lmax.api.account.LoginRequest.ProductType;
-import com.lmax.api.io.RollingFileWriter;
 import com.lmax.api.order.Execution;
 import com.lmax.api.order.ExecutionEventListener;
 import com.lmax.api.order.MarketOrderSpecification;
@@ -16,7 +19,7 @@ import com.lmax.api.order.OrderSubscriptionRequest;
 import com.lmax.api.orderbook.OrderBookEvent;
 import com.lmax.api.orderbook.OrderBookEventListener;
 import com.lmax.api.orderbook.OrderBookSubscriptionRequest;
-import com.lmax.api.profile.Timer;
+import com.lmax.api.position.PositionSubscriptionRequest;
 import com.lmax.api.reject.InstructionRejectedEvent;
 import com.lmax.api.reject.InstructionRejectedEventListener;
 
@@ -33,15 +36,48 @@ public class ExposureCheckClient implements LoginCallback,
     }
   }
 
+  private static final int JOURNAL_SEGMENT_SIZE = 64 * 1024 * 1024;
+  private static final int CAPTURE_SEGMENT_SIZE = 64 * 1024 * 1024;
+  private static final int CAPTURE_BLOCK_SIZE = 64 * 1024;
+  private static final int TRACKED_ORDERS = 1024;
+  private static final long LATENCY_REPORT_INTERVAL_MILLIS = 10000;
+  private static final long TIMING_LOG_INTERVAL_MILLIS = 1000;
+  private static final int ORDER_QUEUE_CAPACITY = 1024;
+  private static final int ORDER_SENDERS = 2;
+  private static final int MAX_ORDERS_IN_FLIGHT = 64;
+  private static final double ORDERS_PER_SECOND = 50;
+  private static final int ORDER_BURST = 10;
+  private static final long ORDER_ANSWER_TIMEOUT_MILLIS = 5000;
+  private static final FixedPointNumber MAX_POSITION = FixedPointNumber
+      .valueOf("100");
+  private static final FixedPointNumber MAX_NOTIONAL = FixedPointNumber
+      .valueOf("10000000");
+  private static final long UNCONFIRMED_ORDER_TIMEOUT_MILLIS = 10000;
+  private static final long STALE_ORDER_TIMEOUT_MILLIS = 60000;
+
   private Session session;
+  private AsyncOrderGateway orderGateway;
   private final long instrumentId;
   private FixedPointNumber side = FixedPointNumber.ZERO;
-  private long orderCount = 0;
+  // Set when no event will follow an order, as it was refused, dropped or
+  // failed, to place the next on the next order book event. Also written by
+  // the callback executor.
+  private volatile boolean retryPending = false;
+  // Written by the callback executor, read by the event thread.
+  private volatile long orderCount = 0;
   private long executionCount = 0;
   private long rejectionCount = 0;
+  private long nextInstructionId = System.currentTimeMillis() * 1000;
+  private final OrderLatencyTracker latencyTracker = new OrderLatencyTracker(
+      TRACKED_ORDERS);
+  private final ExposureEngine exposureEngine = new ExposureEngine(1,
+      TRACKED_ORDERS, UNCONFIRMED_ORDER_TIMEOUT_MILLIS,
+      STALE_ORDER_TIMEOUT_MILLIS);
+  private final ListenerTimer listenerTimer = new ListenerTimer();
 
   public ExposureCheckClient(long instrumentId) {
     this.instrumentId = instrumentId;
+    exposureEngine.setLimits(instrumentId, MAX_POSITION, MAX_NOTIONAL);
   }
 
   @Override
@@ -49,6 +85,8 @@ public class ExposureCheckClient implements LoginCallback,
     if (side.equals(FixedPointNumber.ZERO)) {
       side = FixedPointNumber.ONE;
       placeOrder(side);
+    } else if (retryPending) {
+      placeOrder(side);
     }
   }
 
@@ -62,29 +100,57 @@ public class ExposureCheckClient implements LoginCallback,
 
   @Override
   public void notify(Execution execution) {
+    latencyTracker.executionReceived(execution.getOrder().getInstructionId());
   }
 
   @Override
   public void notify(Order order) {
+    latencyTracker.orderReceived(order.getInstructionId());
+
     executionCount++;
     side = side.negate();
     placeOrder(side);
   }
 
   private void placeOrder(FixedPointNumber side) {
-    if (orderCount > 2 && (orderCount % 50 == 0 || orderCount % 50 == 1)) {
-      session.placeMarketOrder(new MarketOrderSpecification(instrumentId,
-          new FixedPointNumber(500000000), TimeInForce.IMMEDIATE_OR_CANCEL),
-          placeOrderCallback);
-    } else {
-      session.placeMarketOrder(new MarketOrderSpecification(instrumentId, side,
-          TimeInForce.IMMEDIATE_OR_CANCEL), placeOrderCallback);
+    long instructionId = nextInstructionId++;
+
+    if (!exposureEngine.reserve(instructionId, instrumentId, side.longValue(),
+        ExposureEngine.NO_PRICE)) {
+      if (!retryPending) {
+        System.out.println("Exposure limit reached, not placing order: "
+            + instructionId);
+      }
+      // No event will follow, so try again on the next order book event,
+      // from the other side in case this one only adds to the position.
+      retryPending = true;
+      this.side = side.negate();
+      return;
+    }
+    retryPending = false;
+
+    latencyTracker.placed(instructionId);
+    if (!orderGateway.placeMarketOrder(new MarketOrderSpecification(
+        instrumentId, instructionId, side, TimeInForce.IMMEDIATE_OR_CANCEL),
+        new PlaceOrderCallback(instructionId))) {
+      exposureEngine.release(instructionId);
+      latencyTracker.discard(instructionId);
+      retryPending = true;
+      System.out.println("Order queue full, dropped order: " + instructionId);
     }
   }
 
-  private final OrderCallback placeOrderCallback = new OrderCallback() {
+  private final class PlaceOrderCallback implements OrderCallback {
+    private final long reservedInstructionId;
+
+    public PlaceOrderCallback(long reservedInstructionId) {
+      this.reservedInstructionId = reservedInstructionId;
+    }
+
     @Override
     public void onSuccess(long instructionId) {
+      latencyTracker.acknowledged(instructionId);
+
       if (orderCount % 10 == 0) {
         System.out.printf(
             "Orders: %d, Executions: %d, Rejections: %d, Net: %d%n",
@@ -97,29 +163,94 @@ public class ExposureCheckClient implements LoginCallback,
 
     @Override
     public void onFailure(FailureResponse failureResponse) {
+      exposureEngine.releaseFailed(reservedInstructionId);
+      latencyTracker.discard(reservedInstructionId);
+      retryPending = true;
       System.out.println(failureResponse);
     }
-  };
+  }
 
   @Override
   public void onLoginSuccess(Session session) {
     System.out.println("My accountId is: "
         + session.getAccountDetails().getAccountId());
 
-    this.session = session;
-    this.session.registerOrderBookEventListener(this);
-    this.session.registerOrderEventListener(Timer.forOrderEvents(this));
-    this.session.registerInstructionRejectedEventListener(Timer
-        .forInstructionRejectedEvents(this));
-    this.session.registerExecutionEventListener(Timer.forExecutionEvents(this));
-    this.session.setEventStreamDebug(new RollingFileWriter(
-        new File("/tmp/mike"), "event-stream-%s.log", 8192));
+    EventJournal journal;
+    try {
+      journal = new EventJournal(new File("/tmp/mike", "journal"),
+          JOURNAL_SEGMENT_SIZE);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to create event journal", e);
+    }
+
+    StreamCaptureWriter capture;
+    try {
+      capture = new StreamCaptureWriter(new File("/tmp/mike", "capture"),
+          CAPTURE_SEGMENT_SIZE, CAPTURE_BLOCK_SIZE, true);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to create event stream capture", e);
+    }
+
+    ExecutorService callbackExecutor = Executors.newSingleThreadExecutor();
+    // Orders queue behind the throttle, and so behind the gateway, rather
+    // than being shed.
+    OrderThrottle orderThrottle = new OrderThrottle(session,
+        ORDERS_PER_SECOND, ORDER_BURST, MAX_ORDERS_IN_FLIGHT,
+        ORDER_ANSWER_TIMEOUT_MILLIS, false);
+    orderThrottle.registerMBean("exposure-check-client");
+    this.session = orderThrottle;
+    this.orderGateway = new AsyncOrderGateway(this.session,
+        ORDER_QUEUE_CAPACITY, ORDER_SENDERS, MAX_ORDERS_IN_FLIGHT,
+        callbackExecutor);
+    this.session.registerOrderBookEventListener(journal
+        .recordOrderBookEvents(listenerTimer.forOrderBookEvents(this)));
+    this.session.registerOrderEventListener(journal
+        .recordOrderEvents(listenerTimer.forOrderEvents(exposureEngine
+            .trackOrderEvents(this))));
+    this.session.registerInstructionRejectedEventListener(journal
+        .recordInstructionRejectedEvents(listenerTimer
+            .forInstructionRejectedEvents(exposureEngine
+                .trackInstructionRejectedEvents(this))));
+    this.session.registerExecutionEventListener(journal
+        .recordExecutionEvents(listenerTimer.forExecutionEvents(exposureEngine
+            .trackExecutionEvents(this))));
+    this.session.registerPositionEventListener(listenerTimer
+        .forPositionEvents(exposureEngine));
+    this.session.registerAccountStateEventListener(listenerTimer
+        .forAccountStateEvents(exposureEngine));
+    this.session.setEventStreamDebug(capture);
 
     session.subscribe(new OrderBookSubscriptionRequest(instrumentId),
         new DefaultCallback());
     session.subscribe(new OrderSubscriptionRequest(), new DefaultCallback());
+    session.subscribe(new PositionSubscriptionRequest(), new DefaultCallback());
+    session.subscribe(new AccountSubscriptionRequest(), new DefaultCallback());
+
+    latencyTracker.registerMBeans();
+    listenerTimer.registerMBeans();
+    Thread reporter = new Thread(new LatencyReporter(System.out,
+        LATENCY_REPORT_INTERVAL_MILLIS, latencyTracker.getHistograms()),
+        "latency-reporter");
+    reporter.setDaemon(true);
+    reporter.start();
+    Thread timingLog = new Thread(new TimingLog(new File("/tmp/mike",
+        "timings.log"), TIMING_LOG_INTERVAL_MILLIS, listenerTimer
+        .getRecorders()), "timing-log");
+    timingLog.setDaemon(true);
+    timingLog.start();
 
+    orderGateway.start();
     session.start();
+
+    orderGateway.stop();
+    callbackExecutor.shutdown();
+    journal.close();
+    timingLog.interrupt();
+    try {
+      capture.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
   }
 
   @Override
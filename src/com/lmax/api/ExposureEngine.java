@@ -0,0 +1,400 @@
+package com.lmax.api;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.lmax.api.account.AccountStateEvent;
+import com.lmax.api.account.AccountStateEventListener;
+import com.lmax.api.order.Execution;
+import com.lmax.api.order.ExecutionEventListener;
+import com.lmax.api.order.Order;
+import com.lmax.api.order.OrderEventListener;
+import com.lmax.api.position.PositionEvent;
+import com.lmax.api.position.PositionEventListener;
+import com.lmax.api.reject.InstructionRejectedEvent;
+import com.lmax.api.reject.InstructionRejectedEventListener;
+
+/**
+ * Checks orders against position and notional limits in process, so an order
+ * that would breach them is never sent, rather than sent and rejected.
+ * <p>
+ * Net position, last price and limits are kept per instrument, and the
+ * unfilled quantity of each order in flight per reservation, all in primitive
+ * arrays found through {@link LongIntHashMap}s. An order is checked and its
+ * quantity reserved by {@link #reserve} before it is placed; the reservation
+ * shrinks as order and execution events fill or cancel it, and is dropped if
+ * the order is rejected. Events find it by the order's original instruction
+ * id, which stays the same as the order is amended or cancelled. A
+ * reservation no event has been seen for in time is dropped, so one whose
+ * last event was missed cannot hold exposure for good. The check takes the worst case, that every
+ * reservation on the same side fills, and refuses only orders that make that
+ * worse, so a position over its limits can always be reduced. Executions move
+ * the position, and position events, which follow them, resync it. While the
+ * account's available funds are not positive, no order that adds to exposure
+ * passes.
+ * <p>
+ * Not thread safe: use it only from the session's event thread, where its
+ * events are delivered, so that nothing needs a lock. The one exception is
+ * {@link #releaseFailed}, for request callbacks run on other threads.
+ */
+public class ExposureEngine implements PositionEventListener,
+    AccountStateEventListener, ExecutionEventListener, OrderEventListener,
+    InstructionRejectedEventListener {
+  /**
+   * The price of a market order, checked against the instrument's last price.
+   */
+  public static final long NO_PRICE = Long.MIN_VALUE;
+
+  private static final double UNITS = 1000000.0;
+  private static final int FREE = -1;
+
+  // Per instrument, by slot.
+  private final LongIntHashMap slotsByInstrumentId;
+  private final long[] maxPositions;
+  private final double[] maxNotionals;
+  private final long[] positions;
+  private final long[] pendingLongs;
+  private final long[] pendingShorts;
+  private final long[] lastPrices;
+  private int instrumentCount = 0;
+
+  // Per order in flight, by reservation.
+  private final LongIntHashMap reservationsByInstructionId;
+  private final long[] reservedInstructionIds;
+  private final int[] reservedSlots;
+  private final long[] remainingQuantities;
+  private final long[] lastSeenNanos;
+  private final boolean[] confirmed;
+  private final int[] freeReservations;
+  private int freeCount;
+
+  private final long unconfirmedTimeoutNanos;
+  private final long staleTimeoutNanos;
+  private final long expiryIntervalNanos;
+  private long nextExpiryNanos;
+  private long availableFunds = 0;
+  private boolean availableFundsKnown = false;
+  private long refusedCount = 0;
+  // Failures are rare, so boxing them is no burden.
+  private final Queue<Long> failedInstructionIds =
+      new ConcurrentLinkedQueue<Long>();
+
+  /**
+   * @param unconfirmedTimeoutMillis
+   *          how long to hold a reservation for an order that no event has
+   *          been seen for, as when placing it failed.
+   * @param staleTimeoutMillis
+   *          how long to hold a reservation for an order with no event since
+   *          its last one, as when the event ending it was missed. Make it
+   *          longer than orders rest without being filled or amended.
+   */
+  public ExposureEngine(int maxInstruments, int maxOrdersInFlight,
+      long unconfirmedTimeoutMillis, long staleTimeoutMillis) {
+    this.slotsByInstrumentId = new LongIntHashMap(maxInstruments);
+    this.maxPositions = new long[maxInstruments];
+    this.maxNotionals = new double[maxInstruments];
+    this.positions = new long[maxInstruments];
+    this.pendingLongs = new long[maxInstruments];
+    this.pendingShorts = new long[maxInstruments];
+    this.lastPrices = new long[maxInstruments];
+    Arrays.fill(lastPrices, NO_PRICE);
+
+    this.reservationsByInstructionId = new LongIntHashMap(maxOrdersInFlight);
+    this.reservedInstructionIds = new long[maxOrdersInFlight];
+    this.reservedSlots = new int[maxOrdersInFlight];
+    this.remainingQuantities = new long[maxOrdersInFlight];
+    this.lastSeenNanos = new long[maxOrdersInFlight];
+    this.confirmed = new boolean[maxOrdersInFlight];
+    this.freeReservations = new int[maxOrdersInFlight];
+    for (int i = 0; i < maxOrdersInFlight; i++) {
+      reservedSlots[i] = FREE;
+      freeReservations[i] = maxOrdersInFlight - 1 - i;
+    }
+    this.freeCount = maxOrdersInFlight;
+
+    this.unconfirmedTimeoutNanos = TimeUnit.MILLISECONDS
+        .toNanos(unconfirmedTimeoutMillis);
+    this.staleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(staleTimeoutMillis);
+    this.expiryIntervalNanos = Math.min(unconfirmedTimeoutNanos,
+        staleTimeoutNanos);
+    this.nextExpiryNanos = System.nanoTime() + expiryIntervalNanos;
+  }
+
+  /**
+   * Sets the limits for an instrument; orders for an instrument without them
+   * are refused.
+   *
+   * @param maxPosition
+   *          the largest net position, long or short.
+   * @param maxNotional
+   *          the largest net position times price.
+   */
+  public void setLimits(long instrumentId, FixedPointNumber maxPosition,
+      FixedPointNumber maxNotional) {
+    int slot = slotsByInstrumentId.get(instrumentId);
+    if (slot == LongIntHashMap.MISSING_VALUE) {
+      if (instrumentCount == maxPositions.length) {
+        throw new IllegalStateException("Limits already set for "
+            + instrumentCount + " instruments");
+      }
+      slot = instrumentCount++;
+      slotsByInstrumentId.put(instrumentId, slot);
+    }
+
+    maxPositions[slot] = maxPosition.longValue();
+    maxNotionals[slot] = maxNotional.longValue() / UNITS;
+  }
+
+  /**
+   * Sets the price market orders for an instrument are checked at, until the
+   * next execution.
+   */
+  public void markPrice(long instrumentId, FixedPointNumber price) {
+    int slot = slotsByInstrumentId.get(instrumentId);
+    if (slot != LongIntHashMap.MISSING_VALUE) {
+      lastPrices[slot] = price.longValue();
+    }
+  }
+
+  /**
+   * Checks an order against the limits without reserving anything.
+   *
+   * @param quantity
+   *          the raw value of the order's quantity, negative to sell.
+   * @param price
+   *          the raw value of a limit order's price, or {@link #NO_PRICE}.
+   */
+  public boolean wouldBreach(long instrumentId, long quantity, long price) {
+    int slot = slotsByInstrumentId.get(instrumentId);
+    return slot == LongIntHashMap.MISSING_VALUE
+        || wouldBreach(slot, quantity, price);
+  }
+
+  /**
+   * Checks an order against the limits and, if it passes, reserves its
+   * quantity until it is filled, cancelled or rejected.
+   *
+   * @return false if the order should not be placed.
+   * @see #wouldBreach(long, long, long)
+   */
+  public boolean reserve(long instructionId, long instrumentId, long quantity,
+      long price) {
+    Long failed;
+    while ((failed = failedInstructionIds.poll()) != null) {
+      release(failed);
+    }
+
+    long now = System.nanoTime();
+    if (freeCount == 0 || now - nextExpiryNanos >= 0) {
+      expireStale(now);
+    }
+
+    int slot = slotsByInstrumentId.get(instrumentId);
+    if (slot == LongIntHashMap.MISSING_VALUE || freeCount == 0
+        || quantity == 0 || wouldBreach(slot, quantity, price)) {
+      refusedCount++;
+      return false;
+    }
+
+    int reservation = freeReservations[--freeCount];
+    reservedInstructionIds[reservation] = instructionId;
+    reservedSlots[reservation] = slot;
+    lastSeenNanos[reservation] = now;
+    confirmed[reservation] = false;
+    remainingQuantities[reservation] = 0;
+    setRemaining(reservation, quantity);
+    reservationsByInstructionId.put(instructionId, reservation);
+    return true;
+  }
+
+  /**
+   * Drops a reservation for an order that was not placed after all, or that
+   * is known to have ended without an event for it.
+   *
+   * @param instructionId
+   *          the id the order was reserved and placed with.
+   */
+  public void release(long instructionId) {
+    int reservation = reservationsByInstructionId.get(instructionId);
+    if (reservation != LongIntHashMap.MISSING_VALUE) {
+      setRemaining(reservation, 0);
+    }
+  }
+
+  /**
+   * Drops a reservation for an order whose request failed, from any thread.
+   * It is dropped on the event thread, before the next order is checked.
+   */
+  public void releaseFailed(long instructionId) {
+    failedInstructionIds.offer(instructionId);
+  }
+
+  public long getPosition(long instrumentId) {
+    int slot = slotsByInstrumentId.get(instrumentId);
+    return slot == LongIntHashMap.MISSING_VALUE ? 0 : positions[slot];
+  }
+
+  /**
+   * The number of orders {@link #reserve} has refused.
+   */
+  public long getRefusedCount() {
+    return refusedCount;
+  }
+
+  public OrderEventListener trackOrderEvents(
+      final OrderEventListener listener) {
+    return new OrderEventListener() {
+      @Override
+      public void notify(Order order) {
+        ExposureEngine.this.notify(order);
+        listener.notify(order);
+      }
+    };
+  }
+
+  public ExecutionEventListener trackExecutionEvents(
+      final ExecutionEventListener listener) {
+    return new ExecutionEventListener() {
+      @Override
+      public void notify(Execution execution) {
+        ExposureEngine.this.notify(execution);
+        listener.notify(execution);
+      }
+    };
+  }
+
+  public InstructionRejectedEventListener trackInstructionRejectedEvents(
+      final InstructionRejectedEventListener listener) {
+    return new InstructionRejectedEventListener() {
+      @Override
+      public void notify(InstructionRejectedEvent instructionRejected) {
+        ExposureEngine.this.notify(instructionRejected);
+        listener.notify(instructionRejected);
+      }
+    };
+  }
+
+  @Override
+  public void notify(Order order) {
+    // The instruction id is that of the order's last amendment or cancel.
+    int reservation = reservationsByInstructionId.get(order
+        .getOriginalInstructionId());
+    if (reservation == LongIntHashMap.MISSING_VALUE) {
+      return;
+    }
+
+    long quantity = order.getQuantity().longValue();
+    long unfilled = Math.abs(quantity)
+        - Math.abs(order.getFilledQuantity().longValue())
+        - Math.abs(order.getCancelledQuantity().longValue());
+
+    confirmed[reservation] = true;
+    lastSeenNanos[reservation] = System.nanoTime();
+    setRemaining(reservation, quantity < 0 ? -unfilled : unfilled);
+  }
+
+  @Override
+  public void notify(Execution execution) {
+    Order order = execution.getOrder();
+
+    int slot = slotsByInstrumentId.get(order.getInstrumentId());
+    if (slot != LongIntHashMap.MISSING_VALUE) {
+      long filled = Math.abs(execution.getQuantity().longValue());
+      positions[slot] += order.getQuantity().signum() < 0 ? -filled : filled;
+      if (filled != 0) {
+        lastPrices[slot] = execution.getPrice().longValue();
+      }
+    }
+
+    notify(order);
+  }
+
+  @Override
+  public void notify(InstructionRejectedEvent instructionRejected) {
+    release(instructionRejected.getInstructionId());
+  }
+
+  @Override
+  public void notify(PositionEvent positionEvent) {
+    int slot = slotsByInstrumentId.get(positionEvent.getInstrumentId());
+    if (slot != LongIntHashMap.MISSING_VALUE) {
+      positions[slot] = positionEvent.getOpenQuantity().longValue();
+    }
+  }
+
+  @Override
+  public void notify(AccountStateEvent accountStateEvent) {
+    availableFunds = accountStateEvent.getAvailableFunds().longValue();
+    availableFundsKnown = true;
+  }
+
+  private boolean wouldBreach(int slot, long quantity, long price) {
+    long position = positions[slot];
+    long currentWorst = Math.max(Math.abs(position + pendingLongs[slot]),
+        Math.abs(position + pendingShorts[slot]));
+    long worst = Math.max(
+        Math.abs(position + pendingLongs[slot] + Math.max(quantity, 0)),
+        Math.abs(position + pendingShorts[slot] + Math.min(quantity, 0)));
+
+    // An order that does not add to the worst case always passes, so that a
+    // position already over a limit can be brought back within it.
+    if (worst <= currentWorst) {
+      return false;
+    }
+    if (worst > maxPositions[slot]) {
+      return true;
+    }
+
+    long checkPrice = price != NO_PRICE ? price : lastPrices[slot];
+    if (checkPrice != NO_PRICE
+        && worst / UNITS * Math.abs(checkPrice) / UNITS > maxNotionals[slot]) {
+      return true;
+    }
+
+    return availableFundsKnown && availableFunds <= 0;
+  }
+
+  /**
+   * Moves a reservation's unfilled quantity, freeing it once nothing is left.
+   */
+  private void setRemaining(int reservation, long remaining) {
+    int slot = reservedSlots[reservation];
+    long previous = remainingQuantities[reservation];
+
+    if (previous > 0) {
+      pendingLongs[slot] -= previous;
+    } else {
+      pendingShorts[slot] -= previous;
+    }
+    if (remaining > 0) {
+      pendingLongs[slot] += remaining;
+    } else {
+      pendingShorts[slot] += remaining;
+    }
+    remainingQuantities[reservation] = remaining;
+
+    if (remaining == 0) {
+      reservationsByInstructionId.remove(reservedInstructionIds[reservation]);
+      reservedSlots[reservation] = FREE;
+      freeReservations[freeCount++] = reservation;
+    }
+  }
+
+  /**
+   * Frees the reservations of orders no event has been seen for in time,
+   * checking no more than once the shorter timeout unless every reservation
+   * is taken.
+   */
+  private void expireStale(long now) {
+    for (int i = 0; i < reservedSlots.length; i++) {
+      if (reservedSlots[i] != FREE
+          && now - lastSeenNanos[i] >= (confirmed[i] ? staleTimeoutNanos
+              : unconfirmedTimeoutNanos)) {
+        setRemaining(i, 0);
+      }
+    }
+    nextExpiryNanos = now + expiryIntervalNanos;
+  }
+}
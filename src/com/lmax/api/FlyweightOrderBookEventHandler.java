@@ -0,0 +1,264 @@
+package com.lmax.api;
+
+import java.lang.reflect.Field;
+
+import org.xml.sax.SAXException;
+
+import com.lmax.api.internal.SessionImpl;
+import com.lmax.api.internal.protocol.EventHandler;
+import com.lmax.api.internal.protocol.Handler;
+import com.lmax.api.internal.protocol.OrderBookEventHandler;
+
+/**
+ * Decodes <code>ob2</code> order book messages into a single reused
+ * {@link OrderBookView}, in place of the API's own handler, which copies the
+ * message into a new char array and then allocates lists, price points, fixed
+ * point numbers and an event for every update. Once the view has grown to the
+ * deepest book seen, decoding allocates nothing.
+ * <p>
+ * The message is read straight out of the element content the SAX handler
+ * has accumulated, and parsed field by field:
+ * <code>instrumentId|timestamp|bids|asks|marketClose|dailyHigh|dailyLow|
+ * valuationBid|valuationAsk|lastTraded</code>, with timestamps in hex, depth as
+ * <code>quantity@price;...</code> and the market close as
+ * <code>price;timestamp</code>.
+ */
+public class FlyweightOrderBookEventHandler extends OrderBookEventHandler {
+  private static final int DECIMAL_PLACES = 6;
+  private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L,
+      100000L, 1000000L };
+
+  private final OrderBookViewListener listener;
+  private final OrderBookView view = new OrderBookView();
+  private final StringBuilder content;
+  private char[] chars = new char[1024];
+  private int length;
+  private int position;
+  private int fieldStart;
+  private int fieldEnd;
+
+  public FlyweightOrderBookEventHandler(OrderBookViewListener listener) {
+    this.listener = listener;
+    this.content = (StringBuilder) getFieldValue(Handler.class, this,
+        "contentBuilder");
+  }
+
+  /**
+   * Replaces the session's order book event decoding, so that the listener
+   * receives every order book event and the session's
+   * {@link com.lmax.api.orderbook.OrderBookEventListener}s receive none. Must
+   * be called before the session is started.
+   *
+   * @throws IllegalArgumentException
+   *           if the session is not the API's own implementation.
+   */
+  public static void install(Session session, OrderBookViewListener listener) {
+    if (!(session instanceof SessionImpl)) {
+      throw new IllegalArgumentException("Unsupported session: "
+          + session.getClass().getName());
+    }
+
+    Object eventHandler = getFieldValue(SessionImpl.class, session,
+        "eventHandler");
+    try {
+      Field field = EventHandler.class
+          .getDeclaredField("orderBookEventHandler");
+      field.setAccessible(true);
+      field.set(eventHandler, new FlyweightOrderBookEventHandler(listener));
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to install order book handler", e);
+    }
+  }
+
+  private static Object getFieldValue(Class<?> type, Object instance,
+      String name) {
+    try {
+      Field field = type.getDeclaredField(name);
+      field.setAccessible(true);
+      return field.get(instance);
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to read " + type.getName() + "."
+          + name, e);
+    }
+  }
+
+  @Override
+  public void endElement(String localName) throws SAXException {
+    if (localName == null || !getElementName().equals(localName)) {
+      return;
+    }
+
+    length = content.length();
+    if (chars.length < length) {
+      chars = new char[length * 2];
+    }
+    content.getChars(0, length, chars, 0);
+    position = 0;
+
+    nextField();
+    view.instrumentId = parseLong(fieldStart, fieldEnd);
+    nextField();
+    view.timestamp = parseOptionalTimestamp(fieldStart, fieldEnd);
+    nextField();
+    parseBids(fieldStart, fieldEnd);
+    nextField();
+    parseAsks(fieldStart, fieldEnd);
+    nextField();
+    parseMarketClose(fieldStart, fieldEnd);
+    nextField();
+    view.dailyHighestTradedPrice = parseFixedPoint(fieldStart, fieldEnd);
+    nextField();
+    view.dailyLowestTradedPrice = parseFixedPoint(fieldStart, fieldEnd);
+    nextField();
+    view.valuationBidPrice = parseFixedPoint(fieldStart, fieldEnd);
+    nextField();
+    view.valuationAskPrice = parseFixedPoint(fieldStart, fieldEnd);
+    nextField();
+    view.lastTradedPrice = parseFixedPoint(fieldStart, fieldEnd);
+
+    listener.notify(view);
+  }
+
+  @Override
+  public void setListener(
+      com.lmax.api.orderbook.OrderBookEventListener orderBookEventListener) {
+    // Order book events go to the view listener only.
+  }
+
+  private void nextField() {
+    fieldStart = position;
+    fieldEnd = indexOf('|', position, length);
+    if (fieldEnd == -1) {
+      fieldEnd = length;
+    }
+    position = fieldEnd + 1;
+  }
+
+  private void parseBids(int start, int end) {
+    int count = countLevels(start, end);
+    view.ensureBidCapacity(count);
+    parseLevels(start, end, view.bidQuantities, view.bidPrices);
+    view.bidCount = count;
+  }
+
+  private void parseAsks(int start, int end) {
+    int count = countLevels(start, end);
+    view.ensureAskCapacity(count);
+    parseLevels(start, end, view.askQuantities, view.askPrices);
+    view.askCount = count;
+  }
+
+  private int countLevels(int start, int end) {
+    if (start == end) {
+      return 0;
+    }
+
+    int count = 1;
+    for (int i = start; i < end; i++) {
+      if (chars[i] == ';') {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private void parseLevels(int start, int end, long[] quantities,
+      long[] prices) {
+    int level = 0;
+    while (start < end) {
+      int levelEnd = indexOf(';', start, end);
+      if (levelEnd == -1) {
+        levelEnd = end;
+      }
+
+      int at = indexOf('@', start, levelEnd);
+      if (at == -1) {
+        throw new IllegalArgumentException("incomplete price points");
+      }
+      quantities[level] = parseFixedPoint(start, at);
+      prices[level] = parseFixedPoint(at + 1, levelEnd);
+      level++;
+      start = levelEnd + 1;
+    }
+  }
+
+  private void parseMarketClose(int start, int end) {
+    if (start == end) {
+      view.marketClosePrice = OrderBookView.NO_VALUE;
+      view.marketCloseTimestamp = -1;
+      return;
+    }
+
+    int separator = indexOf(';', start, end);
+    if (separator == -1) {
+      throw new IllegalArgumentException("Invalid market close");
+    }
+    view.marketClosePrice = parseFixedPoint(start, separator);
+    view.marketCloseTimestamp = parseOptionalTimestamp(separator + 1, end);
+  }
+
+  private int indexOf(char c, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (chars[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private long parseLong(int start, int end) {
+    if (start == end) {
+      throw new IllegalArgumentException("Expected a number");
+    }
+
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      value = value * 10 + digit(chars[i], 10);
+    }
+    return value;
+  }
+
+  private long parseOptionalTimestamp(int start, int end) {
+    if (start == end) {
+      return -1;
+    }
+
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      value = (value << 4) + digit(chars[i], 16);
+    }
+    return value;
+  }
+
+  private long parseFixedPoint(int start, int end) {
+    if (start == end) {
+      return OrderBookView.NO_VALUE;
+    }
+
+    boolean negative = chars[start] == '-';
+    long value = 0;
+    int decimals = -1;
+    for (int i = negative ? start + 1 : start; i < end; i++) {
+      char c = chars[i];
+      if (c == '.') {
+        decimals = 0;
+      } else if (decimals < 0) {
+        value = value * 10 + digit(c, 10);
+      } else if (decimals < DECIMAL_PLACES) {
+        value = value * 10 + digit(c, 10);
+        decimals++;
+      }
+    }
+
+    value *= POWERS_OF_TEN[DECIMAL_PLACES - Math.max(decimals, 0)];
+    return negative ? -value : value;
+  }
+
+  private static int digit(char c, int radix) {
+    int digit = Character.digit(c, radix);
+    if (digit < 0) {
+      throw new IllegalArgumentException("Invalid digit: " + c);
+    }
+    return digit;
+  }
+}
@@ -3,33 +3,29 @@ package com.lmax.api;
 import com.lmax.api.account.LoginCallback;
 import com.lmax.api.account.LoginRequest;
 import com.lmax.api.account.LoginRequest.ProductType;
-import com.lmax.api.heartbeat.HeartbeatCallback;
 import com.lmax.api.heartbeat.HeartbeatEventListener;
-import com.lmax.api.heartbeat.HeartbeatRequest;
-import com.lmax.api.heartbeat.HeartbeatSubscriptionRequest;
 
-public class HeartbeatClient implements LoginCallback, HeartbeatEventListener,
-    Runnable {
-  private Session session;
+public class HeartbeatClient implements LoginCallback, HeartbeatEventListener {
+  private static final long HEARTBEAT_MILLIS = 2000;
 
-  public HeartbeatClient() {
+  private final String url;
+  private final SessionLivenessService livenessService;
+  private SessionLivenessService.Liveness liveness;
+
+  public HeartbeatClient(String url, SessionLivenessService livenessService) {
+    this.url = url;
+    this.livenessService = livenessService;
   }
 
   @Override
   public void notify(long accountId, String token) {
-    System.out.printf("Received heartbeat: %d, %s%n", accountId, token);
-  }
-
-  public void run() {
-    try {
-      while (!Thread.currentThread().isInterrupted()) {
-        Thread.sleep(2000);
-
-        requestHeartbeat();
-      }
-    } catch (InterruptedException e) {
-      e.printStackTrace();
-    }
+    HeartbeatMonitor monitor = liveness.getMonitor();
+    StringBuilder summary = new StringBuilder();
+    monitor.getRoundTrip().appendSummary(summary);
+    summary.append(", ");
+    monitor.getStreamDelay().appendSummary(summary);
+    System.out.printf("Received heartbeat: %d, %s, %s%n", accountId, token,
+        summary);
   }
 
   @Override
@@ -37,37 +33,14 @@ public class HeartbeatClient implements LoginCallback, HeartbeatEventListener,
     System.out.println("My accountId is: "
         + session.getAccountDetails().getAccountId());
 
-    this.session = session;
-    this.session.registerHeartbeatListener(this);
-
-    session.subscribe(new HeartbeatSubscriptionRequest(), new Callback() {
-      public void onSuccess() {
-      }
-
-      @Override
-      public void onFailure(final FailureResponse failureResponse) {
-        throw new RuntimeException("Failed");
-      }
-    });
-
-    new Thread(this).start();
+    // Heartbeats reach this client through the probes, once timed.
+    liveness = livenessService.register(session, url, 0, HEARTBEAT_MILLIS,
+        this);
+    liveness.getMonitor().registerMBeans();
 
     session.start();
-  }
-
-  private void requestHeartbeat() {
-    this.session.requestHeartbeat(new HeartbeatRequest("token"),
-        new HeartbeatCallback() {
-          @Override
-          public void onSuccess(String token) {
-            System.out.println("Requested heartbeat: " + token);
-          }
 
-          @Override
-          public void onFailure(FailureResponse failureResponse) {
-            throw new RuntimeException("Failed");
-          }
-        });
+    liveness.cancel();
   }
 
   @Override
@@ -88,9 +61,14 @@ public class HeartbeatClient implements LoginCallback, HeartbeatEventListener,
     ProductType productType = ProductType.valueOf(args[3].toUpperCase());
 
     LmaxApi lmaxApi = new LmaxApi(url);
-    HeartbeatClient loginClient = new HeartbeatClient();
+    ListenerTimer listenerTimer = new ListenerTimer();
+    listenerTimer.registerMBeans();
+    SessionLivenessService livenessService = new SessionLivenessService(1,
+        listenerTimer);
+    HeartbeatClient loginClient = new HeartbeatClient(url, livenessService);
 
     lmaxApi.login(new LoginRequest(username, password, productType),
         loginClient);
+    livenessService.shutdown();
   }
 }
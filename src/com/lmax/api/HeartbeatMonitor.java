@@ -0,0 +1,269 @@
+package com.lmax.api;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Times heartbeats through the push stream, as an early warning that the
+ * stream is lagging before prices go stale.
+ * <p>
+ * Each heartbeat is requested with a token of
+ * <code>&lt;prefix&gt;&lt;sequence&gt;-&lt;nanoTime&gt;</code>, and matched by
+ * its sequence when it comes back on the stream. Three latencies are
+ * recorded: the round trip from request to receipt; the one-way stream delay,
+ * the round trip less half the time the request took to be acknowledged,
+ * which estimates when the server queued the heartbeat; and the interval
+ * between heartbeats received. The stream is flagged stale once the given
+ * number of heartbeats, before the latest, have gone unanswered.
+ */
+public class HeartbeatMonitor implements HeartbeatMonitorMBean {
+  private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.SECONDS
+      .toNanos(60);
+  private static final int PENDING_SIZE = 64;
+  private static final int PENDING_MASK = PENDING_SIZE - 1;
+
+  private final String name;
+  private final String tokenPrefix;
+  private final int staleAfterMissed;
+  private final LatencyHistogram roundTrip;
+  private final LatencyHistogram streamDelay;
+  private final LatencyHistogram interval;
+  private final long[] pendingSequences = new long[PENDING_SIZE];
+  private final long[] sentNanos = new long[PENDING_SIZE];
+  private final long[] acknowledgedNanos = new long[PENDING_SIZE];
+  private final long[] receivedNanos = new long[PENDING_SIZE];
+  private final List<ObjectName> objectNames = new ArrayList<ObjectName>();
+  private volatile long sentCount = 0;
+  private volatile long receivedCount = 0;
+  private volatile long lastReceivedSequence = 0;
+  private volatile long lastReceivedMillis = System.currentTimeMillis();
+  private volatile long lastRoundTripNanos = 0;
+  private volatile long lastStreamDelayNanos = 0;
+  private volatile boolean stale = false;
+  private long lastReceivedNanos = 0;
+
+  /**
+   * @param tokenPrefix
+   *          starts every token, so that heartbeats requested by anyone else
+   *          are told apart.
+   */
+  public HeartbeatMonitor(String name, String tokenPrefix,
+      int staleAfterMissed) {
+    this.name = name;
+    this.tokenPrefix = tokenPrefix;
+    this.staleAfterMissed = staleAfterMissed;
+    this.roundTrip = new LatencyHistogram(name + "-round-trip",
+        HIGHEST_TRACKABLE_NANOS);
+    this.streamDelay = new LatencyHistogram(name + "-stream-delay",
+        HIGHEST_TRACKABLE_NANOS);
+    this.interval = new LatencyHistogram(name + "-interval",
+        HIGHEST_TRACKABLE_NANOS);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public LatencyHistogram getRoundTrip() {
+    return roundTrip;
+  }
+
+  public LatencyHistogram getStreamDelay() {
+    return streamDelay;
+  }
+
+  public LatencyHistogram getInterval() {
+    return interval;
+  }
+
+  /**
+   * Starts timing the next heartbeat, reporting if the stream has gone stale.
+   *
+   * @return the token to request it with.
+   */
+  public synchronized String nextToken() {
+    long sequence = ++sentCount;
+    checkStale();
+
+    int index = (int) sequence & PENDING_MASK;
+    long now = System.nanoTime();
+    pendingSequences[index] = sequence;
+    sentNanos[index] = now;
+    acknowledgedNanos[index] = 0;
+    receivedNanos[index] = 0;
+    return tokenPrefix + sequence + '-' + now;
+  }
+
+  /**
+   * Call when the heartbeat request succeeds.
+   */
+  public synchronized void acknowledged(String token) {
+    int index = indexOf(token);
+    if (index != -1) {
+      acknowledgedNanos[index] = System.nanoTime();
+      if (receivedNanos[index] != 0) {
+        recordStreamDelay(index);
+      }
+    }
+  }
+
+  /**
+   * Call with every heartbeat received on the stream.
+   *
+   * @return false if the heartbeat was not requested by this monitor.
+   */
+  public synchronized boolean received(String token) {
+    if (token == null || !token.startsWith(tokenPrefix)) {
+      return false;
+    }
+
+    long now = System.nanoTime();
+    receivedCount++;
+    lastReceivedMillis = System.currentTimeMillis();
+    if (lastReceivedNanos != 0) {
+      interval.record(now - lastReceivedNanos);
+    }
+    lastReceivedNanos = now;
+
+    int index = indexOf(token);
+    if (index == -1) {
+      return true;
+    }
+
+    long sequence = pendingSequences[index];
+    lastReceivedSequence = Math.max(lastReceivedSequence, sequence);
+    if (stale && getMissedCount() < staleAfterMissed) {
+      stale = false;
+      System.out.printf("%s: heartbeats resumed%n", name);
+    }
+
+    receivedNanos[index] = now;
+    lastRoundTripNanos = now - sentNanos[index];
+    roundTrip.record(lastRoundTripNanos);
+    if (acknowledgedNanos[index] != 0) {
+      recordStreamDelay(index);
+    }
+    return true;
+  }
+
+  private void recordStreamDelay(int index) {
+    long requestNanos = acknowledgedNanos[index] - sentNanos[index];
+    lastStreamDelayNanos = receivedNanos[index] - sentNanos[index]
+        - requestNanos / 2;
+    streamDelay.record(lastStreamDelayNanos);
+  }
+
+  private void checkStale() {
+    if (!stale && getMissedCount() >= staleAfterMissed) {
+      stale = true;
+      System.out.printf("%s: stream stale, %d heartbeats missed, last "
+          + "received %dms ago%n", name, getMissedCount(),
+          getMillisSinceLastHeartbeat());
+    }
+  }
+
+  /**
+   * @return the slot of a token still being timed, or -1.
+   */
+  private int indexOf(String token) {
+    int start = tokenPrefix.length();
+    int end = token.indexOf('-', start);
+    if (end == -1) {
+      return -1;
+    }
+
+    try {
+      long sequence = Long.parseLong(token.substring(start, end));
+      int index = (int) sequence & PENDING_MASK;
+      return pendingSequences[index] == sequence ? index : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  @Override
+  public long getSentCount() {
+    return sentCount;
+  }
+
+  @Override
+  public long getReceivedCount() {
+    return receivedCount;
+  }
+
+  /**
+   * @return the number of heartbeats sent since the last one received, not
+   *         counting the latest, which may still be on its way.
+   */
+  @Override
+  public long getMissedCount() {
+    return Math.max(0, sentCount - lastReceivedSequence - 1);
+  }
+
+  @Override
+  public boolean isStale() {
+    return stale;
+  }
+
+  @Override
+  public long getMillisSinceLastHeartbeat() {
+    return System.currentTimeMillis() - lastReceivedMillis;
+  }
+
+  @Override
+  public double getLastRoundTripMicros() {
+    return lastRoundTripNanos / 1000.0;
+  }
+
+  @Override
+  public double getLastStreamDelayMicros() {
+    return lastStreamDelayNanos / 1000.0;
+  }
+
+  /**
+   * Registers the monitor as an MBean named
+   * <code>com.lmax.latency:type=heartbeat,name=&lt;name&gt;</code>, and each
+   * of its histograms alongside it.
+   */
+  public synchronized void registerMBeans() {
+    MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+
+    register(mbs, name, this, HeartbeatMonitorMBean.class);
+    for (LatencyHistogram histogram : new LatencyHistogram[] { roundTrip,
+        streamDelay, interval }) {
+      register(mbs, histogram.getName(), histogram,
+          LatencyHistogramMBean.class);
+    }
+  }
+
+  public synchronized void unregisterMBeans() {
+    MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+
+    for (ObjectName objectName : objectNames) {
+      try {
+        mbs.unregisterMBean(objectName);
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+    objectNames.clear();
+  }
+
+  private <T> void register(MBeanServer mbs, String mbeanName, T mbean,
+      Class<T> mbeanInterface) {
+    try {
+      ObjectName objectName = new ObjectName(
+          "com.lmax.latency:type=heartbeat,name=" + mbeanName);
+      mbs.registerMBean(new StandardMBean(mbean, mbeanInterface), objectName);
+      objectNames.add(objectName);
+    } catch (Exception e) {
+      System.err.println("Unable to register heartbeat MBean: " + mbeanName);
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package com.lmax.api;
+
+public interface HeartbeatMonitorMBean {
+  long getSentCount();
+
+  long getReceivedCount();
+
+  long getMissedCount();
+
+  boolean isStale();
+
+  long getMillisSinceLastHeartbeat();
+
+  double getLastRoundTripMicros();
+
+  double getLastStreamDelayMicros();
+}
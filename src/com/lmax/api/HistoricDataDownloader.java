@@ -0,0 +1,360 @@
+package com.lmax.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Downloads the files of historic market data requests into a
+ * {@link HistoricDataStore}, several at once. Each file is decompressed and
+ * parsed as it streams in, straight from bytes into fixed point longs, with
+ * buffers each download thread allocates once and reuses.
+ * <p>
+ * The CSV files are expected to start with a header naming their columns,
+ * and each row with an epoch millisecond timestamp; the price columns are
+ * found by the header containing OPEN, HIGH, LOW and CLOSE. Without a
+ * header the columns are taken to be timestamp, open, high, low and close.
+ * Rows that cannot be parsed are skipped.
+ * <p>
+ * HttpURLConnection keeps <code>http.maxConnections</code> (5 by default) idle
+ * connections per host, so set it to at least the parallelism.
+ */
+public class HistoricDataDownloader {
+  private static final int READ_BUFFER_SIZE = 256 * 1024;
+  private static final int ROWS_PER_FLUSH = 8192;
+  private static final int MAX_FIELDS = 64;
+  private static final int DECIMAL_PLACES = 6;
+  private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L,
+      100000L, 1000000L };
+
+  private final Session session;
+  private final HistoricDataStore store;
+  private final ExecutorService executor;
+  private final ThreadLocal<Decoder> decoders = new ThreadLocal<Decoder>() {
+    @Override
+    protected Decoder initialValue() {
+      return new Decoder();
+    }
+  };
+
+  /**
+   * @param parallelism
+   *          number of files downloaded at once.
+   */
+  public HistoricDataDownloader(Session session, HistoricDataStore store,
+      int parallelism) {
+    this.session = session;
+    this.store = store;
+    this.executor = Executors.newFixedThreadPool(parallelism,
+        new ThreadFactory() {
+          private int count = 0;
+
+          @Override
+          public synchronized Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "historic-download-"
+                + count++);
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Queues the files of a request for download, returning straight away. The
+   * callback is called once, from a download thread, when every file has been
+   * stored, or with the first failure once the rest have finished.
+   */
+  public void download(long instructionId, List<URL> urls, Callback callback) {
+    if (urls.isEmpty()) {
+      callback.onSuccess();
+      return;
+    }
+
+    Batch batch = new Batch(urls.size(), callback);
+    for (int segment = 0; segment < urls.size(); segment++) {
+      executor.execute(new Download(instructionId, segment, urls.get(segment),
+          batch));
+    }
+  }
+
+  /**
+   * Stops the download threads once the queued downloads have finished.
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  private static final class Batch {
+    private final AtomicInteger remaining;
+    private final Callback callback;
+    private volatile FailureResponse failureResponse;
+
+    public Batch(int count, Callback callback) {
+      this.remaining = new AtomicInteger(count);
+      this.callback = callback;
+    }
+
+    public void completed(FailureResponse failure) {
+      if (failure != null && failureResponse == null) {
+        failureResponse = failure;
+      }
+
+      if (remaining.decrementAndGet() == 0) {
+        if (failureResponse == null) {
+          callback.onSuccess();
+        } else {
+          callback.onFailure(failureResponse);
+        }
+      }
+    }
+  }
+
+  private final class Download implements Runnable, UrlCallback {
+    private final long instructionId;
+    private final int segment;
+    private final URL url;
+    private final Batch batch;
+    private FailureResponse failureResponse;
+
+    public Download(long instructionId, int segment, URL url, Batch batch) {
+      this.instructionId = instructionId;
+      this.segment = segment;
+      this.url = url;
+      this.batch = batch;
+    }
+
+    @Override
+    public void run() {
+      try {
+        session.openUrl(url, this);
+      } catch (RuntimeException e) {
+        failureResponse = new FailureResponse(e);
+      }
+      batch.completed(failureResponse);
+    }
+
+    @Override
+    public void onSuccess(URL url, InputStream inputStream) {
+      Decoder decoder = decoders.get();
+      try {
+        decoder.writer.open(store, instructionId, segment);
+        try {
+          decoder.decode(new GZIPInputStream(inputStream, READ_BUFFER_SIZE));
+        } finally {
+          decoder.writer.close();
+        }
+        System.out.printf("Stored %s: %d rows, %d skipped%n", url,
+            decoder.rowCount, decoder.skippedCount);
+      } catch (IOException e) {
+        failureResponse = new FailureResponse(e);
+      } finally {
+        try {
+          inputStream.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+
+    @Override
+    public void onFailure(FailureResponse failureResponse) {
+      this.failureResponse = failureResponse;
+    }
+  }
+
+  /**
+   * Parses CSV bytes into rows of columns. One per download thread.
+   */
+  private static final class Decoder {
+    private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+    private final HistoricDataStore.ColumnWriter writer =
+        new HistoricDataStore.ColumnWriter(ROWS_PER_FLUSH);
+    private final int[] fieldColumns = new int[MAX_FIELDS];
+    private final long[] row = new long[HistoricDataStore.COLUMN_COUNT];
+    private final StringBuilder header = new StringBuilder();
+
+    private boolean atStart;
+    private boolean inHeader;
+    private int field;
+    private long value;
+    private int decimals;
+    private boolean negative;
+    private boolean hasDigits;
+    private boolean rowValid;
+    private long rowCount;
+    private long skippedCount;
+
+    public void decode(InputStream in) throws IOException {
+      atStart = true;
+      inHeader = false;
+      rowCount = 0;
+      skippedCount = 0;
+      useDefaultColumns();
+      startRow();
+
+      int length;
+      while ((length = in.read(buffer)) != -1) {
+        for (int i = 0; i < length; i++) {
+          parse(buffer[i]);
+        }
+      }
+
+      if (field > 0 || hasDigits) {
+        endField();
+        endRow();
+      }
+    }
+
+    private void parse(byte b) throws IOException {
+      if (atStart) {
+        atStart = false;
+        inHeader = b < '0' || b > '9';
+      }
+
+      if (inHeader) {
+        if (b == '\n') {
+          inHeader = false;
+          useHeaderColumns();
+        } else if (b != '\r') {
+          header.append((char) b);
+        }
+        return;
+      }
+
+      switch (b) {
+        case ',':
+          endField();
+          break;
+
+        case '\n':
+          endField();
+          endRow();
+          break;
+
+        case '\r':
+          break;
+
+        case '-':
+          // A sign only leads a field.
+          if (hasDigits || negative || decimals >= 0) {
+            rowValid = false;
+          } else {
+            negative = true;
+          }
+          break;
+
+        case '.':
+          // Only one decimal point per field.
+          if (decimals >= 0) {
+            rowValid = false;
+          } else {
+            decimals = 0;
+          }
+          break;
+
+        default:
+          if (b >= '0' && b <= '9') {
+            if (decimals < 0) {
+              value = value * 10 + (b - '0');
+            } else if (decimals < DECIMAL_PLACES) {
+              value = value * 10 + (b - '0');
+              decimals++;
+            }
+            hasDigits = true;
+          } else {
+            rowValid = false;
+          }
+      }
+    }
+
+    private void endField() {
+      if (field < MAX_FIELDS && fieldColumns[field] >= 0) {
+        int column = fieldColumns[field];
+        if (!hasDigits) {
+          row[column] = HistoricDataStore.NO_VALUE;
+        } else if (column == HistoricDataStore.TIMESTAMP) {
+          row[column] = decimals < 0 ? value : HistoricDataStore.NO_VALUE;
+        } else {
+          long fixed = value
+              * POWERS_OF_TEN[DECIMAL_PLACES - Math.max(decimals, 0)];
+          row[column] = negative ? -fixed : fixed;
+        }
+      }
+
+      field++;
+      value = 0;
+      decimals = -1;
+      negative = false;
+      hasDigits = false;
+    }
+
+    private void endRow() throws IOException {
+      if (field > 1) {
+        if (rowValid
+            && row[HistoricDataStore.TIMESTAMP] != HistoricDataStore.NO_VALUE) {
+          writer.append(row);
+          rowCount++;
+        } else {
+          skippedCount++;
+        }
+      }
+      startRow();
+    }
+
+    private void startRow() {
+      Arrays.fill(row, HistoricDataStore.NO_VALUE);
+      field = 0;
+      value = 0;
+      decimals = -1;
+      negative = false;
+      hasDigits = false;
+      rowValid = true;
+    }
+
+    private void useDefaultColumns() {
+      Arrays.fill(fieldColumns, -1);
+      for (int column = 0; column < HistoricDataStore.COLUMN_COUNT; column++) {
+        fieldColumns[column] = column;
+      }
+    }
+
+    private void useHeaderColumns() {
+      String[] names = header.toString().toUpperCase().split(",");
+      header.setLength(0);
+
+      Arrays.fill(fieldColumns, -1);
+      fieldColumns[0] = HistoricDataStore.TIMESTAMP;
+      for (int i = 1; i < names.length && i < MAX_FIELDS; i++) {
+        fieldColumns[i] = columnOf(names[i]);
+      }
+    }
+
+    private int columnOf(String name) {
+      int column = -1;
+      if (name.contains("OPEN")) {
+        column = HistoricDataStore.OPEN;
+      } else if (name.contains("HIGH")) {
+        column = HistoricDataStore.HIGH;
+      } else if (name.contains("LOW")) {
+        column = HistoricDataStore.LOW;
+      } else if (name.contains("CLOSE")) {
+        column = HistoricDataStore.CLOSE;
+      }
+
+      // Only the first column of each kind is kept.
+      for (int i = 0; i < MAX_FIELDS && column >= 0; i++) {
+        if (fieldColumns[i] == column) {
+          return -1;
+        }
+      }
+      return column;
+    }
+  }
+}
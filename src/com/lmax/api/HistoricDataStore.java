@@ -0,0 +1,143 @@
+package com.lmax.api;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stores aggregated historic prices as columns of longs on disk, one file per
+ * column, so a single column can be mapped and scanned without reading the
+ * others. Prices are fixed point, as {@link FixedPointNumber#longValue()};
+ * missing values are {@link #NO_VALUE}.
+ * <p>
+ * Each downloaded file becomes a segment of its request, laid out as
+ * <code>&lt;root&gt;/&lt;instructionId&gt;/&lt;segment&gt;.&lt;column&gt;</code>.
+ */
+public class HistoricDataStore {
+  public static final int TIMESTAMP = 0;
+  public static final int OPEN = 1;
+  public static final int HIGH = 2;
+  public static final int LOW = 3;
+  public static final int CLOSE = 4;
+  public static final int COLUMN_COUNT = 5;
+
+  public static final long NO_VALUE = Long.MIN_VALUE;
+
+  private static final String[] COLUMN_NAMES = { "timestamp", "open", "high",
+      "low", "close" };
+
+  private final File root;
+
+  public HistoricDataStore(File root) {
+    this.root = root;
+  }
+
+  public File getDirectory(long instructionId) {
+    return new File(root, Long.toString(instructionId));
+  }
+
+  public File getColumnFile(long instructionId, int segment, int column) {
+    return new File(getDirectory(instructionId), segment + "."
+        + COLUMN_NAMES[column]);
+  }
+
+  /**
+   * @return the number of segments stored for the request, assuming they are
+   *         numbered from 0 without gaps.
+   */
+  public int getSegmentCount(long instructionId) {
+    int segment = 0;
+    while (getColumnFile(instructionId, segment, TIMESTAMP).exists()) {
+      segment++;
+    }
+    return segment;
+  }
+
+  /**
+   * Maps a column read only. The mapping stays valid after the file is
+   * closed, until it is garbage collected.
+   */
+  public LongBuffer readColumn(long instructionId, int segment, int column)
+      throws IOException {
+    RandomAccessFile file = new RandomAccessFile(getColumnFile(instructionId,
+        segment, column), "r");
+    try {
+      FileChannel channel = file.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+          .asLongBuffer();
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Writes the columns of a segment through buffers allocated once, so one
+   * writer can be reused for every segment a thread writes.
+   */
+  public static final class ColumnWriter {
+    private final ByteBuffer[] buffers = new ByteBuffer[COLUMN_COUNT];
+    private final FileChannel[] channels = new FileChannel[COLUMN_COUNT];
+    private final FileOutputStream[] outputs =
+        new FileOutputStream[COLUMN_COUNT];
+
+    public ColumnWriter(int rowsPerFlush) {
+      for (int column = 0; column < COLUMN_COUNT; column++) {
+        buffers[column] = ByteBuffer.allocateDirect(rowsPerFlush * 8);
+      }
+    }
+
+    public void open(HistoricDataStore store, long instructionId, int segment)
+        throws IOException {
+      File directory = store.getDirectory(instructionId);
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Unable to create " + directory);
+      }
+
+      for (int column = 0; column < COLUMN_COUNT; column++) {
+        outputs[column] = new FileOutputStream(store.getColumnFile(
+            instructionId, segment, column));
+        channels[column] = outputs[column].getChannel();
+        buffers[column].clear();
+      }
+    }
+
+    public void append(long[] row) throws IOException {
+      if (buffers[0].remaining() < 8) {
+        flush();
+      }
+
+      for (int column = 0; column < COLUMN_COUNT; column++) {
+        buffers[column].putLong(row[column]);
+      }
+    }
+
+    public void close() throws IOException {
+      try {
+        flush();
+      } finally {
+        for (int column = 0; column < COLUMN_COUNT; column++) {
+          if (outputs[column] != null) {
+            outputs[column].close();
+            outputs[column] = null;
+            channels[column] = null;
+          }
+        }
+      }
+    }
+
+    private void flush() throws IOException {
+      for (int column = 0; column < COLUMN_COUNT; column++) {
+        ByteBuffer buffer = buffers[column];
+        buffer.flip();
+        while (buffer.hasRemaining() && channels[column] != null) {
+          channels[column].write(buffer);
+        }
+        buffer.clear();
+      }
+    }
+  }
+}
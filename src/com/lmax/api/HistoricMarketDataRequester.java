@@ -1,15 +1,12 @@
 package com.lmax.api;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.TimeUnit;
 
 import com.lmax.api.account.LoginCallback;
 import com.lmax.api.account.LoginRequest;
@@ -19,8 +16,6 @@ import com.lmax.api.marketdata.HistoricMarketDataSubscriptionRequest;
 import com.lmax.api.orderbook.HistoricMarketDataEvent;
 import com.lmax.api.orderbook.HistoricMarketDataEventListener;
 import com.lmax.api.orderbook.Instrument;
-import com.lmax.api.orderbook.SearchInstrumentCallback;
-import com.lmax.api.orderbook.SearchInstrumentRequest;
 
 /**
  * Demonstrates how to request historic market data and read data contained in
@@ -28,107 +23,124 @@ import com.lmax.api.orderbook.SearchInstrumentRequest;
  */
 public class HistoricMarketDataRequester implements LoginCallback,
     HistoricMarketDataEventListener {
+  private static final int SEARCH_THREADS = 4;
+  private static final int DOWNLOAD_THREADS = 4;
+  private static final int REQUEST_THREADS = 4;
+  private static final double REQUESTS_PER_SECOND = 10;
+  private static final int MAX_REQUEST_ATTEMPTS = 5;
+  private static final long INITIAL_BACKOFF_MILLIS = 1000;
+  private static final long MAX_BACKOFF_MILLIS = 60000;
+  private static final long EVENT_TIMEOUT_MILLIS = TimeUnit.MINUTES
+      .toMillis(5);
+  private static final long CHUNK_MILLIS = TimeUnit.DAYS.toMillis(365);
+
   private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+  private final File dataDirectory = new File(
+      System.getProperty("java.io.tmpdir"), "lmax-historic");
+  private final InstrumentCatalogue instrumentCatalogue;
+  private final ListenerTimer listenerTimer = new ListenerTimer();
+  private final HistoricDataStore store = new HistoricDataStore(dataDirectory);
+  private HistoricDataDownloader downloader;
+  private HistoricRequestScheduler scheduler;
   private Session session;
 
-  void getAllInstruments(final Session s, final List<Instrument> i, long o) {
-    s.searchInstruments(new SearchInstrumentRequest("", o),
-        new SearchInstrumentCallback() {
-          @Override
-          public void onSuccess(List<Instrument> instruments,
-              boolean hasMoreResults) {
-            i.addAll(instruments);
-            if (hasMoreResults) {
-              getAllInstruments(s, i, instruments.get(instruments.size() - 1)
-                  .getId());
-            }
-          }
-
-          @Override
-          public void onFailure(FailureResponse failureResponse) {
-            failureResponse.getException().printStackTrace();
-          }
-        });
+  public HistoricMarketDataRequester(LoginRequest.ProductType productType) {
+    this.instrumentCatalogue = new InstrumentCatalogue(
+        InstrumentCatalogue.defaultFile(productType), SEARCH_THREADS);
   }
 
   @Override
   public void onLoginSuccess(final Session session) {
-    final List<Instrument> instruments = new ArrayList<Instrument>();
-
     this.session = session;
-    getAllInstruments(session, instruments, 0);
-    session.registerHistoricMarketDataEventListener(this);
-    for (final Instrument i : instruments) {
-      session.subscribe(new HistoricMarketDataSubscriptionRequest(),
-          new Callback() {
-            public void onSuccess() {
-              // Request historic top of book price data
-              // final HistoricMarketDataRequest request = new
-              // TopOfBookHistoricMarketDataRequest(
-              // instructionId, instrumentId, toDate("1995-06-23"),
-              // toDate("2012-06-23"), HistoricMarketDataRequest.Format.CSV);
-              // Request historic aggregate price data
-              final HistoricMarketDataRequest request = new AggregateHistoricMarketDataRequest(
-                  i.getId(), i.getId(), toDate("1995-09-30"),
-                  toDate("2012-06-23"), HistoricMarketDataRequest.Format.CSV,
-                  HistoricMarketDataRequest.Resolution.MINUTE,
-                  AggregateHistoricMarketDataRequest.Option.ASK);
-              session.requestHistoricMarketData(request, new Callback() {
-                public void onSuccess() {
-                  // Successful request - will be asynchronously notified when
-                  // files are ready for download.
-                }
-
-                public void onFailure(final FailureResponse failureResponse) {
-                  System.err.printf(
-                      "Failed to request historic market data: %s%n",
-                      failureResponse);
-                }
-              });
-            }
-
-            public void onFailure(final FailureResponse failureResponse) {
-              System.err.printf("Failed to subscribe: %s%n", failureResponse);
-            }
-          });
-    }
-    session.start();
-  }
+    this.downloader = new HistoricDataDownloader(session, store,
+        DOWNLOAD_THREADS);
+    this.scheduler = new HistoricRequestScheduler(session,
+        new HistoricRequestScheduler.RequestFactory() {
+          @Override
+          public HistoricMarketDataRequest create(long instructionId,
+              long instrumentId, Date from, Date to) {
+            // Request historic top of book price data
+            // return new TopOfBookHistoricMarketDataRequest(instructionId,
+            // instrumentId, from, to, HistoricMarketDataRequest.Format.CSV);
+            // Request historic aggregate price data
+            return new AggregateHistoricMarketDataRequest(instructionId,
+                instrumentId, from, to, HistoricMarketDataRequest.Format.CSV,
+                HistoricMarketDataRequest.Resolution.MINUTE,
+                AggregateHistoricMarketDataRequest.Option.ASK);
+          }
+        }, REQUEST_THREADS, REQUESTS_PER_SECOND, MAX_REQUEST_ATTEMPTS,
+        INITIAL_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS, EVENT_TIMEOUT_MILLIS,
+        new File(dataDirectory, "checkpoint"));
+
+    instrumentCatalogue.loadOrRefresh(session);
+    session.registerHistoricMarketDataEventListener(listenerTimer
+        .forHistoricMarketDataEvents(this));
+    listenerTimer.registerMBeans();
+    session.subscribe(new HistoricMarketDataSubscriptionRequest(),
+        new Callback() {
+          public void onSuccess() {
+          }
 
-  @Override
-  public void notify(final HistoricMarketDataEvent historicMarketDataEvent) {
-    // Open and process urls
-    for (final URL url : historicMarketDataEvent.getUrls()) {
-      System.out.println("Opening url: " + url);
-      session.openUrl(url, new UrlCallback() {
-        public void onSuccess(final URL url, final InputStream inputStream) {
-           printCompressedFileContents(inputStream);
+          public void onFailure(final FailureResponse failureResponse) {
+            throw new RuntimeException("Failed to subscribe: "
+                + failureResponse);
+          }
+        });
+
+    try {
+      dataDirectory.mkdirs();
+      scheduler.start(new Callback() {
+        public void onSuccess() {
+          // The sample is done once every request's files are stored.
+          session.stop();
         }
 
         public void onFailure(final FailureResponse failureResponse) {
-          System.err.printf("Failed to open url: %s%n", failureResponse);
+          System.err.println(failureResponse);
+          session.stop();
         }
       });
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to read checkpoint", e);
+    }
+
+    Date from = toDate("1995-09-30");
+    Date to = toDate("2012-06-23");
+    int scheduled = 0;
+    for (final Instrument i : instrumentCatalogue.getInstruments()) {
+      scheduled += scheduler.schedule(i.getId(), from, to, CHUNK_MILLIS);
+    }
+    scheduler.allScheduled();
+
+    if (scheduled == 0) {
+      System.out.println("No historic market data left to request");
+    } else {
+      session.start();
     }
-    // The sample is done. Stop the session.
-    session.stop();
+
+    scheduler.stop();
+    downloader.shutdown();
   }
 
-  private void printCompressedFileContents(
-      final InputStream compressedInputStream) {
-    try {
-      byte[] buffer = new byte[1024];
-      final GZIPInputStream decompressedInputStream = new GZIPInputStream(
-          compressedInputStream);
-      int numBytes = decompressedInputStream.read(buffer);
-      while (numBytes != -1) {
-        System.out.print(new String(buffer, 0, numBytes));
-        numBytes = decompressedInputStream.read(buffer);
-      }
-    } catch (IOException e) {
-      throw new RuntimeException("Unable to print compressed file contents", e);
+  @Override
+  public void notify(final HistoricMarketDataEvent historicMarketDataEvent) {
+    final long instructionId = historicMarketDataEvent.getInstructionId();
+    if (!scheduler.received(instructionId)) {
+      return;
     }
 
+    downloader.download(instructionId, historicMarketDataEvent.getUrls(),
+        new Callback() {
+          public void onSuccess() {
+            System.out.printf("Stored historic market data for: %d in %s%n",
+                instructionId, store.getDirectory(instructionId));
+            scheduler.completed(instructionId);
+          }
+
+          public void onFailure(final FailureResponse failureResponse) {
+            scheduler.failed(instructionId, failureResponse);
+          }
+        });
   }
 
   private Date toDate(final String string) {
@@ -159,7 +171,8 @@ public class HistoricMarketDataRequester implements LoginCallback,
         .valueOf(args[3].toUpperCase());
 
     LmaxApi lmaxApi = new LmaxApi(url);
-    HistoricMarketDataRequester marketDataRequester = new HistoricMarketDataRequester();
+    HistoricMarketDataRequester marketDataRequester =
+        new HistoricMarketDataRequester(productType);
 
     lmaxApi.login(new LoginRequest(username, password, productType),
         marketDataRequester);
@@ -0,0 +1,369 @@
+package com.lmax.api;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.lmax.api.marketdata.HistoricMarketDataRequest;
+
+/**
+ * Issues historic market data requests from a pool of threads, at no more
+ * than a set rate, retrying failures with exponential backoff.
+ * <p>
+ * Each instrument's date range is split into chunks, requested separately
+ * with the instructionId <code>instrumentId * 10000 + chunk</code>. A chunk
+ * is outstanding from being requested until its files are reported
+ * {@link #completed(long)} or {@link #failed(long, FailureResponse)}, the
+ * latter requesting it again. A chunk whose HistoricMarketDataEvent has not
+ * been {@link #received(long)} in time after its request was acknowledged is
+ * requested again too, so a lost event cannot hold up the run. Completed
+ * chunks are appended to a checkpoint
+ * file and skipped when the same range is scheduled again, so an interrupted
+ * backfill picks up where it left off.
+ */
+public class HistoricRequestScheduler {
+  private static final long CHUNKS_PER_INSTRUMENT = 10000;
+
+  /**
+   * Creates the request for a chunk of an instrument's date range.
+   */
+  public interface RequestFactory {
+    HistoricMarketDataRequest create(long instructionId, long instrumentId,
+        Date from, Date to);
+  }
+
+  private final Session session;
+  private final RequestFactory requestFactory;
+  private final RateLimiter rateLimiter;
+  private final ScheduledExecutorService executor;
+  private final int maxAttempts;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private final long eventTimeoutMillis;
+  private final File checkpointFile;
+  private final Set<String> checkpoint = new HashSet<String>();
+  private final ConcurrentMap<Long, Chunk> outstanding =
+      new ConcurrentHashMap<Long, Chunk>();
+  private final AtomicInteger pendingCount = new AtomicInteger();
+  private final AtomicInteger abandonedCount = new AtomicInteger();
+  private Writer checkpointWriter;
+  private Callback callback;
+
+  /**
+   * @param concurrency
+   *          requests sent at once.
+   * @param requestsPerSecond
+   *          the rate requests are sent at, including retries.
+   * @param maxAttempts
+   *          times a chunk is requested before it is given up on.
+   * @param eventTimeoutMillis
+   *          how long to wait for a request's HistoricMarketDataEvent once it
+   *          has been acknowledged, before requesting it again.
+   */
+  public HistoricRequestScheduler(Session session,
+      RequestFactory requestFactory, int concurrency,
+      double requestsPerSecond, int maxAttempts, long initialBackoffMillis,
+      long maxBackoffMillis, long eventTimeoutMillis, File checkpointFile) {
+    this.session = session;
+    this.requestFactory = requestFactory;
+    this.rateLimiter = new RateLimiter(requestsPerSecond, concurrency);
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.eventTimeoutMillis = eventTimeoutMillis;
+    this.checkpointFile = checkpointFile;
+    this.executor = Executors.newScheduledThreadPool(concurrency,
+        new ThreadFactory() {
+          private int count = 0;
+
+          @Override
+          public synchronized Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "historic-request-"
+                + count++);
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Reads the checkpoint and opens it for appending. Must be called before
+   * anything is scheduled.
+   *
+   * @param callback
+   *          told once {@link #allScheduled()} has been called and every
+   *          scheduled chunk has completed, or failed if any were given up on.
+   */
+  public void start(Callback callback) throws IOException {
+    this.callback = callback;
+    // Held until allScheduled, so early completions cannot finish the run.
+    pendingCount.set(1);
+
+    if (checkpointFile.exists()) {
+      BufferedReader reader = new BufferedReader(new FileReader(
+          checkpointFile));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          checkpoint.add(line.trim());
+        }
+      } finally {
+        reader.close();
+      }
+    }
+
+    checkpointWriter = new FileWriter(checkpointFile, true);
+  }
+
+  /**
+   * Schedules requests for the instrument's data between the dates, split
+   * into chunks, leaving out the chunks already in the checkpoint.
+   *
+   * @return the number of chunks scheduled.
+   */
+  public int schedule(long instrumentId, Date from, Date to, long chunkMillis) {
+    int scheduled = 0;
+    int index = 0;
+    long last = to.getTime();
+    for (long start = from.getTime(); start < last; start += chunkMillis) {
+      long end = Math.min(start + chunkMillis, last);
+      Chunk chunk = new Chunk(instrumentId * CHUNKS_PER_INSTRUMENT + index++,
+          instrumentId, start, end);
+
+      if (checkpoint.contains(chunk.key)) {
+        continue;
+      }
+
+      pendingCount.incrementAndGet();
+      executor.execute(new Attempt(chunk));
+      scheduled++;
+    }
+    return scheduled;
+  }
+
+  /**
+   * Marks the end of scheduling, after which the callback is told once the
+   * scheduled chunks are done, or straight away if there are none.
+   */
+  public void allScheduled() {
+    finished();
+  }
+
+  public boolean isOutstanding(long instructionId) {
+    return outstanding.containsKey(instructionId);
+  }
+
+  /**
+   * Records that a request's HistoricMarketDataEvent has arrived, so it is no
+   * longer timed out while its files are fetched.
+   *
+   * @return false if the request is not outstanding, and the event should be
+   *         ignored.
+   */
+  public boolean received(long instructionId) {
+    Chunk chunk = outstanding.get(instructionId);
+    if (chunk == null) {
+      return false;
+    }
+
+    synchronized (chunk) {
+      if (outstanding.get(instructionId) != chunk) {
+        return false;
+      }
+      chunk.eventReceived = true;
+      return true;
+    }
+  }
+
+  /**
+   * @return the instruments with requests waiting on their
+   *         HistoricMarketDataEvent or its files.
+   */
+  public Set<Long> getOutstandingInstruments() {
+    Set<Long> instruments = new TreeSet<Long>();
+    for (Chunk chunk : outstanding.values()) {
+      instruments.add(chunk.instrumentId);
+    }
+    return instruments;
+  }
+
+  public int getPendingCount() {
+    return pendingCount.get();
+  }
+
+  /**
+   * Records that a request's files have been stored.
+   */
+  public void completed(long instructionId) {
+    Chunk chunk = outstanding.remove(instructionId);
+    if (chunk == null) {
+      return;
+    }
+
+    synchronized (this) {
+      try {
+        checkpointWriter.write(chunk.key);
+        checkpointWriter.write('\n');
+        checkpointWriter.flush();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    finished();
+  }
+
+  /**
+   * Records that a request's files could not be stored, and requests it
+   * again.
+   */
+  public void failed(long instructionId, FailureResponse failureResponse) {
+    Chunk chunk = outstanding.remove(instructionId);
+    if (chunk != null) {
+      retry(chunk, failureResponse);
+    }
+  }
+
+  /**
+   * Stops sending requests and closes the checkpoint.
+   */
+  public synchronized void stop() {
+    executor.shutdownNow();
+    try {
+      if (checkpointWriter != null) {
+        checkpointWriter.close();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void retry(Chunk chunk, FailureResponse failureResponse) {
+    int attempts;
+    synchronized (chunk) {
+      attempts = ++chunk.attempts;
+    }
+    if (attempts >= maxAttempts) {
+      System.err.printf("Giving up on historic market data for %d: %s%n",
+          chunk.instructionId, failureResponse);
+      abandonedCount.incrementAndGet();
+      finished();
+      return;
+    }
+
+    long backoff = Math.min(initialBackoffMillis << (attempts - 1),
+        maxBackoffMillis);
+    System.err.printf("Retrying %d in %dms: %s%n", chunk.instructionId,
+        backoff, failureResponse);
+    executor.schedule(new Attempt(chunk), backoff, TimeUnit.MILLISECONDS);
+  }
+
+  private void finished() {
+    if (pendingCount.decrementAndGet() == 0 && callback != null) {
+      if (abandonedCount.get() == 0) {
+        callback.onSuccess();
+      } else {
+        callback.onFailure(new FailureResponse(false, abandonedCount.get()
+            + " historic market data requests failed"));
+      }
+    }
+  }
+
+  private void expire(Chunk chunk, int attempt) {
+    boolean expired;
+    synchronized (chunk) {
+      // Stale if the event arrived, or the chunk has been requested again.
+      expired = !chunk.eventReceived && chunk.attempts == attempt
+          && outstanding.remove(chunk.instructionId, chunk);
+    }
+
+    if (expired) {
+      retry(chunk, new FailureResponse(false,
+          "No historic market data event within " + eventTimeoutMillis
+              + "ms"));
+    }
+  }
+
+  private static final class Chunk {
+    private final long instructionId;
+    private final long instrumentId;
+    private final long from;
+    private final long to;
+    private final String key;
+    // Guarded by the chunk.
+    private int attempts = 0;
+    private boolean eventReceived = false;
+
+    public Chunk(long instructionId, long instrumentId, long from, long to) {
+      this.instructionId = instructionId;
+      this.instrumentId = instrumentId;
+      this.from = from;
+      this.to = to;
+      this.key = instrumentId + " " + from + " " + to;
+    }
+  }
+
+  private final class Attempt implements Runnable, Callback {
+    private final Chunk chunk;
+
+    public Attempt(Chunk chunk) {
+      this.chunk = chunk;
+    }
+
+    @Override
+    public void run() {
+      try {
+        rateLimiter.acquire();
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      synchronized (chunk) {
+        chunk.eventReceived = false;
+        outstanding.put(chunk.instructionId, chunk);
+      }
+      try {
+        session.requestHistoricMarketData(requestFactory.create(
+            chunk.instructionId, chunk.instrumentId, new Date(chunk.from),
+            new Date(chunk.to)), this);
+      } catch (RuntimeException e) {
+        onFailure(new FailureResponse(e));
+      }
+    }
+
+    @Override
+    public void onSuccess() {
+      // Outstanding until the files arrive, if its event does in time.
+      final int attempt;
+      synchronized (chunk) {
+        attempt = chunk.attempts;
+      }
+      executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          expire(chunk, attempt);
+        }
+      }, eventTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onFailure(FailureResponse failureResponse) {
+      if (outstanding.remove(chunk.instructionId) != null) {
+        retry(chunk, failureResponse);
+      }
+    }
+  }
+}
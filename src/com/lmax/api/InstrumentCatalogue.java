@@ -0,0 +1,489 @@
+package com.lmax.api;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.lmax.api.account.LoginRequest.ProductType;
+import com.lmax.api.internal.orderbook.CalendarInfoImpl;
+import com.lmax.api.internal.orderbook.CommercialInfoImpl;
+import com.lmax.api.internal.orderbook.ContractInfoImpl;
+import com.lmax.api.internal.orderbook.InstrumentImpl;
+import com.lmax.api.internal.orderbook.OrderBookInfoImpl;
+import com.lmax.api.internal.orderbook.RiskInfoImpl;
+import com.lmax.api.internal.orderbook.UnderlyingInfoImpl;
+import com.lmax.api.orderbook.CalendarInfo;
+import com.lmax.api.orderbook.CommercialInfo;
+import com.lmax.api.orderbook.ContractInfo;
+import com.lmax.api.orderbook.DayOfWeek;
+import com.lmax.api.orderbook.Instrument;
+import com.lmax.api.orderbook.OrderBookInfo;
+import com.lmax.api.orderbook.RiskInfo;
+import com.lmax.api.orderbook.SearchInstrumentCallback;
+import com.lmax.api.orderbook.SearchInstrumentRequest;
+import com.lmax.api.orderbook.UnderlyingInfo;
+
+/**
+ * Keeps the instrument metadata returned by
+ * {@link Session#searchInstruments} in a compact binary file, so a client can
+ * start from the instruments it saw last time instead of paging through the
+ * whole search on every login.
+ * <p>
+ * A refresh searches for each of a set of query terms concurrently, paging
+ * through each term's results in turn, and replaces the catalogue with the
+ * union of what was found. The terms between them should match every
+ * instrument wanted; the empty term matches them all. Lookups read an
+ * immutable snapshot, so they never block on a refresh in progress.
+ */
+public class InstrumentCatalogue {
+  private static final int MAGIC = 0x4c4d4943;
+  private static final int VERSION = 1;
+  private static final DayOfWeek[] DAYS_OF_WEEK = DayOfWeek.values();
+  private static final String[] ALL_INSTRUMENTS = { "" };
+
+  private static final Comparator<Instrument> BY_NAME = new Comparator<Instrument>() {
+    @Override
+    public int compare(Instrument o1, Instrument o2) {
+      int result = o1.getName().compareToIgnoreCase(o2.getName());
+      if (result == 0) {
+        result = o1.getId() < o2.getId() ? -1 : o1.getId() == o2.getId() ? 0
+            : 1;
+      }
+      return result;
+    }
+  };
+
+  private final File file;
+  private final ExecutorService searchExecutor;
+  private volatile Snapshot snapshot = new Snapshot(new Instrument[0]);
+
+  /**
+   * @param searchThreads
+   *          number of searches a refresh runs at once.
+   */
+  public InstrumentCatalogue(File file, int searchThreads) {
+    this.file = file;
+    this.searchExecutor = Executors.newFixedThreadPool(searchThreads,
+        new ThreadFactory() {
+          private int count = 0;
+
+          @Override
+          public synchronized Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "instrument-search-"
+                + count++);
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * The default file for a product type's catalogue, in the temporary
+   * directory. Demo and live accounts list different instruments, so they
+   * must not share one.
+   */
+  public static File defaultFile(ProductType productType) {
+    return new File(System.getProperty("java.io.tmpdir"), "lmax-instruments-"
+        + productType.name().toLowerCase() + ".dat");
+  }
+
+  /**
+   * Replaces the catalogue with the contents of its file.
+   *
+   * @return the number of instruments loaded, 0 if the file does not exist or
+   *         cannot be read.
+   */
+  public int load() {
+    if (!file.exists()) {
+      return 0;
+    }
+
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file), 64 * 1024));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          System.err.println("Ignoring instrument catalogue in unknown format: "
+              + file);
+          return 0;
+        }
+
+        Instrument[] instruments = new Instrument[in.readInt()];
+        for (int i = 0; i < instruments.length; i++) {
+          instruments[i] = readInstrument(in);
+        }
+        snapshot = new Snapshot(instruments);
+        return instruments.length;
+      } finally {
+        in.close();
+      }
+    } catch (EOFException e) {
+      System.err.println("Ignoring truncated instrument catalogue: " + file);
+      return 0;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return 0;
+    }
+  }
+
+  /**
+   * Writes the catalogue to its file, replacing the old one only once the new
+   * one is complete.
+   */
+  public void save() throws IOException {
+    Instrument[] instruments = snapshot.byName;
+    File directory = file.getAbsoluteFile().getParentFile();
+    if (directory != null) {
+      directory.mkdirs();
+    }
+
+    File temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(temp), 64 * 1024));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(instruments.length);
+      for (Instrument instrument : instruments) {
+        writeInstrument(out, instrument);
+      }
+    } finally {
+      out.close();
+    }
+
+    if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+      throw new IOException("Unable to replace " + file);
+    }
+  }
+
+  /**
+   * Searches for each of the terms concurrently, or for every instrument if
+   * there are none, and replaces the catalogue with the instruments found,
+   * blocking until done. If any search fails the catalogue is left as it was.
+   *
+   * @return the number of instruments in the catalogue.
+   */
+  public int refresh(Session session, String... terms) {
+    if (terms.length == 0) {
+      terms = ALL_INSTRUMENTS;
+    }
+
+    Map<Long, Instrument> found = new ConcurrentHashMap<Long, Instrument>();
+    List<Future<?>> searches = new ArrayList<Future<?>>(terms.length);
+    for (String term : terms) {
+      searches.add(searchExecutor.submit(new Search(session, term, found)));
+    }
+
+    try {
+      for (Future<?> search : searches) {
+        search.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted refreshing instruments", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Unable to refresh instruments", e.getCause());
+    } finally {
+      for (Future<?> search : searches) {
+        search.cancel(true);
+      }
+    }
+
+    Instrument[] instruments = found.values().toArray(
+        new Instrument[found.size()]);
+    snapshot = new Snapshot(instruments);
+    return instruments.length;
+  }
+
+  /**
+   * Makes the catalogue ready to use as quickly as possible: from memory or
+   * its file if either has any instruments, refreshing it in the background
+   * for next time, otherwise by refreshing and saving it before returning.
+   */
+  public void loadOrRefresh(Session session, String... terms) {
+    if (size() > 0 || load() > 0) {
+      refreshInBackground(session, terms);
+      return;
+    }
+
+    refresh(session, terms);
+    try {
+      save();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Refreshes and saves the catalogue from a daemon thread, leaving the
+   * current contents available in the meantime.
+   */
+  public Thread refreshInBackground(final Session session,
+      final String... terms) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          int count = refresh(session, terms);
+          save();
+          System.out.printf("Refreshed instrument catalogue: %d instruments%n",
+              count);
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    }, "instrument-catalogue-refresh");
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  public int size() {
+    return snapshot.byName.length;
+  }
+
+  /**
+   * @return the instrument, or null if it is not in the catalogue.
+   */
+  public Instrument get(long instrumentId) {
+    return snapshot.byId.get(instrumentId);
+  }
+
+  /**
+   * @return every instrument, ordered by name.
+   */
+  public List<Instrument> getInstruments() {
+    return Collections.unmodifiableList(Arrays.asList(snapshot.byName));
+  }
+
+  /**
+   * @return the instruments whose names start with the prefix, ignoring
+   *         case, ordered by name.
+   */
+  public List<Instrument> search(String prefix) {
+    Instrument[] byName = snapshot.byName;
+
+    int low = 0;
+    int high = byName.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (byName[mid].getName().compareToIgnoreCase(prefix) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+
+    List<Instrument> matches = new ArrayList<Instrument>();
+    for (int i = low; i < byName.length
+        && byName[i].getName().regionMatches(true, 0, prefix, 0,
+            prefix.length()); i++) {
+      matches.add(byName[i]);
+    }
+    return matches;
+  }
+
+  private static final class Search implements Callable<Void> {
+    private final Session session;
+    private final String term;
+    private final Map<Long, Instrument> found;
+    private long offset = 0;
+    private boolean hasMoreResults = true;
+    private FailureResponse failureResponse;
+
+    public Search(Session session, String term, Map<Long, Instrument> found) {
+      this.session = session;
+      this.term = term;
+      this.found = found;
+    }
+
+    @Override
+    public Void call() {
+      while (hasMoreResults && !Thread.currentThread().isInterrupted()) {
+        session.searchInstruments(new SearchInstrumentRequest(term, offset),
+            new SearchInstrumentCallback() {
+              @Override
+              public void onSuccess(List<Instrument> instruments,
+                  boolean hasMore) {
+                for (Instrument instrument : instruments) {
+                  found.put(instrument.getId(), instrument);
+                  offset = instrument.getId();
+                }
+                hasMoreResults = hasMore && !instruments.isEmpty();
+              }
+
+              @Override
+              public void onFailure(FailureResponse failure) {
+                failureResponse = failure;
+                hasMoreResults = false;
+              }
+            });
+      }
+
+      if (failureResponse != null) {
+        throw new RuntimeException("Failed searching for '" + term + "': "
+            + failureResponse);
+      }
+      return null;
+    }
+  }
+
+  private static final class Snapshot {
+    private final Instrument[] byName;
+    private final Map<Long, Instrument> byId;
+
+    public Snapshot(Instrument[] instruments) {
+      Arrays.sort(instruments, BY_NAME);
+      this.byName = instruments;
+      this.byId = new HashMap<Long, Instrument>(instruments.length * 2);
+      for (Instrument instrument : instruments) {
+        byId.put(instrument.getId(), instrument);
+      }
+    }
+  }
+
+  private static void writeInstrument(DataOutputStream out,
+      Instrument instrument) throws IOException {
+    out.writeLong(instrument.getId());
+    writeString(out, instrument.getName());
+
+    UnderlyingInfo underlying = instrument.getUnderlying();
+    writeString(out, underlying.getSymbol());
+    writeString(out, underlying.getIsin());
+    writeString(out, underlying.getAssetClass());
+
+    CalendarInfo calendar = instrument.getCalendar();
+    writeDate(out, calendar.getStartTime());
+    writeDate(out, calendar.getExpiryTime());
+    out.writeInt(calendar.getOpen());
+    out.writeInt(calendar.getClose());
+    writeString(out, calendar.getTimeZone());
+    List<DayOfWeek> tradingDays = calendar.getTradingDays();
+    int days = 0;
+    if (tradingDays != null) {
+      for (DayOfWeek day : tradingDays) {
+        days |= 1 << day.ordinal();
+      }
+    }
+    out.writeByte(days);
+
+    RiskInfo risk = instrument.getRisk();
+    writeNumber(out, risk.getMarginRate());
+    writeNumber(out, risk.getMaximumPosition());
+
+    OrderBookInfo orderBook = instrument.getOrderBook();
+    writeNumber(out, orderBook.getPriceIncrement());
+    writeNumber(out, orderBook.getQuantityIncrement());
+    writeNumber(out, orderBook.getVolatilityBandPercentage());
+
+    ContractInfo contract = instrument.getContract();
+    writeString(out, contract.getCurrency());
+    writeNumber(out, contract.getUnitPrice());
+    writeString(out, contract.getUnitOfMeasure());
+    writeNumber(out, contract.getContractSize());
+
+    CommercialInfo commercial = instrument.getCommercial();
+    writeNumber(out, commercial.getMinimumCommission());
+    writeNumber(out, commercial.getAggressiveCommissionRate());
+    writeNumber(out, commercial.getPassiveCommissionRate());
+    writeNumber(out, commercial.getAggressiveCommissionPerContract());
+    writeNumber(out, commercial.getPassiveCommissionPerContract());
+    writeString(out, commercial.getFundingBaseRate());
+    out.writeInt(commercial.getDailyInterestRateBasis());
+    writeNumber(out, commercial.getFundingRate());
+  }
+
+  private static Instrument readInstrument(DataInputStream in)
+      throws IOException {
+    long id = in.readLong();
+    String name = readString(in);
+
+    UnderlyingInfo underlying = new UnderlyingInfoImpl(readString(in),
+        readString(in), readString(in));
+
+    Date startTime = readDate(in);
+    Date expiryTime = readDate(in);
+    int open = in.readInt();
+    int close = in.readInt();
+    String timeZone = readString(in);
+    int days = in.readByte();
+    List<DayOfWeek> tradingDays = new ArrayList<DayOfWeek>();
+    for (DayOfWeek day : DAYS_OF_WEEK) {
+      if ((days & (1 << day.ordinal())) != 0) {
+        tradingDays.add(day);
+      }
+    }
+    CalendarInfo calendar = new CalendarInfoImpl(startTime, expiryTime, open,
+        close, timeZone, tradingDays);
+
+    RiskInfo risk = new RiskInfoImpl(readNumber(in), readNumber(in));
+    OrderBookInfo orderBook = new OrderBookInfoImpl(readNumber(in),
+        readNumber(in), readNumber(in));
+    ContractInfo contract = new ContractInfoImpl(readString(in),
+        readNumber(in), readString(in), readNumber(in));
+    CommercialInfo commercial = new CommercialInfoImpl(readNumber(in),
+        readNumber(in), readNumber(in), readNumber(in), readNumber(in),
+        readString(in), in.readInt(), readNumber(in));
+
+    return new InstrumentImpl(id, name, underlying, calendar, risk, orderBook,
+        contract, commercial);
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+      throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void writeDate(DataOutputStream out, Date value)
+      throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeLong(value.getTime());
+    }
+  }
+
+  private static Date readDate(DataInputStream in) throws IOException {
+    return in.readBoolean() ? new Date(in.readLong()) : null;
+  }
+
+  private static void writeNumber(DataOutputStream out, FixedPointNumber value)
+      throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeLong(value.longValue());
+    }
+  }
+
+  private static FixedPointNumber readNumber(DataInputStream in)
+      throws IOException {
+    return in.readBoolean() ? FixedPointNumber.valueOf(in.readLong()) : null;
+  }
+}
@@ -9,7 +9,11 @@ public interface InstrumentInfoMBean {
 
   String getBestBid();
 
+  String getBestBidQuantity();
+
   String getBestAsk();
 
+  String getBestAskQuantity();
+
   String getName();
 }
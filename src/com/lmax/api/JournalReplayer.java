@@ -0,0 +1,284 @@
+package com.lmax.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import com.lmax.api.internal.events.ExecutionImpl;
+import com.lmax.api.internal.events.OrderBookEventImpl;
+import com.lmax.api.internal.events.OrderImpl;
+import com.lmax.api.internal.events.PricePointImpl;
+import com.lmax.api.order.Execution;
+import com.lmax.api.order.ExecutionEventListener;
+import com.lmax.api.order.Order;
+import com.lmax.api.order.OrderEventListener;
+import com.lmax.api.order.OrderType;
+import com.lmax.api.orderbook.OrderBookEvent;
+import com.lmax.api.orderbook.OrderBookEventListener;
+import com.lmax.api.orderbook.PricePoint;
+import com.lmax.api.reject.InstructionRejectedEvent;
+import com.lmax.api.reject.InstructionRejectedEventListener;
+
+/**
+ * Plays back the events recorded by an {@link EventJournal} into the same
+ * listeners a {@link Session} would call, either at the speed they were
+ * originally received or as fast as the listeners can take them.
+ */
+public class JournalReplayer {
+  private static final long SPIN_THRESHOLD_NANOS = 100 * 1000;
+  private static final OrderType[] ORDER_TYPES = OrderType.values();
+
+  private final File directory;
+  private OrderBookEventListener orderBookEventListener;
+  private OrderEventListener orderEventListener;
+  private ExecutionEventListener executionEventListener;
+  private InstructionRejectedEventListener instructionRejectedEventListener;
+
+  public JournalReplayer(File directory) {
+    this.directory = directory;
+  }
+
+  public void registerOrderBookEventListener(OrderBookEventListener listener) {
+    this.orderBookEventListener = listener;
+  }
+
+  public void registerOrderEventListener(OrderEventListener listener) {
+    this.orderEventListener = listener;
+  }
+
+  public void registerExecutionEventListener(ExecutionEventListener listener) {
+    this.executionEventListener = listener;
+  }
+
+  public void registerInstructionRejectedEventListener(
+      InstructionRejectedEventListener listener) {
+    this.instructionRejectedEventListener = listener;
+  }
+
+  /**
+   * Replays every segment in the journal directory, in order.
+   *
+   * @param atRecordedSpeed
+   *          true to reproduce the gaps between events as they were received,
+   *          false to deliver them back to back.
+   * @return the number of events replayed.
+   */
+  public long replay(boolean atRecordedSpeed) throws IOException {
+    long count = 0;
+    long firstTimestamp = Long.MIN_VALUE;
+    long startNanos = System.nanoTime();
+
+    int lastIndex = EventJournal.findLastSegmentIndex(directory);
+    for (int index = 1; index <= lastIndex; index++) {
+      File file = EventJournal.segmentFile(directory, index);
+      if (!file.exists()) {
+        continue;
+      }
+
+      MappedByteBuffer segment = map(file);
+      while (segment.remaining() >= EventJournal.HEADER_LENGTH) {
+        int start = segment.position();
+        int length = segment.getInt();
+        if (length == 0) {
+          break;
+        }
+
+        byte type = segment.get();
+        long timestamp = segment.getLong();
+
+        if (atRecordedSpeed) {
+          if (firstTimestamp == Long.MIN_VALUE) {
+            firstTimestamp = timestamp;
+          }
+          waitUntil(startNanos + (timestamp - firstTimestamp));
+        }
+
+        dispatch(type, segment);
+        segment.position(start + length);
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  private void dispatch(byte type, MappedByteBuffer segment) {
+    switch (type) {
+      case EventJournal.ORDER_BOOK:
+        OrderBookEvent orderBookEvent = getOrderBookEvent(segment);
+        if (orderBookEventListener != null) {
+          orderBookEventListener.notify(orderBookEvent);
+        }
+        break;
+
+      case EventJournal.ORDER:
+        Order order = getOrder(segment);
+        if (orderEventListener != null) {
+          orderEventListener.notify(order);
+        }
+        break;
+
+      case EventJournal.EXECUTION:
+        Execution execution = getExecution(segment);
+        if (executionEventListener != null) {
+          executionEventListener.notify(execution);
+        }
+        break;
+
+      case EventJournal.INSTRUCTION_REJECTED:
+        InstructionRejectedEvent instructionRejected = getInstructionRejectedEvent(segment);
+        if (instructionRejectedEventListener != null) {
+          instructionRejectedEventListener.notify(instructionRejected);
+        }
+        break;
+
+      default:
+        throw new IllegalStateException("Unknown event type: " + type);
+    }
+  }
+
+  private static OrderBookEvent getOrderBookEvent(MappedByteBuffer segment) {
+    long instrumentId = segment.getLong();
+    long timestamp = segment.getLong();
+    FixedPointNumber valuationBidPrice = getFixedPointNumber(segment);
+    FixedPointNumber valuationAskPrice = getFixedPointNumber(segment);
+    FixedPointNumber marketClosePrice = getFixedPointNumber(segment);
+    long marketClosePriceTimeStamp = segment.getLong();
+    FixedPointNumber lastTradedPrice = getFixedPointNumber(segment);
+    FixedPointNumber dailyHighestTradedPrice = getFixedPointNumber(segment);
+    FixedPointNumber dailyLowestTradedPrice = getFixedPointNumber(segment);
+    List<PricePoint> bidPrices = getPricePoints(segment);
+    List<PricePoint> askPrices = getPricePoints(segment);
+
+    return new OrderBookEventImpl(instrumentId, valuationBidPrice,
+        valuationAskPrice, bidPrices, askPrices, marketClosePrice,
+        marketClosePriceTimeStamp, lastTradedPrice, dailyHighestTradedPrice,
+        dailyLowestTradedPrice, timestamp);
+  }
+
+  private static Order getOrder(MappedByteBuffer segment) {
+    long instructionId = segment.getLong();
+    long originalInstructionId = segment.getLong();
+    long instrumentId = segment.getLong();
+    long accountId = segment.getLong();
+    OrderType orderType = ORDER_TYPES[segment.get()];
+    FixedPointNumber quantity = getFixedPointNumber(segment);
+    FixedPointNumber filledQuantity = getFixedPointNumber(segment);
+    FixedPointNumber cancelledQuantity = getFixedPointNumber(segment);
+    FixedPointNumber limitPrice = getFixedPointNumber(segment);
+    FixedPointNumber stopReferencePrice = getFixedPointNumber(segment);
+    FixedPointNumber stopLossOffset = getFixedPointNumber(segment);
+    FixedPointNumber stopProfitOffset = getFixedPointNumber(segment);
+    String orderId = getString(segment);
+
+    return new OrderImpl(originalInstructionId, instructionId, orderId,
+        instrumentId, accountId, orderType, quantity, filledQuantity,
+        cancelledQuantity, limitPrice, stopReferencePrice, stopLossOffset,
+        stopProfitOffset);
+  }
+
+  private static Execution getExecution(MappedByteBuffer segment) {
+    long executionId = segment.getLong();
+    FixedPointNumber price = getFixedPointNumber(segment);
+    FixedPointNumber quantity = getFixedPointNumber(segment);
+    FixedPointNumber cancelledQuantity = getFixedPointNumber(segment);
+    Order order = getOrder(segment);
+
+    return new ExecutionImpl(executionId, price, quantity, order,
+        cancelledQuantity);
+  }
+
+  private static InstructionRejectedEvent getInstructionRejectedEvent(
+      MappedByteBuffer segment) {
+    long instructionId = segment.getLong();
+    long accountId = segment.getLong();
+    long instrumentId = segment.getLong();
+    String reason = getString(segment);
+
+    return new InstructionRejectedEvent(instructionId, accountId,
+        instrumentId, reason);
+  }
+
+  private static List<PricePoint> getPricePoints(MappedByteBuffer segment) {
+    int size = segment.getInt();
+    List<PricePoint> pricePoints = new ArrayList<PricePoint>(size);
+    for (int i = 0; i < size; i++) {
+      FixedPointNumber price = FixedPointNumber.valueOf(segment.getLong());
+      FixedPointNumber quantity = FixedPointNumber.valueOf(segment.getLong());
+      pricePoints.add(new PricePointImpl(quantity, price));
+    }
+    return pricePoints;
+  }
+
+  private static FixedPointNumber getFixedPointNumber(MappedByteBuffer segment) {
+    long value = segment.getLong();
+    return value != EventJournal.NULL_VALUE ? FixedPointNumber.valueOf(value)
+        : null;
+  }
+
+  private static String getString(MappedByteBuffer segment) {
+    char[] chars = new char[segment.getShort()];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = segment.getChar();
+    }
+    return new String(chars);
+  }
+
+  private static void waitUntil(long deadline) {
+    long remaining;
+    while ((remaining = deadline - System.nanoTime()) > 0) {
+      if (remaining > SPIN_THRESHOLD_NANOS) {
+        LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+      }
+    }
+  }
+
+  private static MappedByteBuffer map(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      MappedByteBuffer segment = randomAccessFile.getChannel().map(
+          FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+      segment.order(EventJournal.BYTE_ORDER);
+      return segment;
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  /**
+   * Back tests {@link TradeInsideTheSpreadBot} against a recorded journal.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3) {
+      System.out.println("Usage " + JournalReplayer.class.getName()
+          + " <journalDirectory> <instrumentId> <tickSize> [recorded|full]");
+      System.exit(-1);
+    }
+
+    File directory = new File(args[0]);
+    long instrumentId = Long.parseLong(args[1]);
+    FixedPointNumber tickSize = FixedPointNumber.valueOf(args[2]);
+    boolean atRecordedSpeed = args.length > 3 && "recorded".equals(args[3]);
+
+    TradeInsideTheSpreadBot bot = new TradeInsideTheSpreadBot(instrumentId,
+        tickSize);
+    bot.onLoginSuccess(new NoOpSession());
+
+    JournalReplayer replayer = new JournalReplayer(directory);
+    replayer.registerOrderBookEventListener(bot);
+    replayer.registerOrderEventListener(bot);
+    replayer.registerInstructionRejectedEventListener(bot);
+
+    long start = System.nanoTime();
+    long count = replayer.replay(atRecordedSpeed);
+    long elapsed = System.nanoTime() - start;
+
+    System.out.printf("Replayed %d events in %d ms (%.0f events/s)%n", count,
+        elapsed / 1000000, count * 1e9 / elapsed);
+  }
+}
@@ -0,0 +1,267 @@
+package com.lmax.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latencies, in nanoseconds, into log-linear buckets in the style of
+ * HdrHistogram. Values below 256 have a bucket each; above that every power
+ * of two range is split into 128 linear buckets, so any value is reported to
+ * within 1% of what was recorded, whatever its magnitude, from a fixed array
+ * allocated up front.
+ * <p>
+ * Recording never allocates or locks, and must not be concurrent: use one
+ * thread, or serialise the threads that record. Any thread may read, though a
+ * read concurrent with recording may be off by the values being recorded.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+  private static final int SUB_BUCKET_BITS = 8;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int SUB_BUCKET_HALF_BITS = SUB_BUCKET_BITS - 1;
+
+  private static final int TOTAL_COUNT = 0;
+  private static final int TOTAL_SUM = 1;
+  private static final int MIN = 2;
+  private static final int MAX = 3;
+
+  private final String name;
+  private final long highestTrackableValue;
+  private final AtomicLongArray counts;
+  private final AtomicLongArray totals = new AtomicLongArray(4);
+
+  /**
+   * @param highestTrackableValue
+   *          the largest value that can be told apart from larger ones. Larger
+   *          values are counted as this value, though the maximum is still
+   *          reported exactly.
+   */
+  public LatencyHistogram(String name, long highestTrackableValue) {
+    if (highestTrackableValue < SUB_BUCKET_COUNT) {
+      throw new IllegalArgumentException("Highest trackable value too low: "
+          + highestTrackableValue);
+    }
+
+    this.name = name;
+    this.highestTrackableValue = highestTrackableValue;
+    this.counts = new AtomicLongArray(indexOf(highestTrackableValue) + 1);
+    totals.set(MIN, Long.MAX_VALUE);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Records a value. Negative values, such as from a clock that stepped
+   * backwards, are recorded as 0.
+   */
+  public void record(long value) {
+    value = Math.max(0, value);
+    int index = indexOf(Math.min(value, highestTrackableValue));
+
+    counts.lazySet(index, counts.get(index) + 1);
+    totals.lazySet(TOTAL_SUM, totals.get(TOTAL_SUM) + value);
+    if (value < totals.get(MIN)) {
+      totals.lazySet(MIN, value);
+    }
+    if (value > totals.get(MAX)) {
+      totals.lazySet(MAX, value);
+    }
+    totals.lazySet(TOTAL_COUNT, totals.get(TOTAL_COUNT) + 1);
+  }
+
+  /**
+   * Clears the histogram. Anything recorded concurrently may be lost.
+   */
+  @Override
+  public void reset() {
+    for (int i = 0, length = counts.length(); i < length; i++) {
+      counts.lazySet(i, 0);
+    }
+    totals.lazySet(TOTAL_SUM, 0);
+    totals.lazySet(MIN, Long.MAX_VALUE);
+    totals.lazySet(MAX, 0);
+    totals.set(TOTAL_COUNT, 0);
+  }
+
+  /**
+   * Adds the values recorded by another histogram with the same highest
+   * trackable value, as when merging those of several threads.
+   */
+  public void add(LatencyHistogram other) {
+    checkCompatible(other);
+
+    for (int i = 0, length = counts.length(); i < length; i++) {
+      long count = other.counts.get(i);
+      if (count != 0) {
+        counts.lazySet(i, counts.get(i) + count);
+      }
+    }
+    totals.lazySet(TOTAL_SUM,
+        totals.get(TOTAL_SUM) + other.totals.get(TOTAL_SUM));
+    if (other.getCount() != 0) {
+      totals.lazySet(MIN, Math.min(totals.get(MIN), other.totals.get(MIN)));
+      totals.lazySet(MAX, Math.max(totals.get(MAX), other.totals.get(MAX)));
+    }
+    totals.set(TOTAL_COUNT, getCount() + other.getCount());
+  }
+
+  /**
+   * Sets the histogram to the values a histogram recorded between two copies
+   * of it, the earlier taken before the later. The minimum and maximum are
+   * those of the buckets, so within the histogram's precision.
+   */
+  public void setToDifference(LatencyHistogram later,
+      LatencyHistogram earlier) {
+    checkCompatible(later);
+    checkCompatible(earlier);
+
+    long min = Long.MAX_VALUE;
+    long max = 0;
+    for (int i = 0, length = counts.length(); i < length; i++) {
+      long count = later.counts.get(i) - earlier.counts.get(i);
+      counts.lazySet(i, count);
+      if (count > 0) {
+        min = Math.min(min, lowestEquivalentValue(i));
+        max = highestEquivalentValue(i);
+      }
+    }
+    totals.lazySet(TOTAL_SUM,
+        later.totals.get(TOTAL_SUM) - earlier.totals.get(TOTAL_SUM));
+    totals.lazySet(MIN, min);
+    totals.lazySet(MAX, Math.min(max, later.getMaxValue()));
+    totals.set(TOTAL_COUNT, later.getCount() - earlier.getCount());
+  }
+
+  @Override
+  public long getCount() {
+    return totals.get(TOTAL_COUNT);
+  }
+
+  public long getMinValue() {
+    return getCount() == 0 ? 0 : totals.get(MIN);
+  }
+
+  public long getMaxValue() {
+    return totals.get(MAX);
+  }
+
+  /**
+   * The sum of the values recorded.
+   */
+  public long getTotalValue() {
+    return totals.get(TOTAL_SUM);
+  }
+
+  public long getMeanValue() {
+    long count = getCount();
+    return count == 0 ? 0 : totals.get(TOTAL_SUM) / count;
+  }
+
+  /**
+   * @return the highest value that is equivalent, to within the histogram's
+   *         precision, to the value the given percentage of recorded values
+   *         are at or below.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long count = getCount();
+    if (count == 0) {
+      return 0;
+    }
+
+    long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+    long max = getMaxValue();
+    long sum = 0;
+    for (int i = 0, length = counts.length(); i < length; i++) {
+      sum += counts.get(i);
+      if (sum >= target) {
+        return Math.min(highestEquivalentValue(i), max);
+      }
+    }
+    return max;
+  }
+
+  @Override
+  public double getMeanMicros() {
+    return getMeanValue() / 1000.0;
+  }
+
+  @Override
+  public double getMinMicros() {
+    return getMinValue() / 1000.0;
+  }
+
+  @Override
+  public double get50thPercentileMicros() {
+    return getValueAtPercentile(50.0) / 1000.0;
+  }
+
+  @Override
+  public double get99thPercentileMicros() {
+    return getValueAtPercentile(99.0) / 1000.0;
+  }
+
+  @Override
+  public double get999thPercentileMicros() {
+    return getValueAtPercentile(99.9) / 1000.0;
+  }
+
+  @Override
+  public double getMaxMicros() {
+    return getMaxValue() / 1000.0;
+  }
+
+  /**
+   * Appends a one line summary, in microseconds, without allocating.
+   */
+  public void appendSummary(StringBuilder builder) {
+    builder.append(name).append(" count=").append(getCount());
+    appendMicros(builder.append(" mean="), getMeanValue());
+    appendMicros(builder.append(" p50="), getValueAtPercentile(50.0));
+    appendMicros(builder.append(" p99="), getValueAtPercentile(99.0));
+    appendMicros(builder.append(" p99.9="), getValueAtPercentile(99.9));
+    appendMicros(builder.append(" max="), getMaxValue());
+  }
+
+  static void appendMicros(StringBuilder builder, long nanos) {
+    builder.append(nanos / 1000).append('.').append((nanos % 1000) / 100)
+        .append("us");
+  }
+
+  private void checkCompatible(LatencyHistogram other) {
+    if (other.counts.length() != counts.length()) {
+      throw new IllegalArgumentException("Histogram " + other.name
+          + " tracks values up to " + other.highestTrackableValue + ", not "
+          + highestTrackableValue);
+    }
+  }
+
+  private static int indexOf(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+
+    int exponent = 63 - Long.numberOfLeadingZeros(value)
+        - SUB_BUCKET_HALF_BITS;
+    return (exponent << SUB_BUCKET_HALF_BITS) + (int) (value >>> exponent);
+  }
+
+  private static long lowestEquivalentValue(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+
+    int exponent = (index >> SUB_BUCKET_HALF_BITS) - 1;
+    long subBucket = index - ((long) exponent << SUB_BUCKET_HALF_BITS);
+    return subBucket << exponent;
+  }
+
+  private static long highestEquivalentValue(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+
+    int exponent = (index >> SUB_BUCKET_HALF_BITS) - 1;
+    long subBucket = index - ((long) exponent << SUB_BUCKET_HALF_BITS);
+    return ((subBucket + 1) << exponent) - 1;
+  }
+}
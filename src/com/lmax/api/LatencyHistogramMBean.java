@@ -0,0 +1,19 @@
+package com.lmax.api;
+
+public interface LatencyHistogramMBean {
+  long getCount();
+
+  double getMeanMicros();
+
+  double getMinMicros();
+
+  double get50thPercentileMicros();
+
+  double get99thPercentileMicros();
+
+  double get999thPercentileMicros();
+
+  double getMaxMicros();
+
+  void reset();
+}
@@ -0,0 +1,64 @@
+package com.lmax.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Periodically writes a summary line per {@link LatencyHistogram} to a
+ * stream. The text is built in buffers allocated up front, so a reporter can
+ * be left running alongside a latency sensitive process without adding to its
+ * garbage.
+ */
+public class LatencyReporter implements Runnable {
+  private final OutputStream out;
+  private final long intervalMillis;
+  private final LatencyHistogram[] histograms;
+  private final StringBuilder line = new StringBuilder(256);
+  private byte[] bytes = new byte[256];
+
+  public LatencyReporter(OutputStream out, long intervalMillis,
+      LatencyHistogram... histograms) {
+    this.out = out;
+    this.intervalMillis = intervalMillis;
+    this.histograms = histograms;
+  }
+
+  public void run() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        Thread.sleep(intervalMillis);
+
+        report();
+      }
+    } catch (InterruptedException e) {
+      // Stopped.
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public void report() throws IOException {
+    long now = System.currentTimeMillis();
+    for (LatencyHistogram histogram : histograms) {
+      line.setLength(0);
+      line.append(now).append(' ');
+      histogram.appendSummary(line);
+      line.append('\n');
+      write(line);
+    }
+    out.flush();
+  }
+
+  private void write(StringBuilder text) throws IOException {
+    int length = text.length();
+    if (bytes.length < length) {
+      bytes = new byte[length * 2];
+    }
+
+    // Summaries are plain ASCII.
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) text.charAt(i);
+    }
+    out.write(bytes, 0, length);
+  }
+}
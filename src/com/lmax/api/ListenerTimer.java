@@ -0,0 +1,145 @@
+package com.lmax.api;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.lmax.api.account.AccountStateEvent;
+import com.lmax.api.account.AccountStateEventListener;
+import com.lmax.api.heartbeat.HeartbeatEventListener;
+import com.lmax.api.order.ExecutionEventListener;
+import com.lmax.api.order.OrderEventListener;
+import com.lmax.api.orderbook.HistoricMarketDataEvent;
+import com.lmax.api.orderbook.HistoricMarketDataEventListener;
+import com.lmax.api.orderbook.OrderBookEventListener;
+import com.lmax.api.position.PositionEvent;
+import com.lmax.api.position.PositionEventListener;
+import com.lmax.api.profile.Timer;
+import com.lmax.api.reject.InstructionRejectedEventListener;
+
+/**
+ * Times every kind of listener a {@link Session} calls, each into its own
+ * {@link TimingRecorder}, to show which callbacks take up the event loop.
+ * <p>
+ * Order, rejection, execution and order book listeners are wrapped by
+ * {@link Timer}; it has no wrappers for the other kinds, so they are wrapped
+ * here in the same way. The recorders can be read as MBeans, in place of the
+ * fixed bucket ones {@link Timer} registers, or logged by a {@link TimingLog}.
+ */
+public class ListenerTimer {
+  private static final long HIGHEST_TRACKABLE_VALUE = TimeUnit.SECONDS
+      .toNanos(10);
+
+  private final TimingRecorder orderBookEvents = newRecorder("OrderBook");
+  private final TimingRecorder orderEvents = newRecorder("Order");
+  private final TimingRecorder instructionRejectedEvents =
+      newRecorder("InstructionRejected");
+  private final TimingRecorder executionEvents = newRecorder("Execution");
+  private final TimingRecorder positionEvents = newRecorder("Position");
+  private final TimingRecorder accountStateEvents =
+      newRecorder("AccountState");
+  private final TimingRecorder heartbeatEvents = newRecorder("Heartbeat");
+  private final TimingRecorder historicMarketDataEvents =
+      newRecorder("HistoricMarketData");
+
+  public TimingRecorder[] getRecorders() {
+    return new TimingRecorder[] { orderBookEvents, orderEvents,
+        instructionRejectedEvents, executionEvents, positionEvents,
+        accountStateEvents, heartbeatEvents, historicMarketDataEvents };
+  }
+
+  /**
+   * Registers each recorder as an MBean named
+   * <code>com.lmax.latency:type=listener,name=&lt;kind&gt;</code>.
+   */
+  public void registerMBeans() {
+    MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+
+    for (TimingRecorder recorder : getRecorders()) {
+      try {
+        ObjectName name = new ObjectName(
+            "com.lmax.latency:type=listener,name=" + recorder.getName());
+        mbs.registerMBean(new StandardMBean(recorder,
+            LatencyHistogramMBean.class), name);
+      } catch (Exception e) {
+        System.err.println("Unable to register timing recorder: "
+            + recorder.getName());
+      }
+    }
+  }
+
+  public OrderBookEventListener forOrderBookEvents(
+      OrderBookEventListener listener) {
+    return Timer.create(listener, orderBookEvents.getName(), orderBookEvents);
+  }
+
+  public OrderEventListener forOrderEvents(OrderEventListener listener) {
+    return Timer.create(listener, orderEvents.getName(), orderEvents);
+  }
+
+  public InstructionRejectedEventListener forInstructionRejectedEvents(
+      InstructionRejectedEventListener listener) {
+    return Timer.create(listener, instructionRejectedEvents.getName(),
+        instructionRejectedEvents);
+  }
+
+  public ExecutionEventListener forExecutionEvents(
+      ExecutionEventListener listener) {
+    return Timer.create(listener, executionEvents.getName(), executionEvents);
+  }
+
+  public PositionEventListener forPositionEvents(
+      final PositionEventListener listener) {
+    return new PositionEventListener() {
+      @Override
+      public void notify(PositionEvent positionEvent) {
+        long start = System.nanoTime();
+        listener.notify(positionEvent);
+        positionEvents.record(System.nanoTime() - start);
+      }
+    };
+  }
+
+  public AccountStateEventListener forAccountStateEvents(
+      final AccountStateEventListener listener) {
+    return new AccountStateEventListener() {
+      @Override
+      public void notify(AccountStateEvent accountStateEvent) {
+        long start = System.nanoTime();
+        listener.notify(accountStateEvent);
+        accountStateEvents.record(System.nanoTime() - start);
+      }
+    };
+  }
+
+  public HeartbeatEventListener forHeartbeatEvents(
+      final HeartbeatEventListener listener) {
+    return new HeartbeatEventListener() {
+      @Override
+      public void notify(long accountId, String token) {
+        long start = System.nanoTime();
+        listener.notify(accountId, token);
+        heartbeatEvents.record(System.nanoTime() - start);
+      }
+    };
+  }
+
+  public HistoricMarketDataEventListener forHistoricMarketDataEvents(
+      final HistoricMarketDataEventListener listener) {
+    return new HistoricMarketDataEventListener() {
+      @Override
+      public void notify(HistoricMarketDataEvent historicMarketDataEvent) {
+        long start = System.nanoTime();
+        listener.notify(historicMarketDataEvent);
+        historicMarketDataEvents.record(System.nanoTime() - start);
+      }
+    };
+  }
+
+  private static TimingRecorder newRecorder(String name) {
+    return new TimingRecorder(name, HIGHEST_TRACKABLE_VALUE);
+  }
+}
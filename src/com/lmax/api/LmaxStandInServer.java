@@ -0,0 +1,783 @@
+package com.lmax.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded stand-in for the LMAX endpoints that {@link LmaxApi} and its
+ * sessions talk to, so the clients can be run and load tested on localhost
+ * without credentials or a connection to the exchange. Point a client at
+ * <code>http://localhost:&lt;port&gt;</code>; any username and password are
+ * accepted.
+ * <p>
+ * Each session's event stream carries synthetic order book updates, at the
+ * configured rate spread across the instruments it has subscribed to, and the
+ * order and execution events for the orders it places. A configurable share
+ * of orders is filled in full, a share is rejected and the rest are left
+ * working. The ob2 timestamp is the wall clock time the update was written,
+ * for measuring end to end latency.
+ */
+public class LmaxStandInServer {
+  private static final String COOKIE_NAME = "JSESSIONID";
+  private static final long FIRST_INSTRUMENT_ID = 4001;
+  private static final int SEARCH_PAGE_SIZE = 25;
+  private static final int DEPTH = 5;
+  private static final int MAX_TICKS_PER_BATCH = 256;
+  private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS
+      .toNanos(100);
+  private static final long MAX_LAG_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long PRICE_INCREMENT = 10; // 0.00001
+  private static final long QUANTITY = 1000000 * 10L; // 10.0
+  private static final long INITIAL_PRICE = 1000000 * 1L; // 1.0
+
+  static {
+    // The server writes response headers and body separately, so without
+    // TCP_NODELAY every response waits ~40ms on the client's delayed ACK. It
+    // is read once, when the first server is created.
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+  }
+
+  private final int port;
+  private final int instrumentCount;
+  private final int ticksPerSecond;
+  private final double fillRatio;
+  private final double rejectRatio;
+  private final Map<String, StandInSession> sessions =
+      new ConcurrentHashMap<String, StandInSession>();
+  private final AtomicLong nextAccountId = new AtomicLong(1);
+  private final AtomicLong ticksPublished = new AtomicLong();
+  private final AtomicLong ticksDropped = new AtomicLong();
+  private final AtomicLong ordersPlaced = new AtomicLong();
+  private final AtomicLong ordersFilled = new AtomicLong();
+  private final AtomicLong ordersRejected = new AtomicLong();
+  private final long[] midPrices;
+  private HttpServer server;
+  private ExecutorService executor;
+  private volatile boolean running = false;
+
+  /**
+   * @param port
+   *          port to listen on, 0 for any free port.
+   * @param instrumentCount
+   *          number of instruments, with ids from 4001 upwards.
+   * @param ticksPerSecond
+   *          order book updates per second sent on each session's stream.
+   * @param fillRatio
+   *          share of orders that are filled in full, between 0 and 1.
+   * @param rejectRatio
+   *          share of orders that are rejected, between 0 and 1.
+   */
+  public LmaxStandInServer(int port, int instrumentCount, int ticksPerSecond,
+      double fillRatio, double rejectRatio) {
+    if (fillRatio < 0 || rejectRatio < 0 || fillRatio + rejectRatio > 1) {
+      throw new IllegalArgumentException("Invalid fill/reject ratios: "
+          + fillRatio + "/" + rejectRatio);
+    }
+
+    this.port = port;
+    this.instrumentCount = instrumentCount;
+    this.ticksPerSecond = ticksPerSecond;
+    this.fillRatio = fillRatio;
+    this.rejectRatio = rejectRatio;
+    this.midPrices = new long[instrumentCount];
+    for (int i = 0; i < instrumentCount; i++) {
+      midPrices[i] = INITIAL_PRICE + i * 1000 * PRICE_INCREMENT;
+    }
+  }
+
+  public synchronized void start() throws IOException {
+    if (running) {
+      return;
+    }
+
+    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext("/public/security/login", new LoginHandler());
+    server.createContext("/public/security/logout", new LogoutHandler());
+    server.createContext("/secure/subscribe", new SubscribeHandler());
+    server.createContext("/secure/trade/placeOrder", new PlaceOrderHandler());
+    server.createContext("/secure/trade/cancel", new CancelOrderHandler());
+    server.createContext("/secure/instrument/searchCurrentInstruments",
+        new SearchInstrumentsHandler());
+    server.createContext("/secure/read/heartbeat", new HeartbeatHandler());
+    server.createContext("/secure/longPollKey", new LongPollKeyHandler());
+    server.createContext("/secure", new AcceptHandler());
+    server.createContext("/push/stream", new StreamHandler());
+
+    // Each open stream holds on to a thread, so the pool must not be bounded.
+    executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicLong count = new AtomicLong();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "stand-in-"
+            + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    server.setExecutor(executor);
+
+    running = true;
+    server.start();
+  }
+
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+
+    running = false;
+    for (StandInSession session : sessions.values()) {
+      session.close();
+    }
+    sessions.clear();
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * The port the server is listening on, useful when started on port 0.
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  public String getUrl() {
+    return "http://localhost:" + getPort();
+  }
+
+  public long getTicksPublished() {
+    return ticksPublished.get();
+  }
+
+  /**
+   * Order book updates skipped because a client fell more than a second
+   * behind the configured rate.
+   */
+  public long getTicksDropped() {
+    return ticksDropped.get();
+  }
+
+  public long getOrdersPlaced() {
+    return ordersPlaced.get();
+  }
+
+  public long getOrdersFilled() {
+    return ordersFilled.get();
+  }
+
+  public long getOrdersRejected() {
+    return ordersRejected.get();
+  }
+
+  private StandInSession getSession(HttpExchange exchange) throws IOException {
+    String cookies = exchange.getRequestHeaders().getFirst("Cookie");
+    StandInSession session = null;
+    if (cookies != null) {
+      for (String cookie : cookies.split(";")) {
+        cookie = cookie.trim();
+        if (cookie.startsWith(COOKIE_NAME + "=")) {
+          session = sessions.get(cookie.substring(COOKIE_NAME.length() + 1));
+        }
+      }
+    }
+
+    if (session == null) {
+      // What LMAX does for an unknown or expired session.
+      exchange.sendResponseHeaders(403, -1);
+      exchange.close();
+    }
+
+    return session;
+  }
+
+  private abstract class SecureHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        String request = readRequest(exchange);
+        StandInSession session = getSession(exchange);
+        if (session != null) {
+          handle(exchange, session, request);
+        }
+      } finally {
+        exchange.close();
+      }
+    }
+
+    abstract void handle(HttpExchange exchange, StandInSession session,
+        String request) throws IOException;
+  }
+
+  private final class LoginHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        String username = getElement(readRequest(exchange), "username");
+        long accountId = nextAccountId.getAndIncrement();
+        String sessionId = Long.toHexString(new Random().nextLong());
+        sessions.put(sessionId, new StandInSession(accountId));
+
+        exchange.getResponseHeaders().add("Set-Cookie",
+            COOKIE_NAME + "=" + sessionId + "; Path=/");
+        sendOk(exchange, new StringBuilder().append("<accountId>")
+            .append(accountId).append("</accountId><username>")
+            .append(escape(username)).append("</username>")
+            .append("<currency>GBP</currency>")
+            .append("<registrationLegalEntity>UK</registrationLegalEntity>")
+            .append("<displayLocale>en_GB</displayLocale>")
+            .append("<fundingDisallowed>true</fundingDisallowed>"));
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  private final class LogoutHandler extends SecureHandler {
+    @Override
+    void handle(HttpExchange exchange, StandInSession session, String request)
+        throws IOException {
+      sessions.values().remove(session);
+      session.close();
+      sendOk(exchange, null);
+    }
+  }
+
+  private final class SubscribeHandler extends SecureHandler {
+    @Override
+    void handle(HttpExchange exchange, StandInSession session, String request)
+        throws IOException {
+      String ob2 = getElement(request, "ob2");
+      if (ob2 != null) {
+        long instrumentId = Long.parseLong(ob2);
+        if (!isInstrument(instrumentId)) {
+          sendFailure(exchange, "Unknown instrument: " + instrumentId);
+          return;
+        }
+        session.subscribe(instrumentId);
+      }
+      sendOk(exchange, null);
+    }
+  }
+
+  private final class PlaceOrderHandler extends SecureHandler {
+    @Override
+    void handle(HttpExchange exchange, StandInSession session, String request)
+        throws IOException {
+      long instrumentId = Long.parseLong(getElement(request, "instrumentId"));
+      String instructionId = getElement(request, "instructionId");
+      if (instructionId == null) {
+        instructionId = Long.toString(session.nextInstructionId());
+      }
+
+      sendOk(exchange, new StringBuilder().append("<instructionId>")
+          .append(instructionId).append("</instructionId>"));
+
+      ordersPlaced.incrementAndGet();
+      session.enqueue(acknowledge(session, instrumentId, instructionId,
+          getElement(request, "price"), getElement(request, "quantity")));
+    }
+  }
+
+  private final class CancelOrderHandler extends SecureHandler {
+    @Override
+    void handle(HttpExchange exchange, StandInSession session, String request)
+        throws IOException {
+      String instructionId = getElement(request, "instructionId");
+      if (instructionId == null) {
+        instructionId = Long.toString(session.nextInstructionId());
+      }
+
+      sendOk(exchange, new StringBuilder().append("<instructionId>")
+          .append(instructionId).append("</instructionId>"));
+
+      // Orders are either filled or rejected on arrival, or left working
+      // with nothing to track, so there is never anything to cancel.
+      session.enqueue(instructionRejected(session.accountId,
+          Long.parseLong(getElement(request, "instrumentId")), instructionId,
+          "ORDER_NOT_FOUND"));
+    }
+  }
+
+  private final class SearchInstrumentsHandler extends SecureHandler {
+    @Override
+    void handle(HttpExchange exchange, StandInSession session, String request)
+        throws IOException {
+      String query = getQueryParameter(exchange, "q");
+      String offset = getQueryParameter(exchange, "offset");
+      long lastId = offset != null && offset.length() > 0 ? Long
+          .parseLong(offset) : 0;
+
+      StringBuilder body = new StringBuilder("<instruments>");
+      int count = 0;
+      boolean hasMoreResults = false;
+      for (int i = 0; i < instrumentCount; i++) {
+        long instrumentId = FIRST_INSTRUMENT_ID + i;
+        String name = getInstrumentName(instrumentId);
+        if (instrumentId <= lastId || query != null
+            && !name.toLowerCase().contains(query.toLowerCase())) {
+          continue;
+        }
+        if (count == SEARCH_PAGE_SIZE) {
+          hasMoreResults = true;
+          break;
+        }
+        appendInstrument(body, instrumentId, name);
+        count++;
+      }
+      body.append("</instruments><hasMoreResults>").append(hasMoreResults)
+          .append("</hasMoreResults>");
+
+      sendOk(exchange, body);
+    }
+  }
+
+  private final class HeartbeatHandler extends SecureHandler {
+    @Override
+    void handle(HttpExchange exchange, StandInSession session, String request)
+        throws IOException {
+      String token = getElement(request, "token");
+      sendOk(exchange, new StringBuilder().append("<token>")
+          .append(escape(token)).append("</token>"));
+      session.enqueue(new StringBuilder().append("<heartbeat><accountId>")
+          .append(session.accountId).append("</accountId><token>")
+          .append(escape(token)).append("</token></heartbeat>").toString());
+    }
+  }
+
+  private final class LongPollKeyHandler extends SecureHandler {
+    @Override
+    void handle(HttpExchange exchange, StandInSession session, String request)
+        throws IOException {
+      sendOk(exchange, new StringBuilder().append("<longPollKey>")
+          .append(session.accountId).append("</longPollKey>"));
+    }
+  }
+
+  /**
+   * Accepts requests, such as account state or historic market data, that
+   * the stand-in does not model.
+   */
+  private final class AcceptHandler extends SecureHandler {
+    @Override
+    void handle(HttpExchange exchange, StandInSession session, String request)
+        throws IOException {
+      sendOk(exchange, null);
+    }
+  }
+
+  private final class StreamHandler extends SecureHandler {
+    @Override
+    void handle(HttpExchange exchange, StandInSession session, String request)
+        throws IOException {
+      exchange.sendResponseHeaders(200, 0);
+      Writer writer = new OutputStreamWriter(exchange.getResponseBody(),
+          "UTF-8");
+
+      session.streamThread = Thread.currentThread();
+      try {
+        stream(session, writer);
+      } finally {
+        session.streamThread = null;
+      }
+    }
+  }
+
+  private void stream(StandInSession session, Writer writer)
+      throws IOException {
+    StringBuilder events = new StringBuilder(64 * 1024);
+    Random random = new Random();
+    long interval = ticksPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1)
+        / ticksPerSecond : Long.MAX_VALUE;
+    long nextTick = System.nanoTime();
+    int nextInstrument = 0;
+
+    while (running && session.open) {
+      events.setLength(0);
+      events.append("<events>");
+      int length = events.length();
+
+      String event;
+      while ((event = session.events.poll()) != null) {
+        events.append(event);
+      }
+
+      long[] subscriptions = session.getSubscriptions();
+      long now = System.nanoTime();
+      if (subscriptions.length == 0 || ticksPerSecond == 0) {
+        nextTick = now;
+      } else {
+        if (now - nextTick > MAX_LAG_NANOS) {
+          long behind = (now - nextTick) / interval;
+          ticksDropped.addAndGet(behind);
+          nextTick += behind * interval;
+        }
+
+        for (int i = 0; i < MAX_TICKS_PER_BATCH && nextTick <= now; i++) {
+          long instrumentId = subscriptions[nextInstrument++
+              % subscriptions.length];
+          appendOrderBook(events, instrumentId, random);
+          nextTick += interval;
+          ticksPublished.incrementAndGet();
+        }
+      }
+
+      if (events.length() > length) {
+        events.append("</events>");
+        writer.append(events);
+        writer.flush();
+      } else if (subscriptions.length == 0 || ticksPerSecond == 0) {
+        LockSupport.parkNanos(MAX_IDLE_NANOS);
+      } else {
+        LockSupport.parkNanos(Math.min(nextTick - now, MAX_IDLE_NANOS));
+      }
+    }
+  }
+
+  private void appendOrderBook(StringBuilder events, long instrumentId,
+      Random random) {
+    int index = (int) (instrumentId - FIRST_INSTRUMENT_ID);
+    long mid;
+    synchronized (midPrices) {
+      mid = midPrices[index] + (random.nextInt(3) - 1) * PRICE_INCREMENT;
+      mid = Math.max(mid, DEPTH * 2 * PRICE_INCREMENT);
+      midPrices[index] = mid;
+    }
+
+    long bid = mid - PRICE_INCREMENT;
+    long ask = mid + PRICE_INCREMENT;
+
+    events.append("<ob2>").append(instrumentId).append('|')
+        .append(Long.toHexString(System.currentTimeMillis())).append('|');
+    for (int i = 0; i < DEPTH; i++) {
+      if (i > 0) {
+        events.append(';');
+      }
+      appendPricePoint(events, QUANTITY * (i + 1), bid - i * PRICE_INCREMENT);
+    }
+    events.append('|');
+    for (int i = 0; i < DEPTH; i++) {
+      if (i > 0) {
+        events.append(';');
+      }
+      appendPricePoint(events, QUANTITY * (i + 1), ask + i * PRICE_INCREMENT);
+    }
+    events.append("||").append(FixedPointNumber.valueOf(ask)).append('|')
+        .append(FixedPointNumber.valueOf(bid)).append('|')
+        .append(FixedPointNumber.valueOf(bid)).append('|')
+        .append(FixedPointNumber.valueOf(ask)).append('|')
+        .append(FixedPointNumber.valueOf(mid)).append("</ob2>");
+  }
+
+  private static void appendPricePoint(StringBuilder events, long quantity,
+      long price) {
+    events.append(FixedPointNumber.valueOf(quantity)).append('@')
+        .append(FixedPointNumber.valueOf(price));
+  }
+
+  private String acknowledge(StandInSession session, long instrumentId,
+      String instructionId, String price, String quantity) {
+    if (!isInstrument(instrumentId)) {
+      ordersRejected.incrementAndGet();
+      return instructionRejected(session.accountId, instrumentId,
+          instructionId, "INSTRUMENT_DOES_NOT_EXIST");
+    }
+
+    double outcome = session.random.nextDouble();
+    if (outcome < rejectRatio) {
+      ordersRejected.incrementAndGet();
+      return instructionRejected(session.accountId, instrumentId,
+          instructionId, "EXPOSURE_CHECK_FAILURE");
+    }
+
+    boolean filled = outcome < rejectRatio + fillRatio;
+    boolean market = price == null;
+    if (market) {
+      synchronized (midPrices) {
+        price = FixedPointNumber.valueOf(
+            midPrices[(int) (instrumentId - FIRST_INSTRUMENT_ID)]).toString();
+      }
+    }
+
+    StringBuilder order = new StringBuilder(512);
+    order.append("<order><timeInForce>")
+        .append(market ? "IMMEDIATE_OR_CANCEL" : "GOOD_FOR_DAY")
+        .append("</timeInForce><instructionId>").append(instructionId)
+        .append("</instructionId><originalInstructionId>")
+        .append(instructionId).append("</originalInstructionId><orderId>")
+        .append(session.nextOrderId()).append("</orderId><accountId>")
+        .append(session.accountId).append("</accountId><instrumentId>")
+        .append(instrumentId).append("</instrumentId><price>").append(price)
+        .append("</price><quantity>").append(quantity)
+        .append("</quantity><matchedQuantity>")
+        .append(filled ? quantity : "0")
+        .append("</matchedQuantity><matchedCost>0</matchedCost>")
+        .append("<cancelledQuantity>0</cancelledQuantity>")
+        .append("<orderType>").append(market ? "MARKET" : "LIMIT")
+        .append("</orderType><commission>0</commission>");
+    if (filled) {
+      ordersFilled.incrementAndGet();
+      order.append("<executions><executionId>")
+          .append(session.nextExecutionId())
+          .append("</executionId><execution><price>").append(price)
+          .append("</price><quantity>").append(quantity)
+          .append("</quantity></execution></executions>");
+    }
+    order.append("</order>");
+
+    return order.toString();
+  }
+
+  private static String instructionRejected(long accountId,
+      long instrumentId, String instructionId, String reason) {
+    return new StringBuilder().append("<instructionRejected><instructionId>")
+        .append(instructionId).append("</instructionId><accountId>")
+        .append(accountId).append("</accountId><instrumentId>")
+        .append(instrumentId).append("</instrumentId><reason>")
+        .append(reason).append("</reason></instructionRejected>").toString();
+  }
+
+  private void appendInstrument(StringBuilder body, long instrumentId,
+      String name) {
+    body.append("<instrument><id>").append(instrumentId).append("</id><name>")
+        .append(escape(name)).append("</name>")
+        .append("<startTime>2012-01-01T00:00:00</startTime>")
+        .append("<endTime></endTime>")
+        .append("<tradingHours><openingOffset>-1</openingOffset>")
+        .append("<closingOffset>-1</closingOffset>")
+        .append("<timezone>Europe/London</timezone>")
+        .append("<tradingDays><tradingDay>MONDAY</tradingDay>")
+        .append("<tradingDay>TUESDAY</tradingDay>")
+        .append("<tradingDay>WEDNESDAY</tradingDay>")
+        .append("<tradingDay>THURSDAY</tradingDay>")
+        .append("<tradingDay>FRIDAY</tradingDay></tradingDays>")
+        .append("</tradingHours><margin>1</margin><currency>USD</currency>")
+        .append("<unitPrice>10000</unitPrice>")
+        .append("<minimumOrderQuantity>0.1</minimumOrderQuantity>")
+        .append("<orderQuantityIncrement>0.1</orderQuantityIncrement>")
+        .append("<priceIncrement>")
+        .append(FixedPointNumber.valueOf(PRICE_INCREMENT))
+        .append("</priceIncrement>")
+        .append("<retailVolatilityBandPercentage>5")
+        .append("</retailVolatilityBandPercentage>")
+        .append("<assetClass>CURRENCY</assetClass>")
+        .append("<underlyingIsin></underlyingIsin>").append("<symbol>")
+        .append(escape(name)).append("</symbol>")
+        .append("<maximumPositionThreshold>10000</maximumPositionThreshold>")
+        .append("<aggressiveCommissionRate>0</aggressiveCommissionRate>")
+        .append("<passiveCommissionRate>0</passiveCommissionRate>")
+        .append("<minimumCommission>0</minimumCommission>")
+        .append("<aggressiveCommissionPerContract>0")
+        .append("</aggressiveCommissionPerContract>")
+        .append("<passiveCommissionPerContract>0")
+        .append("</passiveCommissionPerContract>")
+        .append("<fundingBaseRate>LIBOR</fundingBaseRate>")
+        .append("<dailyInterestRateBasis>365</dailyInterestRateBasis>")
+        .append("<fundingRatePercentage>0</fundingRatePercentage>")
+        .append("<contractUnitOfMeasure>USD</contractUnitOfMeasure>")
+        .append("<contractSize>10000</contractSize></instrument>");
+  }
+
+  private boolean isInstrument(long instrumentId) {
+    return instrumentId >= FIRST_INSTRUMENT_ID
+        && instrumentId < FIRST_INSTRUMENT_ID + instrumentCount;
+  }
+
+  private static String getInstrumentName(long instrumentId) {
+    return "SIM" + instrumentId + "/USD";
+  }
+
+  private static void sendOk(HttpExchange exchange, CharSequence body)
+      throws IOException {
+    send(exchange, "OK", body);
+  }
+
+  private static void sendFailure(HttpExchange exchange, String message)
+      throws IOException {
+    send(exchange, "FAIL",
+        new StringBuilder().append("<message>").append(escape(message))
+            .append("</message>"));
+  }
+
+  private static void send(HttpExchange exchange, String status,
+      CharSequence body) throws IOException {
+    StringBuilder response = new StringBuilder(256);
+    response.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+        .append("<res><header><status>").append(status)
+        .append("</status></header><body>");
+    if (body != null) {
+      response.append(body);
+    }
+    response.append("</body></res>");
+
+    byte[] bytes = response.toString().getBytes("UTF-8");
+    exchange.getResponseHeaders().add("Content-Type",
+        "text/xml; charset=UTF-8");
+    exchange.sendResponseHeaders(200, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private static String readRequest(HttpExchange exchange) throws IOException {
+    InputStream in = exchange.getRequestBody();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      bytes.write(buffer, 0, read);
+    }
+    return new String(bytes.toByteArray(), "UTF-8");
+  }
+
+  /**
+   * The text of the first element with the given name, enough for the flat
+   * request bodies the API sends.
+   */
+  private static String getElement(String xml, String name) {
+    int start = xml.indexOf("<" + name + ">");
+    if (start < 0) {
+      return null;
+    }
+    start += name.length() + 2;
+    int end = xml.indexOf("</" + name + ">", start);
+    return end < 0 ? null : xml.substring(start, end);
+  }
+
+  private static String getQueryParameter(HttpExchange exchange, String name)
+      throws IOException {
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query == null) {
+      return null;
+    }
+
+    for (String parameter : query.split("&")) {
+      int equals = parameter.indexOf('=');
+      if (equals > 0 && parameter.substring(0, equals).equals(name)) {
+        return URLDecoder.decode(parameter.substring(equals + 1), "UTF-8");
+      }
+    }
+    return null;
+  }
+
+  private static String escape(String value) {
+    if (value == null) {
+      return "";
+    }
+    return value.replace("&", "&amp;").replace("<", "&lt;")
+        .replace(">", "&gt;");
+  }
+
+  private static final class StandInSession {
+    private final long accountId;
+    private final Queue<String> events = new ConcurrentLinkedQueue<String>();
+    private final Set<Long> subscriptions = new CopyOnWriteArraySet<Long>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Random random = new Random();
+    private volatile long[] subscriptionArray = new long[0];
+    private volatile Thread streamThread;
+    private volatile boolean open = true;
+
+    public StandInSession(long accountId) {
+      this.accountId = accountId;
+    }
+
+    public synchronized void subscribe(long instrumentId) {
+      if (subscriptions.add(Long.valueOf(instrumentId))) {
+        long[] array = new long[subscriptions.size()];
+        int i = 0;
+        for (Long subscription : subscriptions) {
+          array[i++] = subscription.longValue();
+        }
+        subscriptionArray = array;
+      }
+    }
+
+    public long[] getSubscriptions() {
+      return subscriptionArray;
+    }
+
+    public long nextInstructionId() {
+      return nextId.getAndIncrement();
+    }
+
+    public long nextOrderId() {
+      return nextId.getAndIncrement();
+    }
+
+    public long nextExecutionId() {
+      return nextId.getAndIncrement();
+    }
+
+    public void enqueue(String event) {
+      events.add(event);
+      wakeUp();
+    }
+
+    public void close() {
+      open = false;
+      wakeUp();
+    }
+
+    public void wakeUp() {
+      Thread thread = streamThread;
+      if (thread != null) {
+        LockSupport.unpark(thread);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+      System.out.println("Usage " + LmaxStandInServer.class.getName()
+          + " <port> <instrumentCount> <ticksPerSecond> [fillRatio]"
+          + " [rejectRatio]");
+      System.exit(-1);
+    }
+
+    int port = Integer.parseInt(args[0]);
+    int instrumentCount = Integer.parseInt(args[1]);
+    int ticksPerSecond = Integer.parseInt(args[2]);
+    double fillRatio = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+    double rejectRatio = args.length > 4 ? Double.parseDouble(args[4]) : 0.0;
+
+    LmaxStandInServer server = new LmaxStandInServer(port, instrumentCount,
+        ticksPerSecond, fillRatio, rejectRatio);
+    server.start();
+    System.out.println("Stand-in listening on " + server.getUrl());
+
+    while (true) {
+      Thread.sleep(10000);
+      System.out.printf(
+          "Ticks: %d, Dropped: %d, Orders: %d, Filled: %d, Rejected: %d%n",
+          server.getTicksPublished(), server.getTicksDropped(),
+          server.getOrdersPlaced(), server.getOrdersFilled(),
+          server.getOrdersRejected());
+    }
+  }
+}
@@ -0,0 +1,309 @@
+package com.lmax.api;
+
+import java.util.List;
+
+import com.lmax.api.orderbook.OrderBookEvent;
+import com.lmax.api.orderbook.PricePoint;
+
+/**
+ * Full depth of one instrument's order book, kept in primitive arrays sorted
+ * best price first, from either {@link OrderBookEvent}s or
+ * {@link OrderBookView}s. Prices and quantities are raw
+ * {@link FixedPointNumber} longs.
+ * <p>
+ * Each update compares the new depth against the old side by side, and only
+ * recalculates the derived values of a side that changed: cumulative
+ * quantities by level, and from them the mid, spread, volume weighted mid and
+ * imbalance. Reading any of them is then O(1), and cumulative size up to a
+ * price is a binary search over the levels.
+ * <p>
+ * A book belongs to the thread that updates it.
+ */
+public class LocalOrderBook {
+  public static final long NO_VALUE = Long.MIN_VALUE;
+
+  private static final int INITIAL_DEPTH = 8;
+
+  private final long instrumentId;
+  private final long tickSize;
+  private final Side bids = new Side(true);
+  private final Side asks = new Side(false);
+  private long timestamp;
+  private long midPrice = NO_VALUE;
+  private long weightedMidPrice = NO_VALUE;
+  private long spreadInTicks = NO_VALUE;
+  private double imbalance;
+
+  /**
+   * @param tickSize
+   *          the instrument's price increment, for the spread in ticks; must
+   *          be positive.
+   */
+  public LocalOrderBook(long instrumentId, long tickSize) {
+    if (tickSize <= 0) {
+      throw new IllegalArgumentException("Invalid tick size for instrument "
+          + instrumentId + ": " + tickSize);
+    }
+
+    this.instrumentId = instrumentId;
+    this.tickSize = tickSize;
+  }
+
+  /**
+   * @return true if the depth changed.
+   */
+  public boolean update(OrderBookEvent orderBookEvent) {
+    timestamp = orderBookEvent.getTimeStamp();
+    boolean bidsChanged = bids.update(orderBookEvent.getBidPrices());
+    boolean asksChanged = asks.update(orderBookEvent.getAskPrices());
+    return updated(bidsChanged, asksChanged);
+  }
+
+  /**
+   * @return true if the depth changed.
+   */
+  public boolean update(OrderBookView orderBookView) {
+    timestamp = orderBookView.getTimestamp();
+    boolean bidsChanged = bids.update(orderBookView.getBidCount(),
+        orderBookView.bidPrices, orderBookView.bidQuantities);
+    boolean asksChanged = asks.update(orderBookView.getAskCount(),
+        orderBookView.askPrices, orderBookView.askQuantities);
+    return updated(bidsChanged, asksChanged);
+  }
+
+  private boolean updated(boolean bidsChanged, boolean asksChanged) {
+    if (!bidsChanged && !asksChanged) {
+      return false;
+    }
+
+    if (bids.count == 0 || asks.count == 0) {
+      midPrice = NO_VALUE;
+      weightedMidPrice = NO_VALUE;
+      spreadInTicks = NO_VALUE;
+    } else {
+      long bid = bids.prices[0];
+      long ask = asks.prices[0];
+      long bidQuantity = bids.quantities[0];
+      long askQuantity = asks.quantities[0];
+
+      midPrice = (bid + ask) / 2;
+      spreadInTicks = (ask - bid) / tickSize;
+      // Weighted towards the side with less quantity, where the price is
+      // more likely to move next.
+      long topQuantity = bidQuantity + askQuantity;
+      weightedMidPrice = topQuantity == 0 ? midPrice
+          : (long) (((double) bid * askQuantity + (double) ask * bidQuantity)
+              / topQuantity);
+    }
+
+    long totalBid = bids.getTotalQuantity();
+    long totalAsk = asks.getTotalQuantity();
+    imbalance = totalBid + totalAsk == 0 ? 0 : (double) (totalBid - totalAsk)
+        / (totalBid + totalAsk);
+    return true;
+  }
+
+  public long getInstrumentId() {
+    return instrumentId;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public int getBidDepth() {
+    return bids.count;
+  }
+
+  public int getAskDepth() {
+    return asks.count;
+  }
+
+  public long getBidPrice(int level) {
+    return bids.prices[level];
+  }
+
+  public long getBidQuantity(int level) {
+    return bids.quantities[level];
+  }
+
+  public long getAskPrice(int level) {
+    return asks.prices[level];
+  }
+
+  public long getAskQuantity(int level) {
+    return asks.quantities[level];
+  }
+
+  /**
+   * @return the best bid, or {@link #NO_VALUE} if there are no bids.
+   */
+  public long getBestBidPrice() {
+    return bids.count != 0 ? bids.prices[0] : NO_VALUE;
+  }
+
+  /**
+   * @return the best ask, or {@link #NO_VALUE} if there are no asks.
+   */
+  public long getBestAskPrice() {
+    return asks.count != 0 ? asks.prices[0] : NO_VALUE;
+  }
+
+  /**
+   * @return the mid price, or {@link #NO_VALUE} unless both sides have
+   *         prices.
+   */
+  public long getMidPrice() {
+    return midPrice;
+  }
+
+  /**
+   * @return the mid price weighted by the quantities at the top of the book,
+   *         or {@link #NO_VALUE} unless both sides have prices.
+   */
+  public long getWeightedMidPrice() {
+    return weightedMidPrice;
+  }
+
+  /**
+   * @return the spread in ticks, or {@link #NO_VALUE} unless both sides have
+   *         prices.
+   */
+  public long getSpreadInTicks() {
+    return spreadInTicks;
+  }
+
+  /**
+   * @return total bid quantity less total ask quantity, over their sum: from
+   *         -1, all asks, to 1, all bids.
+   */
+  public double getImbalance() {
+    return imbalance;
+  }
+
+  /**
+   * @return the bid quantity from the best bid down to and including the
+   *         level.
+   */
+  public long getCumulativeBidQuantity(int level) {
+    return bids.cumulativeQuantities[level];
+  }
+
+  /**
+   * @return the ask quantity from the best ask up to and including the
+   *         level.
+   */
+  public long getCumulativeAskQuantity(int level) {
+    return asks.cumulativeQuantities[level];
+  }
+
+  /**
+   * @return the bid quantity at the price or better, that a sell order
+   *         limited to the price could fill against.
+   */
+  public long getBidQuantityToPrice(long price) {
+    return bids.getQuantityToPrice(price);
+  }
+
+  /**
+   * @return the ask quantity at the price or better, that a buy order limited
+   *         to the price could fill against.
+   */
+  public long getAskQuantityToPrice(long price) {
+    return asks.getQuantityToPrice(price);
+  }
+
+  private static final class Side {
+    private final boolean descending;
+    private int count;
+    private long[] prices = new long[INITIAL_DEPTH];
+    private long[] quantities = new long[INITIAL_DEPTH];
+    private long[] cumulativeQuantities = new long[INITIAL_DEPTH];
+
+    public Side(boolean descending) {
+      this.descending = descending;
+    }
+
+    public boolean update(List<PricePoint> pricePoints) {
+      int newCount = pricePoints.size();
+      ensureCapacity(newCount);
+
+      boolean changed = newCount != count;
+      for (int i = 0; i < newCount; i++) {
+        PricePoint pricePoint = pricePoints.get(i);
+        changed |= set(i, pricePoint.getPrice().longValue(), pricePoint
+            .getQuantity().longValue());
+      }
+      return updated(newCount, changed);
+    }
+
+    public boolean update(int newCount, long[] newPrices,
+        long[] newQuantities) {
+      ensureCapacity(newCount);
+
+      boolean changed = newCount != count;
+      for (int i = 0; i < newCount; i++) {
+        changed |= set(i, newPrices[i], newQuantities[i]);
+      }
+      return updated(newCount, changed);
+    }
+
+    private boolean set(int level, long price, long quantity) {
+      if (prices[level] == price && quantities[level] == quantity) {
+        return false;
+      }
+
+      prices[level] = price;
+      quantities[level] = quantity;
+      return true;
+    }
+
+    private boolean updated(int newCount, boolean changed) {
+      count = newCount;
+      if (changed) {
+        long cumulative = 0;
+        for (int i = 0; i < count; i++) {
+          cumulative += quantities[i];
+          cumulativeQuantities[i] = cumulative;
+        }
+      }
+      return changed;
+    }
+
+    public long getTotalQuantity() {
+      return count != 0 ? cumulativeQuantities[count - 1] : 0;
+    }
+
+    public long getQuantityToPrice(long price) {
+      // Find the number of levels at the price or better.
+      int low = 0;
+      int high = count;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        boolean better = descending ? prices[mid] >= price
+            : prices[mid] <= price;
+        if (better) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low != 0 ? cumulativeQuantities[low - 1] : 0;
+    }
+
+    private void ensureCapacity(int depth) {
+      if (prices.length < depth) {
+        int length = Math.max(depth, prices.length * 2);
+        prices = copyOf(prices, length);
+        quantities = copyOf(quantities, length);
+        cumulativeQuantities = copyOf(cumulativeQuantities, length);
+      }
+    }
+
+    private static long[] copyOf(long[] values, int length) {
+      long[] copy = new long[length];
+      System.arraycopy(values, 0, copy, 0, values.length);
+      return copy;
+    }
+  }
+}
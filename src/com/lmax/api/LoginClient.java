@@ -1,5 +1,8 @@
 package com.lmax.api;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import com.lmax.api.account.LoginCallback;
 import com.lmax.api.account.LoginRequest;
 import com.lmax.api.account.LoginRequest.ProductType;
@@ -13,7 +16,6 @@ import com.lmax.api.order.OrderSubscriptionRequest;
 import com.lmax.api.orderbook.OrderBookEvent;
 import com.lmax.api.orderbook.OrderBookEventListener;
 import com.lmax.api.orderbook.OrderBookSubscriptionRequest;
-import com.lmax.api.profile.Timer;
 import com.lmax.api.reject.InstructionRejectedEvent;
 import com.lmax.api.reject.InstructionRejectedEventListener;
 
@@ -30,10 +32,20 @@ public class LoginClient implements LoginCallback, OrderBookEventListener,
     }
   }
 
+  private static final int ORDER_QUEUE_CAPACITY = 1024;
+  private static final int ORDER_SENDERS = 2;
+  private static final int MAX_ORDERS_IN_FLIGHT = 64;
+  private static final double ORDERS_PER_SECOND = 50;
+  private static final int ORDER_BURST = 10;
+  private static final long ORDER_ANSWER_TIMEOUT_MILLIS = 5000;
+
+  private final ListenerTimer listenerTimer = new ListenerTimer();
   private Session session;
+  private AsyncOrderGateway orderGateway;
   private final long instrumentId;
   private FixedPointNumber side = FixedPointNumber.ZERO;
-  private long orderCount = 0;
+  // Written by the callback executor, read by the event thread.
+  private volatile long orderCount = 0;
   private long executionCount = 0;
   private long rejectionCount = 0;
 
@@ -69,13 +81,19 @@ public class LoginClient implements LoginCallback, OrderBookEventListener,
   }
 
   private void placeOrder(FixedPointNumber side) {
+    boolean accepted;
     if (orderCount > 2 && (orderCount % 50 == 0 || orderCount % 50 == 1)) {
-      session.placeMarketOrder(new MarketOrderSpecification(instrumentId,
-          new FixedPointNumber(500000000), TimeInForce.IMMEDIATE_OR_CANCEL),
-          placeOrderCallback);
-    } else {
-      session.placeMarketOrder(new MarketOrderSpecification(instrumentId, side,
+      accepted = orderGateway.placeMarketOrder(new MarketOrderSpecification(
+          instrumentId, new FixedPointNumber(500000000),
           TimeInForce.IMMEDIATE_OR_CANCEL), placeOrderCallback);
+    } else {
+      accepted = orderGateway.placeMarketOrder(new MarketOrderSpecification(
+          instrumentId, side, TimeInForce.IMMEDIATE_OR_CANCEL),
+          placeOrderCallback);
+    }
+
+    if (!accepted) {
+      System.out.println("Order queue full, dropped order");
     }
   }
 
@@ -103,19 +121,36 @@ public class LoginClient implements LoginCallback, OrderBookEventListener,
     System.out.println("My accountId is: "
         + session.getAccountDetails().getAccountId());
 
-    this.session = session;
-
-    this.session.registerOrderBookEventListener(this);
-    this.session.registerOrderEventListener(Timer.forOrderEvents(this));
-    this.session.registerInstructionRejectedEventListener(Timer
+    ExecutorService callbackExecutor = Executors.newSingleThreadExecutor();
+    // Resubmitting on every rejection would otherwise storm the exchange; the
+    // gateway's senders wait for the throttle rather than shed orders.
+    OrderThrottle orderThrottle = new OrderThrottle(session,
+        ORDERS_PER_SECOND, ORDER_BURST, MAX_ORDERS_IN_FLIGHT,
+        ORDER_ANSWER_TIMEOUT_MILLIS, false);
+    orderThrottle.registerMBean("login-client");
+    this.session = orderThrottle;
+    this.orderGateway = new AsyncOrderGateway(this.session,
+        ORDER_QUEUE_CAPACITY, ORDER_SENDERS, MAX_ORDERS_IN_FLIGHT,
+        callbackExecutor);
+
+    this.session.registerOrderBookEventListener(listenerTimer
+        .forOrderBookEvents(this));
+    this.session.registerOrderEventListener(listenerTimer.forOrderEvents(this));
+    this.session.registerInstructionRejectedEventListener(listenerTimer
         .forInstructionRejectedEvents(this));
-    this.session.registerExecutionEventListener(Timer.forExecutionEvents(this));
+    this.session.registerExecutionEventListener(listenerTimer
+        .forExecutionEvents(this));
+    listenerTimer.registerMBeans();
 
     session.subscribe(new OrderBookSubscriptionRequest(instrumentId),
         new DefaultCallback());
     session.subscribe(new OrderSubscriptionRequest(), new DefaultCallback());
 
+    orderGateway.start();
     session.start();
+
+    orderGateway.stop();
+    callbackExecutor.shutdown();
   }
 
   @Override
@@ -0,0 +1,131 @@
+package com.lmax.api;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from primitive long keys to primitive int values. Uses
+ * linear probing over flat arrays so lookups and updates never box or
+ * allocate.
+ */
+public class LongIntHashMap {
+  public static final int MISSING_VALUE = -1;
+  private static final long FREE_KEY = Long.MIN_VALUE;
+
+  private final long[] keys;
+  private final int[] values;
+  private final int mask;
+  private final int maxSize;
+  private int size = 0;
+
+  public LongIntHashMap(int expectedSize) {
+    int capacity = 2;
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+
+    keys = new long[capacity];
+    values = new int[capacity];
+    mask = capacity - 1;
+    maxSize = capacity / 2;
+
+    Arrays.fill(keys, FREE_KEY);
+  }
+
+  /**
+   * A copy of another map, which can be changed without affecting it.
+   */
+  public LongIntHashMap(LongIntHashMap map) {
+    keys = map.keys.clone();
+    values = map.values.clone();
+    mask = map.mask;
+    maxSize = map.maxSize;
+    size = map.size;
+  }
+
+  public int get(long key) {
+    int index = indexOf(key);
+    while (keys[index] != FREE_KEY) {
+      if (keys[index] == key) {
+        return values[index];
+      }
+      index = (index + 1) & mask;
+    }
+
+    return MISSING_VALUE;
+  }
+
+  public void put(long key, int value) {
+    if (key == FREE_KEY) {
+      throw new IllegalArgumentException("Key not supported: " + key);
+    }
+
+    int index = indexOf(key);
+    while (keys[index] != FREE_KEY) {
+      if (keys[index] == key) {
+        values[index] = value;
+        return;
+      }
+      index = (index + 1) & mask;
+    }
+
+    if (size == maxSize) {
+      throw new IllegalStateException("Map is full, capacity: " + maxSize);
+    }
+
+    keys[index] = key;
+    values[index] = value;
+    size++;
+  }
+
+  /**
+   * @return the value that was mapped to the key, or {@link #MISSING_VALUE}.
+   */
+  public int remove(long key) {
+    int index = indexOf(key);
+    while (keys[index] != FREE_KEY) {
+      if (keys[index] == key) {
+        int value = values[index];
+        compact(index);
+        size--;
+        return value;
+      }
+      index = (index + 1) & mask;
+    }
+
+    return MISSING_VALUE;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Shifts back any entries in the probe run after a removed one, so that
+   * lookups never stop early at the hole it left.
+   */
+  private void compact(int hole) {
+    int index = hole;
+    while (true) {
+      index = (index + 1) & mask;
+      long key = keys[index];
+      if (key == FREE_KEY) {
+        break;
+      }
+
+      int home = indexOf(key);
+      // Move the entry only if its home slot is not between the hole and it.
+      if (((index - home) & mask) >= ((index - hole) & mask)) {
+        keys[hole] = key;
+        values[hole] = values[index];
+        hole = index;
+      }
+    }
+
+    keys[hole] = FREE_KEY;
+  }
+
+  private int indexOf(long key) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+}
@@ -1,17 +1,14 @@
 package com.lmax.api;
 
-import java.io.FileNotFoundException;
 import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import javax.management.StandardMBean;
 
-import com.lmax.api.account.LoginCallback;
 import com.lmax.api.account.LoginRequest;
 import com.lmax.api.account.LoginRequest.ProductType;
 import com.lmax.api.orderbook.Instrument;
@@ -19,124 +16,211 @@ import com.lmax.api.orderbook.OrderBookEvent;
 import com.lmax.api.orderbook.OrderBookEventListener;
 import com.lmax.api.orderbook.OrderBookSubscriptionRequest;
 import com.lmax.api.orderbook.PricePoint;
-import com.lmax.api.orderbook.SearchInstrumentCallback;
-import com.lmax.api.orderbook.SearchInstrumentRequest;
 
-public class MarketDataClient implements LoginCallback, OrderBookEventListener,
-    StreamFailureListener {
-  private final Map<Long, InstrumentInfo> instrumentInfoById = new HashMap<Long, InstrumentInfo>();
-  private int failureCount = 5;
-
-  private Session session;
-
-  public MarketDataClient() {
+public class MarketDataClient implements SessionSupervisor.Listener,
+    OrderBookEventListener, OrderBookViewListener {
+  private static final int MAX_INSTRUMENTS = 4096;
+  private static final int SEARCH_THREADS = 4;
+  private static final int SUBSCRIBE_THREADS = 8;
+  private static final long INITIAL_BACKOFF_MILLIS = 100;
+  private static final long MAX_BACKOFF_MILLIS = 30000;
+
+  private final TopOfBookStore topOfBookStore;
+  private final InstrumentCatalogue instrumentCatalogue;
+  private final int shard;
+  private final int shardCount;
+  private volatile MarketDataClient[] shards = { this };
+  // Guarded by this. Slots below subscribedSlots have been subscribed to, if
+  // in this client's shard.
+  private SessionSupervisor supervisor;
+  private int subscribedSlots = 0;
+
+  public MarketDataClient(ProductType productType) {
+    this(new InstrumentCatalogue(InstrumentCatalogue.defaultFile(productType),
+        SEARCH_THREADS));
   }
 
-  @Override
-  public void notifyStreamFailure(Exception e) {
-    System.out.println("Error occured on the stream");
-    e.printStackTrace(System.out);
+  /**
+   * @param instrumentCatalogue
+   *          instruments seen before, shared between logins so that only the
+   *          first has to wait for the instrument search.
+   */
+  public MarketDataClient(InstrumentCatalogue instrumentCatalogue) {
+    this(instrumentCatalogue, new TopOfBookStore(MAX_INSTRUMENTS), 0, 1);
+  }
 
-    if ("UNAUTHENTICATED".equals(e.getMessage())
-        || e instanceof FileNotFoundException) {
-      session.stop();
+  /**
+   * One of several clients that share the work of decoding prices, each on
+   * its own session and so its own event loop thread. Every client registers
+   * the whole catalogue in the shared store, but only subscribes to the
+   * instruments whose slot falls in its shard, so each slot still has a
+   * single writer. Pass the clients to each other through
+   * {@link #setShards(MarketDataClient[])}.
+   *
+   * @param shard
+   *          this client's shard, from 0 to shardCount - 1.
+   */
+  public MarketDataClient(InstrumentCatalogue instrumentCatalogue,
+      TopOfBookStore topOfBookStore, int shard, int shardCount) {
+    if (shard < 0 || shard >= shardCount) {
+      throw new IllegalArgumentException("Invalid shard: " + shard + " of "
+          + shardCount);
     }
 
-    if (--failureCount == -1) {
-      session.stop();
-    }
+    this.instrumentCatalogue = instrumentCatalogue;
+    this.topOfBookStore = topOfBookStore;
+    this.shard = shard;
+    this.shardCount = shardCount;
   }
 
-  @Override
-  public void notify(OrderBookEvent orderBookEvent) {
-    long instrumentId = orderBookEvent.getInstrumentId();
-    FixedPointNumber bestBid = getBestPrice(orderBookEvent.getBidPrices());
-    FixedPointNumber bestAsk = getBestPrice(orderBookEvent.getAskPrices());
-
-    if (instrumentInfoById.containsKey(instrumentId)) {
-      instrumentInfoById.get(instrumentId).update(bestBid, bestAsk);
-    }
+  /**
+   * Sets the clients sharing this one's store, including it, so that
+   * instruments it registers on a later session are subscribed to by each of
+   * them, not only by this one. Call before any of them logs in.
+   */
+  public void setShards(MarketDataClient[] shards) {
+    this.shards = shards.clone();
   }
 
-  private FixedPointNumber getBestPrice(List<PricePoint> prices) {
-    return prices.size() != 0 ? prices.get(0).getPrice()
-        : FixedPointNumber.ZERO;
+  /**
+   * Prices are written by the session's event loop and can be read
+   * consistently from any other thread through
+   * {@link TopOfBookStore#read(int, TopOfBook)}.
+   */
+  public TopOfBookStore getTopOfBookStore() {
+    return topOfBookStore;
   }
 
   @Override
-  public void onLoginSuccess(Session session) {
-    System.out.println("My accountId is: "
-        + session.getAccountDetails().getAccountId());
+  public void notify(OrderBookEvent orderBookEvent) {
+    int slot = topOfBookStore.slotOf(orderBookEvent.getInstrumentId());
+    if (slot == TopOfBookStore.NO_SLOT) {
+      return;
+    }
 
-    this.session = session;
-    this.session.registerOrderBookEventListener(this);
-    this.session.registerStreamFailureListener(this);
+    List<PricePoint> bidPrices = orderBookEvent.getBidPrices();
+    List<PricePoint> askPrices = orderBookEvent.getAskPrices();
 
-    loadAllInstruments();
+    topOfBookStore.update(slot, getBestPrice(bidPrices),
+        getBestQuantity(bidPrices), getBestPrice(askPrices),
+        getBestQuantity(askPrices), System.currentTimeMillis());
+  }
 
-    for (long instrumentId : instrumentInfoById.keySet()) {
-      subscribeToInstrument(instrumentId);
+  @Override
+  public void notify(OrderBookView orderBookView) {
+    int slot = topOfBookStore.slotOf(orderBookView.getInstrumentId());
+    if (slot == TopOfBookStore.NO_SLOT) {
+      return;
     }
 
-    session.start();
+    boolean hasBid = orderBookView.getBidCount() != 0;
+    boolean hasAsk = orderBookView.getAskCount() != 0;
+    topOfBookStore.update(slot, hasBid ? orderBookView.getBidPrice(0) : 0,
+        hasBid ? orderBookView.getBidQuantity(0) : 0,
+        hasAsk ? orderBookView.getAskPrice(0) : 0,
+        hasAsk ? orderBookView.getAskQuantity(0) : 0,
+        System.currentTimeMillis());
   }
 
-  private void loadAllInstruments() {
-    final long[] offset = { 0 };
-    final boolean[] hasMore = { true };
+  private long getBestPrice(List<PricePoint> prices) {
+    return prices.size() != 0 ? prices.get(0).getPrice().longValue() : 0;
+  }
 
-    while (hasMore[0]) {
-      session.searchInstruments(new SearchInstrumentRequest("", offset[0]),
-          new SearchInstrumentCallback() {
-            @Override
-            public void onSuccess(List<Instrument> instruments,
-                boolean hasMoreResults) {
-              hasMore[0] = hasMoreResults;
+  private long getBestQuantity(List<PricePoint> prices) {
+    return prices.size() != 0 ? prices.get(0).getQuantity().longValue() : 0;
+  }
 
-              for (Instrument instrument : instruments) {
-                System.out.println("Instrument: " + instrument.getId() + ", "
-                    + instrument.getName());
+  /**
+   * Loads the instruments and subscribes to them on the first session. Later
+   * sessions only add the instruments the catalogue has found since, as its
+   * background refresh completes, and have every shard subscribe to its share
+   * of them; the supervisor replays the earlier subscriptions, while the
+   * store and MBeans carry on as they were.
+   */
+  @Override
+  public void sessionStarted(SessionSupervisor supervisor, Session session) {
+    try {
+      // Decode prices into a reused view rather than an event per update.
+      FlyweightOrderBookEventHandler.install(session, this);
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+      session.registerOrderBookEventListener(this);
+    }
 
-                InstrumentInfo instrumentInfo = registerMBean(
-                    instrument.getId(), instrument.getName());
-                if (null != instrumentInfo) {
-                  instrumentInfoById.put(instrumentInfo.getInstrumentId(),
-                      instrumentInfo);
-                }
-                offset[0] = instrument.getId();
-              }
-            }
+    synchronized (this) {
+      this.supervisor = supervisor;
+    }
+    loadAllInstruments(session);
 
-            @Override
-            public void onFailure(FailureResponse failureResponse) {
-              hasMore[0] = false;
-              throw new RuntimeException("Failed: " + failureResponse);
-            }
-          });
+    for (MarketDataClient client : shards) {
+      client.subscribeNewSlots();
     }
   }
 
-  private void subscribeToInstrument(long instrumentId) {
-    System.out.printf("Subscribing to: %d%n", instrumentId);
+  /**
+   * Subscribes, through this client's supervisor, to the instruments in its
+   * shard registered since it last did, so on its current session if it has
+   * one and on every later one. Called from any shard's thread; a client
+   * without a session yet catches up on its first.
+   */
+  private synchronized void subscribeNewSlots() {
+    if (supervisor == null) {
+      return;
+    }
 
-    this.session.subscribe(new OrderBookSubscriptionRequest(instrumentId),
-        new Callback() {
-          public void onSuccess() {
-          }
+    int size = topOfBookStore.size();
+    for (int slot = subscribedSlots; slot < size; slot++) {
+      if (slot % shardCount != shard) {
+        continue;
+      }
 
-          @Override
-          public void onFailure(final FailureResponse failureResponse) {
-            throw new RuntimeException("Failed: " + failureResponse);
-          }
-        });
+      long instrumentId = topOfBookStore.getInstrumentId(slot);
+      System.out.printf("Subscribing to: %d%n", instrumentId);
+      supervisor.subscribe(new OrderBookSubscriptionRequest(instrumentId));
+    }
+    subscribedSlots = size;
   }
 
-  private static InstrumentInfo registerMBean(long instrumentId,
-      String instrumentName) {
+  /**
+   * Registers any instruments in the catalogue that are not in the store yet,
+   * in one go, as other shards may be reading it.
+   */
+  private void loadAllInstruments(Session session) {
+    // Shards sharing the store take turns, so that only the first loads the
+    // catalogue and registers its instruments.
+    synchronized (topOfBookStore) {
+      if (topOfBookStore.size() == 0) {
+        instrumentCatalogue.loadOrRefresh(session);
+      }
+
+      List<Instrument> instruments = instrumentCatalogue.getInstruments();
+      long[] newInstrumentIds = new long[instruments.size()];
+      int count = 0;
+      for (Instrument instrument : instruments) {
+        long instrumentId = instrument.getId();
+        if (topOfBookStore.slotOf(instrumentId) != TopOfBookStore.NO_SLOT) {
+          continue;
+        }
+
+        System.out.println("Instrument: " + instrumentId + ", "
+            + instrument.getName());
+
+        if (registerMBean(instrumentId, instrument.getName())) {
+          newInstrumentIds[count++] = instrumentId;
+        }
+      }
+
+      if (count != 0) {
+        topOfBookStore.registerAll(Arrays.copyOf(newInstrumentIds, count));
+      }
+    }
+  }
+
+  private boolean registerMBean(long instrumentId, String instrumentName) {
     System.out.printf("Registering mbean for: %d%n", instrumentId);
 
     InstrumentInfo instrumentInfo = new InstrumentInfo(instrumentId,
-        instrumentName);
+        instrumentName, topOfBookStore);
     MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
 
     try {
@@ -144,28 +228,33 @@ public class MarketDataClient implements LoginCallback, OrderBookEventListener,
           "com.lmax.instruments:type=instrument,id=" + instrumentId);
       mbs.registerMBean(new StandardMBean(instrumentInfo,
           InstrumentInfoMBean.class), name);
-      return instrumentInfo;
+      return true;
     } catch (Exception e) {
       System.err.println("Unable to register instrument: " + instrumentName);
-      return null;
+      return false;
     }
   }
 
-  @Override
-  public void onLoginFailure(FailureResponse failureResponse) {
-    System.out.println("Login Failed: " + failureResponse);
+  /**
+   * A supervisor that keeps this client logged in, reconnecting within
+   * milliseconds of a session ending and backing off if logins fail.
+   */
+  public SessionSupervisor newSupervisor(String url,
+      LoginRequest loginRequest) {
+    return new SessionSupervisor(url, loginRequest, this, SUBSCRIBE_THREADS,
+        INITIAL_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS);
   }
 
   private static class InstrumentInfo implements InstrumentInfoMBean {
     private final long instrumentId;
-    private long lastUpdate = 0;
-    private FixedPointNumber bestBid = FixedPointNumber.ZERO;
-    private FixedPointNumber bestAsk = FixedPointNumber.ZERO;
     private final String instrumentName;
+    private final TopOfBookStore topOfBookStore;
 
-    public InstrumentInfo(long instrumentId, String instrumentName) {
+    public InstrumentInfo(long instrumentId, String instrumentName,
+        TopOfBookStore topOfBookStore) {
       this.instrumentId = instrumentId;
       this.instrumentName = instrumentName;
+      this.topOfBookStore = topOfBookStore;
     }
 
     @Override
@@ -180,24 +269,40 @@ public class MarketDataClient implements LoginCallback, OrderBookEventListener,
 
     @Override
     public Date getLastUpdate() {
-      return new Date(lastUpdate);
+      return new Date(readTopOfBook().getTimestamp());
     }
 
     @Override
     public String getBestBid() {
-      return bestBid.toString();
+      return format(readTopOfBook().getBidPrice());
+    }
+
+    @Override
+    public String getBestBidQuantity() {
+      return format(readTopOfBook().getBidQuantity());
     }
 
     @Override
     public String getBestAsk() {
-      return bestAsk.toString();
+      return format(readTopOfBook().getAskPrice());
+    }
+
+    @Override
+    public String getBestAskQuantity() {
+      return format(readTopOfBook().getAskQuantity());
     }
 
-    public void update(FixedPointNumber bid, FixedPointNumber ask) {
-      bestBid = bid;
-      bestAsk = ask;
+    private TopOfBook readTopOfBook() {
+      TopOfBook topOfBook = new TopOfBook();
+      int slot = topOfBookStore.slotOf(instrumentId);
+      if (slot != TopOfBookStore.NO_SLOT) {
+        topOfBookStore.read(slot, topOfBook);
+      }
+      return topOfBook;
+    }
 
-      lastUpdate = System.currentTimeMillis();
+    private static String format(long value) {
+      return FixedPointNumber.valueOf(value).toString();
     }
   }
 
@@ -214,18 +319,14 @@ public class MarketDataClient implements LoginCallback, OrderBookEventListener,
     String username = args[1];
     String password = args[2];
     ProductType productType = ProductType.valueOf(args[3].toUpperCase());
+    InstrumentCatalogue instrumentCatalogue = new InstrumentCatalogue(
+        InstrumentCatalogue.defaultFile(productType), SEARCH_THREADS);
 
-    do {
-      System.out.printf("Attempting to login to: %s as %s%n", url, username);
-
-      LmaxApi lmaxApi = new LmaxApi(url);
-      MarketDataClient loginClient = new MarketDataClient();
-
-      lmaxApi.login(new LoginRequest(username, password, productType),
-          loginClient);
+    System.out.printf("Attempting to login to: %s as %s%n", url, username);
 
-      System.out.println("Logged out, pausing for 10s before retrying");
-      Thread.sleep(10000);
-    } while (true);
+    MarketDataClient marketDataClient = new MarketDataClient(
+        instrumentCatalogue);
+    marketDataClient.newSupervisor(url,
+        new LoginRequest(username, password, productType)).run();
   }
 }
@@ -7,20 +7,33 @@ import com.lmax.api.orderbook.OrderBookEventListener;
 import com.lmax.api.orderbook.OrderBookSubscriptionRequest;
 
 /**
- * Demonstrates how to subscribe to live prices for two instruments.
+ * Demonstrates how to subscribe to live prices for two instruments. Prices are
+ * printed through a {@link ConflatingDispatcher}, so a slow console only ever
+ * skips to the latest price rather than holding up the session.
  */
 public class MarketDataSubscriber implements LoginCallback,
     OrderBookEventListener {
   private static final long INSTRUMENT_ID = 4001;
   private static final long INSTRUMENT_ID_2 = 100613;
+  private static final int MAX_INSTRUMENTS = 16;
 
   @Override
   public void onLoginSuccess(final Session session) {
-    session.registerOrderBookEventListener(this);
+    ConflatingDispatcher dispatcher = new ConflatingDispatcher(
+        MAX_INSTRUMENTS, WaitStrategy.PARK);
+    dispatcher.addConsumer("price-printer", this);
+    dispatcher.start();
+
+    session.registerOrderBookEventListener(dispatcher);
     subscribeToInstrument(session, INSTRUMENT_ID);
     subscribeToInstrument(session, INSTRUMENT_ID_2);
 
     session.start();
+
+    dispatcher.halt();
+    System.out.printf("Conflated %d of %d prices%n",
+        dispatcher.getConflatedCount(0), dispatcher.getConflatedCount(0)
+            + dispatcher.getDeliveredCount(0));
   }
 
   private void subscribeToInstrument(final Session session,
@@ -0,0 +1,178 @@
+package com.lmax.api;
+
+import java.io.Writer;
+import java.net.URL;
+import java.util.Collections;
+
+import com.lmax.api.account.AccountDetails;
+import com.lmax.api.account.AccountStateEventListener;
+import com.lmax.api.account.AccountStateRequest;
+import com.lmax.api.heartbeat.HeartbeatCallback;
+import com.lmax.api.heartbeat.HeartbeatEventListener;
+import com.lmax.api.heartbeat.HeartbeatRequest;
+import com.lmax.api.marketdata.HistoricMarketDataRequest;
+import com.lmax.api.order.AmendStopsRequest;
+import com.lmax.api.order.CancelOrderRequest;
+import com.lmax.api.order.ClosingOrderSpecification;
+import com.lmax.api.order.ExecutionEventListener;
+import com.lmax.api.order.LimitOrderSpecification;
+import com.lmax.api.order.MarketOrderSpecification;
+import com.lmax.api.order.OrderCallback;
+import com.lmax.api.order.OrderEventListener;
+import com.lmax.api.orderbook.HistoricMarketDataEventListener;
+import com.lmax.api.orderbook.Instrument;
+import com.lmax.api.orderbook.OrderBookEventListener;
+import com.lmax.api.orderbook.OrderBookStatusEventListener;
+import com.lmax.api.orderbook.SearchInstrumentCallback;
+import com.lmax.api.orderbook.SearchInstrumentRequest;
+import com.lmax.api.position.PositionEventListener;
+import com.lmax.api.reject.InstructionRejectedEventListener;
+
+/**
+ * Accepts every order and subscription immediately, without touching the
+ * network. Lets the sample clients be driven offline by benchmarks and replays.
+ */
+class NoOpSession implements Session {
+  private long instructionId = 0;
+
+  @Override
+  public void start() {
+  }
+
+  @Override
+  public void stop() {
+  }
+
+  @Override
+  public boolean isRunning() {
+    return false;
+  }
+
+  @Override
+  public void logout(Callback callback) {
+    callback.onSuccess();
+  }
+
+  @Override
+  public void placeMarketOrder(MarketOrderSpecification orderSpecification,
+      OrderCallback orderCallback) {
+    orderCallback.onSuccess(++instructionId);
+  }
+
+  @Override
+  public void placeLimitOrder(LimitOrderSpecification orderSpecification,
+      OrderCallback orderCallback) {
+    orderCallback.onSuccess(++instructionId);
+  }
+
+  @Override
+  public void cancelOrder(CancelOrderRequest cancelOrderRequest,
+      OrderCallback orderCallback) {
+    orderCallback.onSuccess(++instructionId);
+  }
+
+  @Override
+  public void placeClosingOrder(
+      ClosingOrderSpecification closingOrderSpecification,
+      OrderCallback orderCallback) {
+    orderCallback.onSuccess(++instructionId);
+  }
+
+  @Override
+  public void amendStops(AmendStopsRequest amendStopsRequest,
+      OrderCallback orderCallback) {
+    orderCallback.onSuccess(++instructionId);
+  }
+
+  @Override
+  public void subscribe(SubscriptionRequest subscriptionRequest,
+      Callback callback) {
+    callback.onSuccess();
+  }
+
+  @Override
+  public void registerAccountStateEventListener(
+      AccountStateEventListener listener) {
+  }
+
+  @Override
+  public void registerExecutionEventListener(ExecutionEventListener listener) {
+  }
+
+  @Override
+  public void registerHeartbeatListener(HeartbeatEventListener listener) {
+  }
+
+  @Override
+  public void registerHistoricMarketDataEventListener(
+      HistoricMarketDataEventListener listener) {
+  }
+
+  @Override
+  public void registerInstructionRejectedEventListener(
+      InstructionRejectedEventListener listener) {
+  }
+
+  @Override
+  public void registerOrderBookEventListener(OrderBookEventListener listener) {
+  }
+
+  @Override
+  public void registerOrderBookStatusEventListener(
+      OrderBookStatusEventListener listener) {
+  }
+
+  @Override
+  public void registerOrderEventListener(OrderEventListener listener) {
+  }
+
+  @Override
+  public void registerPositionEventListener(PositionEventListener listener) {
+  }
+
+  @Override
+  public void registerStreamFailureListener(StreamFailureListener listener) {
+  }
+
+  @Override
+  public void registerSessionDisconnectedListener(
+      SessionDisconnectedListener listener) {
+  }
+
+  @Override
+  public AccountDetails getAccountDetails() {
+    return new AccountDetails(1, "benchmark", "GBP", "UK", "en_GB",
+        true);
+  }
+
+  @Override
+  public void requestAccountState(AccountStateRequest accountStateRequest,
+      Callback callback) {
+    callback.onSuccess();
+  }
+
+  @Override
+  public void requestHistoricMarketData(
+      HistoricMarketDataRequest historicMarketDataRequest, Callback callback) {
+    callback.onSuccess();
+  }
+
+  @Override
+  public void requestHeartbeat(HeartbeatRequest heartbeatRequest,
+      HeartbeatCallback heartbeatCallback) {
+  }
+
+  @Override
+  public void searchInstruments(SearchInstrumentRequest searchRequest,
+      SearchInstrumentCallback searchCallback) {
+    searchCallback.onSuccess(Collections.<Instrument> emptyList(), false);
+  }
+
+  @Override
+  public void openUrl(URL url, UrlCallback urlCallback) {
+  }
+
+  @Override
+  public void setEventStreamDebug(Writer writer) {
+  }
+}
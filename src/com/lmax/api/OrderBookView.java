@@ -0,0 +1,164 @@
+package com.lmax.api;
+
+/**
+ * A reusable, mutable view of an order book event, decoded by
+ * {@link FlyweightOrderBookEventHandler}. Prices and quantities are fixed
+ * point, as {@link FixedPointNumber#longValue()}, with depth held in
+ * primitive arrays that only grow when a deeper book than before is seen.
+ * <p>
+ * The same view is overwritten by every event, so it is only valid for the
+ * duration of {@link OrderBookViewListener#notify(OrderBookView)}; copy out
+ * anything needed later.
+ */
+public class OrderBookView {
+  public static final long NO_VALUE = Long.MIN_VALUE;
+
+  private static final int INITIAL_DEPTH = 8;
+
+  long instrumentId;
+  long timestamp;
+  int bidCount;
+  long[] bidPrices = new long[INITIAL_DEPTH];
+  long[] bidQuantities = new long[INITIAL_DEPTH];
+  int askCount;
+  long[] askPrices = new long[INITIAL_DEPTH];
+  long[] askQuantities = new long[INITIAL_DEPTH];
+  long marketClosePrice;
+  long marketCloseTimestamp;
+  long dailyHighestTradedPrice;
+  long dailyLowestTradedPrice;
+  long valuationBidPrice;
+  long valuationAskPrice;
+  long lastTradedPrice;
+
+  public long getInstrumentId() {
+    return instrumentId;
+  }
+
+  /**
+   * @return the exchange timestamp in milliseconds, or -1 if there was none.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return the number of bid levels, best first.
+   */
+  public int getBidCount() {
+    return bidCount;
+  }
+
+  public long getBidPrice(int level) {
+    return bidPrices[level];
+  }
+
+  public long getBidQuantity(int level) {
+    return bidQuantities[level];
+  }
+
+  /**
+   * @return the number of ask levels, best first.
+   */
+  public int getAskCount() {
+    return askCount;
+  }
+
+  public long getAskPrice(int level) {
+    return askPrices[level];
+  }
+
+  public long getAskQuantity(int level) {
+    return askQuantities[level];
+  }
+
+  /**
+   * @return the best bid price, or {@link #NO_VALUE} if there are no bids.
+   */
+  public long getBestBidPrice() {
+    return bidCount != 0 ? bidPrices[0] : NO_VALUE;
+  }
+
+  /**
+   * @return the best ask price, or {@link #NO_VALUE} if there are no asks.
+   */
+  public long getBestAskPrice() {
+    return askCount != 0 ? askPrices[0] : NO_VALUE;
+  }
+
+  public long getMarketClosePrice() {
+    return marketClosePrice;
+  }
+
+  /**
+   * @return the market close timestamp in milliseconds, or -1 if there was
+   *         none.
+   */
+  public long getMarketCloseTimestamp() {
+    return marketCloseTimestamp;
+  }
+
+  public long getDailyHighestTradedPrice() {
+    return dailyHighestTradedPrice;
+  }
+
+  public long getDailyLowestTradedPrice() {
+    return dailyLowestTradedPrice;
+  }
+
+  public long getValuationBidPrice() {
+    return valuationBidPrice;
+  }
+
+  public long getValuationAskPrice() {
+    return valuationAskPrice;
+  }
+
+  public long getLastTradedPrice() {
+    return lastTradedPrice;
+  }
+
+  void ensureBidCapacity(int depth) {
+    if (bidPrices.length < depth) {
+      bidPrices = grow(bidPrices, depth);
+      bidQuantities = grow(bidQuantities, depth);
+    }
+  }
+
+  void ensureAskCapacity(int depth) {
+    if (askPrices.length < depth) {
+      askPrices = grow(askPrices, depth);
+      askQuantities = grow(askQuantities, depth);
+    }
+  }
+
+  private static long[] grow(long[] values, int depth) {
+    long[] grown = new long[Math.max(depth, values.length * 2)];
+    System.arraycopy(values, 0, grown, 0, values.length);
+    return grown;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("OrderBookView{instrumentId=")
+        .append(instrumentId).append(", timestamp=").append(timestamp)
+        .append(", bids=");
+    appendLevels(builder, bidCount, bidQuantities, bidPrices);
+    builder.append(", asks=");
+    appendLevels(builder, askCount, askQuantities, askPrices);
+    return builder.append('}').toString();
+  }
+
+  private static void appendLevels(StringBuilder builder, int count,
+      long[] quantities, long[] prices) {
+    builder.append('[');
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        builder.append(", ");
+      }
+      builder.append(FixedPointNumber.valueOf(quantities[i])).append('@')
+          .append(FixedPointNumber.valueOf(prices[i]));
+    }
+    builder.append(']');
+  }
+}
@@ -0,0 +1,9 @@
+package com.lmax.api;
+
+/**
+ * Receives order book events as a reused {@link OrderBookView}, installed on a
+ * session with {@link FlyweightOrderBookEventHandler#install}.
+ */
+public interface OrderBookViewListener {
+  void notify(OrderBookView orderBookView);
+}
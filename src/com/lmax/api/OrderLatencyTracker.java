@@ -0,0 +1,166 @@
+package com.lmax.api;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Measures the round trip of orders, keyed by the instructionId they are
+ * placed with, into three {@link LatencyHistogram}s:
+ * <ul>
+ * <li>placeToAck: from placing the order to its acknowledgement.</li>
+ * <li>ackToOrder: from the acknowledgement to the first order event, or 0 if
+ * the order event arrived first.</li>
+ * <li>placeToExecution: from placing the order to its first execution.</li>
+ * </ul>
+ * Executions are delivered after the order event from the same message, once
+ * the order listener has returned, so they are timed from when that order
+ * event arrived rather than from when they are delivered.
+ * <p>
+ * The most recent orders are tracked in a fixed ring of slots; an order that
+ * has not seen its events by the time its slot is reused is dropped. The
+ * tracker is thread safe, as acknowledgements from an
+ * {@link AsyncOrderGateway} arrive on a different thread from the events.
+ */
+public class OrderLatencyTracker {
+  private static final long HIGHEST_TRACKABLE_VALUE = TimeUnit.MINUTES
+      .toNanos(1);
+
+  private final int mask;
+  private final LongIntHashMap slots;
+  private final long[] instructionIds;
+  private final long[] placeNanos;
+  private final long[] ackNanos;
+  private final long[] orderNanos;
+  private final boolean[] acknowledged;
+  private final boolean[] orderSeen;
+  private final boolean[] executionSeen;
+  private long nextSlot = 0;
+
+  private final LatencyHistogram placeToAck = new LatencyHistogram(
+      "placeToAck", HIGHEST_TRACKABLE_VALUE);
+  private final LatencyHistogram ackToOrder = new LatencyHistogram(
+      "ackToOrder", HIGHEST_TRACKABLE_VALUE);
+  private final LatencyHistogram placeToExecution = new LatencyHistogram(
+      "placeToExecution", HIGHEST_TRACKABLE_VALUE);
+
+  /**
+   * @param capacity
+   *          number of orders to track at once, must be a power of 2.
+   */
+  public OrderLatencyTracker(int capacity) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Capacity must be a power of 2: "
+          + capacity);
+    }
+
+    this.mask = capacity - 1;
+    this.slots = new LongIntHashMap(capacity);
+    this.instructionIds = new long[capacity];
+    this.placeNanos = new long[capacity];
+    this.ackNanos = new long[capacity];
+    this.orderNanos = new long[capacity];
+    this.acknowledged = new boolean[capacity];
+    this.orderSeen = new boolean[capacity];
+    this.executionSeen = new boolean[capacity];
+  }
+
+  /**
+   * Starts tracking an order, just before it is placed.
+   */
+  public synchronized void placed(long instructionId) {
+    int slot = (int) (nextSlot++ & mask);
+    if (nextSlot > instructionIds.length
+        && slots.get(instructionIds[slot]) == slot) {
+      slots.remove(instructionIds[slot]);
+    }
+
+    instructionIds[slot] = instructionId;
+    placeNanos[slot] = System.nanoTime();
+    acknowledged[slot] = false;
+    orderSeen[slot] = false;
+    executionSeen[slot] = false;
+    slots.put(instructionId, slot);
+  }
+
+  /**
+   * Stops tracking an order that was not placed after all, or whose request
+   * failed.
+   */
+  public synchronized void discard(long instructionId) {
+    slots.remove(instructionId);
+  }
+
+  public synchronized void acknowledged(long instructionId) {
+    int slot = slots.get(instructionId);
+    if (slot != LongIntHashMap.MISSING_VALUE && !acknowledged[slot]) {
+      long now = System.nanoTime();
+      acknowledged[slot] = true;
+      ackNanos[slot] = now;
+      placeToAck.record(now - placeNanos[slot]);
+      if (orderSeen[slot]) {
+        ackToOrder.record(0);
+      }
+    }
+  }
+
+  public synchronized void orderReceived(long instructionId) {
+    int slot = slots.get(instructionId);
+    if (slot != LongIntHashMap.MISSING_VALUE && !orderSeen[slot]) {
+      long now = System.nanoTime();
+      orderSeen[slot] = true;
+      orderNanos[slot] = now;
+      if (acknowledged[slot]) {
+        ackToOrder.record(now - ackNanos[slot]);
+      }
+    }
+  }
+
+  public synchronized void executionReceived(long instructionId) {
+    int slot = slots.get(instructionId);
+    if (slot != LongIntHashMap.MISSING_VALUE && !executionSeen[slot]) {
+      long received = orderSeen[slot] ? orderNanos[slot] : System.nanoTime();
+      executionSeen[slot] = true;
+      placeToExecution.record(received - placeNanos[slot]);
+    }
+  }
+
+  public LatencyHistogram getPlaceToAck() {
+    return placeToAck;
+  }
+
+  public LatencyHistogram getAckToOrder() {
+    return ackToOrder;
+  }
+
+  public LatencyHistogram getPlaceToExecution() {
+    return placeToExecution;
+  }
+
+  public LatencyHistogram[] getHistograms() {
+    return new LatencyHistogram[] { placeToAck, ackToOrder, placeToExecution };
+  }
+
+  /**
+   * Registers each histogram as an MBean named
+   * <code>com.lmax.latency:type=order,name=&lt;histogram&gt;</code>.
+   */
+  public void registerMBeans() {
+    MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+
+    for (LatencyHistogram histogram : getHistograms()) {
+      try {
+        ObjectName name = new ObjectName("com.lmax.latency:type=order,name="
+            + histogram.getName());
+        mbs.registerMBean(new StandardMBean(histogram,
+            LatencyHistogramMBean.class), name);
+      } catch (Exception e) {
+        System.err.println("Unable to register histogram: "
+            + histogram.getName());
+      }
+    }
+  }
+}
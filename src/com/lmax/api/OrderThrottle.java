@@ -0,0 +1,615 @@
+package com.lmax.api;
+
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.lmax.api.account.AccountDetails;
+import com.lmax.api.account.AccountStateEventListener;
+import com.lmax.api.account.AccountStateRequest;
+import com.lmax.api.heartbeat.HeartbeatCallback;
+import com.lmax.api.heartbeat.HeartbeatEventListener;
+import com.lmax.api.heartbeat.HeartbeatRequest;
+import com.lmax.api.marketdata.HistoricMarketDataRequest;
+import com.lmax.api.order.AmendStopsRequest;
+import com.lmax.api.order.CancelOrderRequest;
+import com.lmax.api.order.ClosingOrderSpecification;
+import com.lmax.api.order.ExecutionEventListener;
+import com.lmax.api.order.LimitOrderSpecification;
+import com.lmax.api.order.MarketOrderSpecification;
+import com.lmax.api.order.Order;
+import com.lmax.api.order.OrderCallback;
+import com.lmax.api.order.OrderEventListener;
+import com.lmax.api.orderbook.HistoricMarketDataEventListener;
+import com.lmax.api.orderbook.OrderBookEventListener;
+import com.lmax.api.orderbook.OrderBookStatusEventListener;
+import com.lmax.api.orderbook.SearchInstrumentCallback;
+import com.lmax.api.orderbook.SearchInstrumentRequest;
+import com.lmax.api.position.PositionEventListener;
+import com.lmax.api.reject.InstructionRejectedEvent;
+import com.lmax.api.reject.InstructionRejectedEventListener;
+
+/**
+ * A {@link Session} that limits the orders sent through it, so that a client
+ * resubmitting on every rejection cannot storm the exchange.
+ * <p>
+ * Every order request, cancels and stop amendments included, takes a permit
+ * from a {@link RateLimiter}. New orders must also fit in a window of orders
+ * in flight: an order is in flight from being sent until the exchange answers
+ * it with its first order event or a rejection, matched by the instruction id
+ * the request returned. An answer can overtake the request's response, so
+ * the ids of recent answers are remembered too. Orders that get no answer,
+ * as when order events are not subscribed to, leave the window after a
+ * timeout.
+ * <p>
+ * When a limit is hit the caller either waits, which suits callers with
+ * their own sender threads such as {@link AsyncOrderGateway}, or has the
+ * order shed, failing its callback straight away. Order and rejection
+ * listeners registered with the throttle see every event, after it.
+ */
+public class OrderThrottle implements Session, OrderThrottleMBean {
+  private static final int RECENT_ANSWERS_PER_SLOT = 4;
+  private static final long FREE = -1;
+  private static final long UNACKNOWLEDGED = -2;
+
+  private final Session session;
+  private final RateLimiter rateLimiter;
+  private final boolean shed;
+  private final long answerTimeoutNanos;
+
+  // Guarded by this: the window, by slot, and recent answers, in a ring.
+  private final long[] instructionIds;
+  private final long[] sentNanos;
+  private final long[] generations;
+  private final LongIntHashMap slotsByInstructionId;
+  private final int[] freeSlots;
+  private int freeCount;
+  private final long[] recentAnswers;
+  private final AtomicLong[] recentAnswerCounters;
+  private final LongIntHashMap recentAnswerPositions;
+  private long answerCount = 0;
+
+  private final AtomicLong sentCount = new AtomicLong();
+  private final AtomicLong acceptedCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private final AtomicLong queuedCount = new AtomicLong();
+  private final AtomicLong shedCount = new AtomicLong();
+  private final AtomicLong expiredCount = new AtomicLong();
+  private volatile OrderEventListener orderEventListener;
+  private volatile InstructionRejectedEventListener rejectedEventListener;
+
+  /**
+   * @param maxInFlight
+   *          orders sent but not yet answered by the exchange.
+   * @param answerTimeoutMillis
+   *          how long an order stays in flight without an answer.
+   * @param shed
+   *          fail orders that would exceed a limit, rather than wait.
+   */
+  public OrderThrottle(Session session, double ordersPerSecond, int burst,
+      int maxInFlight, long answerTimeoutMillis, boolean shed) {
+    this.session = session;
+    this.rateLimiter = new RateLimiter(ordersPerSecond, burst);
+    this.shed = shed;
+    this.answerTimeoutNanos = TimeUnit.MILLISECONDS
+        .toNanos(answerTimeoutMillis);
+
+    this.instructionIds = new long[maxInFlight];
+    this.sentNanos = new long[maxInFlight];
+    this.generations = new long[maxInFlight];
+    this.slotsByInstructionId = new LongIntHashMap(maxInFlight);
+    this.freeSlots = new int[maxInFlight];
+    for (int i = 0; i < maxInFlight; i++) {
+      instructionIds[i] = FREE;
+      freeSlots[i] = i;
+    }
+    this.freeCount = maxInFlight;
+
+    int recentAnswers = Integer.highestOneBit(maxInFlight
+        * RECENT_ANSWERS_PER_SLOT) << 1;
+    this.recentAnswers = new long[recentAnswers];
+    this.recentAnswerCounters = new AtomicLong[recentAnswers];
+    this.recentAnswerPositions = new LongIntHashMap(recentAnswers);
+    Arrays.fill(this.recentAnswers, FREE);
+
+    session.registerOrderEventListener(new OrderEventListener() {
+      @Override
+      public void notify(Order order) {
+        answered(order.getInstructionId(), acceptedCount);
+
+        OrderEventListener listener = orderEventListener;
+        if (listener != null) {
+          listener.notify(order);
+        }
+      }
+    });
+    session.registerInstructionRejectedEventListener(
+        new InstructionRejectedEventListener() {
+          @Override
+          public void notify(InstructionRejectedEvent instructionRejected) {
+            answered(instructionRejected.getInstructionId(), rejectedCount);
+
+            InstructionRejectedEventListener listener = rejectedEventListener;
+            if (listener != null) {
+              listener.notify(instructionRejected);
+            }
+          }
+        });
+  }
+
+  @Override
+  public void placeMarketOrder(MarketOrderSpecification orderSpecification,
+      OrderCallback orderCallback) {
+    WindowCallback callback = acquireInWindow(orderCallback);
+    if (callback != null) {
+      try {
+        session.placeMarketOrder(orderSpecification, callback);
+      } catch (RuntimeException e) {
+        callback.release();
+        throw e;
+      }
+    }
+  }
+
+  @Override
+  public void placeLimitOrder(LimitOrderSpecification orderSpecification,
+      OrderCallback orderCallback) {
+    WindowCallback callback = acquireInWindow(orderCallback);
+    if (callback != null) {
+      try {
+        session.placeLimitOrder(orderSpecification, callback);
+      } catch (RuntimeException e) {
+        callback.release();
+        throw e;
+      }
+    }
+  }
+
+  @Override
+  public void placeClosingOrder(
+      ClosingOrderSpecification closingOrderSpecification,
+      OrderCallback orderCallback) {
+    WindowCallback callback = acquireInWindow(orderCallback);
+    if (callback != null) {
+      try {
+        session.placeClosingOrder(closingOrderSpecification, callback);
+      } catch (RuntimeException e) {
+        callback.release();
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Rate limited, but never held back by the window, as cancelling reduces
+   * exposure.
+   */
+  @Override
+  public void cancelOrder(CancelOrderRequest cancelOrderRequest,
+      OrderCallback orderCallback) {
+    if (acquirePermit(orderCallback)) {
+      session.cancelOrder(cancelOrderRequest, orderCallback);
+    }
+  }
+
+  @Override
+  public void amendStops(AmendStopsRequest amendStopsRequest,
+      OrderCallback orderCallback) {
+    if (acquirePermit(orderCallback)) {
+      session.amendStops(amendStopsRequest, orderCallback);
+    }
+  }
+
+  @Override
+  public void registerOrderEventListener(OrderEventListener listener) {
+    this.orderEventListener = listener;
+  }
+
+  @Override
+  public void registerInstructionRejectedEventListener(
+      InstructionRejectedEventListener listener) {
+    this.rejectedEventListener = listener;
+  }
+
+  /**
+   * Takes a slot in the window, then a permit, waiting or shedding as
+   * configured.
+   *
+   * @return the callback to send the order with, or null if it was not sent,
+   *         in which case its own callback has been failed.
+   */
+  private WindowCallback acquireInWindow(OrderCallback orderCallback) {
+    WindowCallback callback;
+    try {
+      callback = acquireSlot(orderCallback);
+    } catch (InterruptedException e) {
+      interrupted(orderCallback);
+      return null;
+    }
+
+    if (callback == null) {
+      shed(orderCallback, "Too many orders in flight");
+      return null;
+    }
+    if (!acquirePermit(orderCallback)) {
+      callback.release();
+      return null;
+    }
+    return callback;
+  }
+
+  /**
+   * @return false if the request was not sent, in which case its callback has
+   *         been failed.
+   */
+  private boolean acquirePermit(OrderCallback orderCallback) {
+    if (!rateLimiter.tryAcquire()) {
+      if (shed) {
+        shed(orderCallback, "Order rate limit reached");
+        return false;
+      }
+
+      queuedCount.incrementAndGet();
+      try {
+        rateLimiter.acquire();
+      } catch (InterruptedException e) {
+        interrupted(orderCallback);
+        return false;
+      }
+    }
+
+    sentCount.incrementAndGet();
+    return true;
+  }
+
+  private synchronized WindowCallback acquireSlot(OrderCallback orderCallback)
+      throws InterruptedException {
+    boolean waited = false;
+    while (true) {
+      long now = System.nanoTime();
+      if (freeCount == 0) {
+        expire(now);
+      }
+      if (freeCount != 0) {
+        break;
+      }
+      if (shed) {
+        return null;
+      }
+
+      if (!waited) {
+        queuedCount.incrementAndGet();
+        waited = true;
+      }
+      wait(TimeUnit.NANOSECONDS.toMillis(oldestSentNanos()
+          + answerTimeoutNanos - now) + 1);
+    }
+
+    int slot = freeSlots[--freeCount];
+    instructionIds[slot] = UNACKNOWLEDGED;
+    sentNanos[slot] = System.nanoTime();
+    return new WindowCallback(slot, ++generations[slot], orderCallback);
+  }
+
+  private void shed(OrderCallback orderCallback, String reason) {
+    shedCount.incrementAndGet();
+    orderCallback.onFailure(new FailureResponse(false, reason));
+  }
+
+  private void interrupted(OrderCallback orderCallback) {
+    Thread.currentThread().interrupt();
+    orderCallback.onFailure(new FailureResponse(false,
+        "Interrupted waiting to send order"));
+  }
+
+  /**
+   * Called with the instruction id the exchange gave the order, which leaves
+   * the window straight away if its answer has already arrived.
+   */
+  private synchronized void acknowledged(int slot, long generation,
+      long instructionId) {
+    if (generations[slot] != generation
+        || instructionIds[slot] != UNACKNOWLEDGED) {
+      return;
+    }
+
+    int position = recentAnswerPositions.get(instructionId);
+    if (position != LongIntHashMap.MISSING_VALUE) {
+      recentAnswerCounters[position].incrementAndGet();
+      recentAnswerPositions.remove(instructionId);
+      release(slot);
+      return;
+    }
+
+    instructionIds[slot] = instructionId;
+    slotsByInstructionId.put(instructionId, slot);
+  }
+
+  private synchronized void answered(long instructionId, AtomicLong counter) {
+    int slot = slotsByInstructionId.get(instructionId);
+    if (slot != LongIntHashMap.MISSING_VALUE) {
+      counter.incrementAndGet();
+      release(slot);
+      return;
+    }
+
+    // Remember it in case the response to the request is still on its way.
+    int position = (int) (answerCount++ & (recentAnswers.length - 1));
+    long evicted = recentAnswers[position];
+    if (evicted != FREE && recentAnswerPositions.get(evicted) == position) {
+      recentAnswerPositions.remove(evicted);
+    }
+    recentAnswers[position] = instructionId;
+    recentAnswerCounters[position] = counter;
+    recentAnswerPositions.put(instructionId, position);
+  }
+
+  private synchronized void release(int slot, long generation) {
+    if (generations[slot] == generation) {
+      release(slot);
+    }
+  }
+
+  private void release(int slot) {
+    if (instructionIds[slot] == FREE) {
+      return;
+    }
+
+    if (instructionIds[slot] != UNACKNOWLEDGED) {
+      slotsByInstructionId.remove(instructionIds[slot]);
+    }
+    instructionIds[slot] = FREE;
+    freeSlots[freeCount++] = slot;
+    notifyAll();
+  }
+
+  /**
+   * Frees the slots of orders sent longer ago than the answer timeout.
+   */
+  private void expire(long now) {
+    for (int slot = 0; slot < instructionIds.length; slot++) {
+      if (instructionIds[slot] != FREE
+          && now - sentNanos[slot] >= answerTimeoutNanos) {
+        expiredCount.incrementAndGet();
+        release(slot);
+      }
+    }
+  }
+
+  private long oldestSentNanos() {
+    long oldest = Long.MAX_VALUE;
+    for (int slot = 0; slot < instructionIds.length; slot++) {
+      if (instructionIds[slot] != FREE) {
+        oldest = Math.min(oldest, sentNanos[slot]);
+      }
+    }
+    return oldest;
+  }
+
+  @Override
+  public synchronized int getInFlight() {
+    return instructionIds.length - freeCount;
+  }
+
+  @Override
+  public long getSentCount() {
+    return sentCount.get();
+  }
+
+  /**
+   * The number of orders in flight answered by an order event.
+   */
+  @Override
+  public long getAcceptedCount() {
+    return acceptedCount.get();
+  }
+
+  /**
+   * The number of orders in flight answered by a rejection.
+   */
+  @Override
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * The number of orders whose request failed.
+   */
+  @Override
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  /**
+   * The number of times a request has waited for a slot in the window or a
+   * permit.
+   */
+  @Override
+  public long getQueuedCount() {
+    return queuedCount.get();
+  }
+
+  @Override
+  public long getShedCount() {
+    return shedCount.get();
+  }
+
+  /**
+   * The number of orders that left the window without an answer.
+   */
+  @Override
+  public long getExpiredCount() {
+    return expiredCount.get();
+  }
+
+  /**
+   * Registers the throttle as an MBean named
+   * <code>com.lmax.orders:type=throttle,name=&lt;name&gt;</code>.
+   */
+  public void registerMBean(String name) {
+    MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+
+    try {
+      mbs.registerMBean(new StandardMBean(this, OrderThrottleMBean.class),
+          new ObjectName("com.lmax.orders:type=throttle,name=" + name));
+    } catch (Exception e) {
+      System.err.println("Unable to register order throttle: " + name);
+    }
+  }
+
+  /**
+   * Tracks a new order's request, moving it from sent to acknowledged, or out
+   * of the window if the request failed. The slot's generation tells whether
+   * it has since expired and been reused.
+   */
+  private final class WindowCallback implements OrderCallback {
+    private final int slot;
+    private final long generation;
+    private final OrderCallback callback;
+
+    public WindowCallback(int slot, long generation, OrderCallback callback) {
+      this.slot = slot;
+      this.generation = generation;
+      this.callback = callback;
+    }
+
+    public void release() {
+      OrderThrottle.this.release(slot, generation);
+    }
+
+    @Override
+    public void onSuccess(long instructionId) {
+      acknowledged(slot, generation, instructionId);
+      callback.onSuccess(instructionId);
+    }
+
+    @Override
+    public void onFailure(FailureResponse failureResponse) {
+      failedCount.incrementAndGet();
+      release();
+      callback.onFailure(failureResponse);
+    }
+  }
+
+  @Override
+  public void start() {
+    session.start();
+  }
+
+  @Override
+  public void stop() {
+    session.stop();
+  }
+
+  @Override
+  public boolean isRunning() {
+    return session.isRunning();
+  }
+
+  @Override
+  public void logout(Callback callback) {
+    session.logout(callback);
+  }
+
+  @Override
+  public void subscribe(SubscriptionRequest subscriptionRequest,
+      Callback callback) {
+    session.subscribe(subscriptionRequest, callback);
+  }
+
+  @Override
+  public void registerAccountStateEventListener(
+      AccountStateEventListener listener) {
+    session.registerAccountStateEventListener(listener);
+  }
+
+  @Override
+  public void registerExecutionEventListener(ExecutionEventListener listener) {
+    session.registerExecutionEventListener(listener);
+  }
+
+  @Override
+  public void registerHeartbeatListener(HeartbeatEventListener listener) {
+    session.registerHeartbeatListener(listener);
+  }
+
+  @Override
+  public void registerHistoricMarketDataEventListener(
+      HistoricMarketDataEventListener listener) {
+    session.registerHistoricMarketDataEventListener(listener);
+  }
+
+  @Override
+  public void registerOrderBookEventListener(OrderBookEventListener listener) {
+    session.registerOrderBookEventListener(listener);
+  }
+
+  @Override
+  public void registerOrderBookStatusEventListener(
+      OrderBookStatusEventListener listener) {
+    session.registerOrderBookStatusEventListener(listener);
+  }
+
+  @Override
+  public void registerPositionEventListener(PositionEventListener listener) {
+    session.registerPositionEventListener(listener);
+  }
+
+  @Override
+  public void registerStreamFailureListener(StreamFailureListener listener) {
+    session.registerStreamFailureListener(listener);
+  }
+
+  @Override
+  public void registerSessionDisconnectedListener(
+      SessionDisconnectedListener listener) {
+    session.registerSessionDisconnectedListener(listener);
+  }
+
+  @Override
+  public AccountDetails getAccountDetails() {
+    return session.getAccountDetails();
+  }
+
+  @Override
+  public void requestAccountState(AccountStateRequest accountStateRequest,
+      Callback callback) {
+    session.requestAccountState(accountStateRequest, callback);
+  }
+
+  @Override
+  public void requestHistoricMarketData(
+      HistoricMarketDataRequest historicMarketDataRequest, Callback callback) {
+    session.requestHistoricMarketData(historicMarketDataRequest, callback);
+  }
+
+  @Override
+  public void requestHeartbeat(HeartbeatRequest heartbeatRequest,
+      HeartbeatCallback heartbeatCallback) {
+    session.requestHeartbeat(heartbeatRequest, heartbeatCallback);
+  }
+
+  @Override
+  public void searchInstruments(SearchInstrumentRequest searchRequest,
+      SearchInstrumentCallback searchCallback) {
+    session.searchInstruments(searchRequest, searchCallback);
+  }
+
+  @Override
+  public void openUrl(URL url, UrlCallback urlCallback) {
+    session.openUrl(url, urlCallback);
+  }
+
+  @Override
+  public void setEventStreamDebug(Writer writer) {
+    session.setEventStreamDebug(writer);
+  }
+}
@@ -0,0 +1,19 @@
+package com.lmax.api;
+
+public interface OrderThrottleMBean {
+  int getInFlight();
+
+  long getSentCount();
+
+  long getAcceptedCount();
+
+  long getRejectedCount();
+
+  long getFailedCount();
+
+  long getQueuedCount();
+
+  long getShedCount();
+
+  long getExpiredCount();
+}
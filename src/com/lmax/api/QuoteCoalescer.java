@@ -0,0 +1,441 @@
+package com.lmax.api;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.lmax.api.order.CancelOrderRequest;
+import com.lmax.api.order.LimitOrderSpecification;
+import com.lmax.api.order.Order;
+import com.lmax.api.order.OrderCallback;
+import com.lmax.api.order.OrderEventListener;
+import com.lmax.api.reject.InstructionRejectedEvent;
+import com.lmax.api.reject.InstructionRejectedEventListener;
+
+/**
+ * Turns a quoting strategy's desired quotes into orders, sending only the
+ * requests the latest quote still needs.
+ * <p>
+ * A strategy states the price it wants to quote at on each side of an
+ * instrument, as often as it likes, without waiting for the exchange. Each
+ * quote has a slot holding its latest desired price and is queued to one of
+ * the sender threads only if it is not queued already, in the manner of
+ * {@link ConflatingDispatcher}, so a price replaced before the sender gets to
+ * it never costs a request. The sender then reconciles
+ * the quote with its order: it places an order if there is none, cancels one
+ * at the wrong price, and does nothing while a cancel is outstanding, placing
+ * the latest price once the order is done.
+ * <p>
+ * Orders and cancels are sent with instruction ids that encode their quote,
+ * so order and rejection events find it arithmetically. A rejected order or
+ * cancel is not retried until the quote's desired price changes, so that a
+ * persistent rejection cannot turn into a stream of resubmissions. A request
+ * that fails without reaching the exchange is handed back to its sender,
+ * which reconciles the quote again once it has nothing else queued. Call
+ * {@link #quote}, {@link #pull} and the listener methods from one thread, the
+ * strategy's.
+ */
+public class QuoteCoalescer implements OrderEventListener,
+    InstructionRejectedEventListener {
+  public static final int BUY = 0;
+  public static final int SELL = 1;
+  /**
+   * The desired price of a quote that should have no order.
+   */
+  public static final long NO_QUOTE = Long.MIN_VALUE;
+
+  private static final int SIDES = 2;
+  private static final long NO_ID = -1;
+  private static final String ORDER_NOT_FOUND = "ORDER_NOT_FOUND";
+
+  private final long[] instrumentIds;
+  private final FixedPointNumber buyQuantity;
+  private final FixedPointNumber sellQuantity;
+  private final WaitStrategy waitStrategy;
+  private final long firstInstructionId;
+  private final int quoteCount;
+  private final AtomicLongArray desiredPrices;
+  private final AtomicLongArray completedInstructionIds;
+  private final AtomicLongArray rejectedInstructionIds;
+  private final AtomicIntegerArray queued;
+  private final Sender[] senders;
+  private final AtomicLong priceChangeCount = new AtomicLong();
+  private volatile Session session;
+  private volatile boolean running = false;
+
+  /**
+   * @param quantity
+   *          the quantity quoted on each side.
+   * @param firstInstructionId
+   *          the lowest instruction id to place orders with, which should not
+   *          overlap those of earlier sessions.
+   */
+  public QuoteCoalescer(long[] instrumentIds, FixedPointNumber quantity,
+      int senderThreads, WaitStrategy waitStrategy, long firstInstructionId) {
+    this.instrumentIds = instrumentIds.clone();
+    this.buyQuantity = quantity;
+    this.sellQuantity = quantity.negate();
+    this.waitStrategy = waitStrategy;
+    this.firstInstructionId = firstInstructionId;
+    this.quoteCount = instrumentIds.length * SIDES;
+    this.desiredPrices = new AtomicLongArray(quoteCount);
+    this.completedInstructionIds = new AtomicLongArray(quoteCount);
+    this.rejectedInstructionIds = new AtomicLongArray(quoteCount);
+    this.queued = new AtomicIntegerArray(quoteCount);
+    for (int quote = 0; quote < quoteCount; quote++) {
+      desiredPrices.set(quote, NO_QUOTE);
+      completedInstructionIds.set(quote, NO_ID);
+      rejectedInstructionIds.set(quote, NO_ID);
+    }
+
+    this.senders = new Sender[senderThreads];
+    for (int i = 0; i < senderThreads; i++) {
+      senders[i] = new Sender((quoteCount + senderThreads - 1)
+          / senderThreads);
+    }
+  }
+
+  public synchronized void start(Session session) {
+    if (running) {
+      return;
+    }
+
+    this.session = session;
+    running = true;
+    for (int i = 0; i < senders.length; i++) {
+      Thread thread = new Thread(senders[i], "quote-sender-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Stops the senders once they have reconciled every quote queued so far.
+   */
+  public void halt() {
+    running = false;
+  }
+
+  /**
+   * Sets the price to quote at, replacing any not yet acted on.
+   *
+   * @param slot
+   *          the index of the instrument in those the coalescer was created
+   *          with.
+   * @param side
+   *          {@link #BUY} or {@link #SELL}.
+   * @param price
+   *          the raw value of the price, or {@link #NO_QUOTE}.
+   */
+  public void quote(int slot, int side, long price) {
+    int quote = slot * SIDES + side;
+    if (desiredPrices.getAndSet(quote, price) == price) {
+      return;
+    }
+
+    priceChangeCount.lazySet(priceChangeCount.get() + 1);
+    if (queued.getAndSet(quote, 1) == 0) {
+      senders[quote % senders.length].publish(quote);
+    }
+  }
+
+  /**
+   * Withdraws a quote, cancelling its order.
+   */
+  public void pull(int slot, int side) {
+    quote(slot, side, NO_QUOTE);
+  }
+
+  /**
+   * The number of times a quote's desired price has changed.
+   */
+  public long getPriceChangeCount() {
+    return priceChangeCount.get();
+  }
+
+  /**
+   * The number of price changes that have not needed a request of their own,
+   * as each would have if it were sent straight away. Retries after
+   * rejections count against it, down to 0.
+   */
+  public long getRoundTripsSaved() {
+    return Math.max(0, getPriceChangeCount() - getPlacedCount()
+        - getCancelledCount());
+  }
+
+  /**
+   * The number of orders sent, whether or not they were placed.
+   */
+  public long getPlacedCount() {
+    long count = 0;
+    for (Sender sender : senders) {
+      count += sender.placedCount.get();
+    }
+    return count;
+  }
+
+  /**
+   * The number of cancels sent, whether or not they cancelled anything.
+   */
+  public long getCancelledCount() {
+    long count = 0;
+    for (Sender sender : senders) {
+      count += sender.cancelledCount.get();
+    }
+    return count;
+  }
+
+  @Override
+  public void notify(Order order) {
+    long quantity = Math.abs(order.getQuantity().longValue());
+    long done = Math.abs(order.getFilledQuantity().longValue())
+        + Math.abs(order.getCancelledQuantity().longValue());
+    if (done >= quantity) {
+      completed(order.getInstructionId());
+    }
+  }
+
+  @Override
+  public void notify(InstructionRejectedEvent instructionRejected) {
+    // A cancel of an order that is no longer there means it is done.
+    if (ORDER_NOT_FOUND.equals(instructionRejected.getReason())) {
+      completed(instructionRejected.getInstructionId());
+    } else {
+      publishOutcome(rejectedInstructionIds,
+          instructionRejected.getInstructionId());
+    }
+  }
+
+  private void completed(long instructionId) {
+    publishOutcome(completedInstructionIds, instructionId);
+  }
+
+  private void publishOutcome(AtomicLongArray outcomes, long instructionId) {
+    long offset = instructionId - firstInstructionId;
+    if (offset < 0) {
+      return;
+    }
+
+    // Ignored by the sender unless it is one of the quote's instructions.
+    int quote = (int) (offset % quoteCount);
+    outcomes.set(quote, instructionId);
+    if (queued.getAndSet(quote, 1) == 0) {
+      senders[quote % senders.length].publish(quote);
+    }
+  }
+
+  private final class Sender implements Runnable {
+    private final int[] queue;
+    private final int mask;
+    private final Sequence cursor = new Sequence(-1);
+    // Per quote, touched only by this sender.
+    private final long[] workingInstructionIds = new long[quoteCount];
+    private final long[] workingPrices = new long[quoteCount];
+    private final long[] cancelInstructionIds = new long[quoteCount];
+    private final long[] instructionCounts = new long[quoteCount];
+    // The desired price a rejection leaves a quote held at, until it changes.
+    private final boolean[] held = new boolean[quoteCount];
+    private final long[] heldPrices = new long[quoteCount];
+    private final AtomicLong placedCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+    // From request callbacks on other threads; failures are rare, so boxing
+    // them is no burden.
+    private final Queue<Long> failedInstructionIds =
+        new ConcurrentLinkedQueue<Long>();
+
+    public Sender(int quotes) {
+      // A quote is queued at most once, so there are never more than quotes
+      // entries waiting.
+      int queueSize = Integer.highestOneBit(Math.max(quotes, 1)) << 1;
+
+      this.queue = new int[queueSize];
+      this.mask = queueSize - 1;
+      Arrays.fill(workingInstructionIds, NO_ID);
+      Arrays.fill(cancelInstructionIds, NO_ID);
+    }
+
+    /**
+     * Called only from the strategy's thread.
+     */
+    public void publish(int quote) {
+      long next = cursor.get() + 1;
+      queue[(int) next & mask] = quote;
+      cursor.lazySet(next);
+    }
+
+    @Override
+    public void run() {
+      long next = 0;
+      int attempt = 0;
+
+      while (true) {
+        long available = cursor.get();
+
+        if (available < next) {
+          if (retryFailed()) {
+            attempt = 0;
+            continue;
+          }
+          if (!running && cursor.get() < next) {
+            return;
+          }
+          waitStrategy.idle(attempt++);
+          continue;
+        }
+
+        for (; next <= available; next++) {
+          // Clearing the flag first means a later change queues the quote
+          // again rather than being missed by this reconciliation.
+          int quote = queue[(int) next & mask];
+          queued.set(quote, 0);
+          reconcileSafely(quote);
+        }
+
+        attempt = 0;
+      }
+    }
+
+    /**
+     * Drops the order or cancel of a failed request from its quote and
+     * reconciles the quote again, so it is not left off the market.
+     *
+     * @return false if no request has failed.
+     */
+    private boolean retryFailed() {
+      Long failed = failedInstructionIds.poll();
+      if (failed == null) {
+        return false;
+      }
+
+      long instructionId = failed.longValue();
+      int quote = (int) ((instructionId - firstInstructionId) % quoteCount);
+      if (workingInstructionIds[quote] == instructionId) {
+        workingInstructionIds[quote] = NO_ID;
+        cancelInstructionIds[quote] = NO_ID;
+      } else if (cancelInstructionIds[quote] == instructionId) {
+        // The order is most likely done already; a second cancel will say.
+        cancelInstructionIds[quote] = NO_ID;
+      }
+
+      reconcileSafely(quote);
+      return true;
+    }
+
+    private void reconcileSafely(int quote) {
+      try {
+        reconcile(quote);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+
+    private void reconcile(final int quote) {
+      updateFromOutcomes(quote);
+
+      long desiredPrice = desiredPrices.get(quote);
+      long instrumentId = instrumentIds[quote / SIDES];
+
+      if (held[quote]) {
+        if (heldPrices[quote] == desiredPrice) {
+          return;
+        }
+        held[quote] = false;
+      }
+
+      if (workingInstructionIds[quote] != NO_ID) {
+        if (cancelInstructionIds[quote] != NO_ID
+            || workingPrices[quote] == desiredPrice) {
+          return;
+        }
+
+        final long cancelInstructionId = nextInstructionId(quote);
+        cancelInstructionIds[quote] = cancelInstructionId;
+        cancelledCount.lazySet(cancelledCount.get() + 1);
+
+        session.cancelOrder(new CancelOrderRequest(instrumentId,
+            workingInstructionIds[quote], cancelInstructionId),
+            new OrderCallback() {
+              @Override
+              public void onSuccess(long cancelInstructionId) {
+              }
+
+              @Override
+              public void onFailure(FailureResponse failureResponse) {
+                failedInstructionIds.offer(cancelInstructionId);
+                System.err.println("Failed to cancel order: "
+                    + failureResponse);
+              }
+            });
+      } else if (desiredPrice != NO_QUOTE) {
+        final long instructionId = nextInstructionId(quote);
+        workingInstructionIds[quote] = instructionId;
+        workingPrices[quote] = desiredPrice;
+        placedCount.lazySet(placedCount.get() + 1);
+
+        session.placeLimitOrder(new LimitOrderSpecification(instrumentId,
+            instructionId, FixedPointNumber.valueOf(desiredPrice),
+            quote % SIDES == BUY ? buyQuantity : sellQuantity,
+            TimeInForce.GOOD_FOR_DAY), new OrderCallback() {
+          @Override
+          public void onSuccess(long instructionId) {
+          }
+
+          @Override
+          public void onFailure(FailureResponse failureResponse) {
+            failedInstructionIds.offer(instructionId);
+            System.err.println("Failed to place order: " + failureResponse);
+          }
+        });
+      }
+    }
+
+    /**
+     * Applies the latest order and rejection events for the quote: its order
+     * is gone once done, or once placing it or cancelling it finds it
+     * missing. A rejected order or cancel holds the quote at the price it was
+     * trying to reach.
+     */
+    private void updateFromOutcomes(int quote) {
+      long workingInstructionId = workingInstructionIds[quote];
+      if (workingInstructionId == NO_ID) {
+        return;
+      }
+
+      long cancelInstructionId = cancelInstructionIds[quote];
+      long completed = completedInstructionIds.get(quote);
+      long rejected = rejectedInstructionIds.get(quote);
+
+      boolean cancelled = cancelInstructionId != NO_ID
+          && completed == cancelInstructionId;
+      if (rejected == workingInstructionId) {
+        hold(quote, workingPrices[quote]);
+        workingInstructionIds[quote] = NO_ID;
+        cancelInstructionIds[quote] = NO_ID;
+      } else if (completed == workingInstructionId || cancelled) {
+        workingInstructionIds[quote] = NO_ID;
+        cancelInstructionIds[quote] = NO_ID;
+      } else if (cancelInstructionId != NO_ID
+          && rejected == cancelInstructionId) {
+        hold(quote, desiredPrices.get(quote));
+        cancelInstructionIds[quote] = NO_ID;
+      }
+    }
+
+    private void hold(int quote, long price) {
+      held[quote] = true;
+      heldPrices[quote] = price;
+    }
+
+    /**
+     * Instruction ids for orders and cancels, unique per quote and leaving
+     * the quote as the remainder.
+     */
+    private long nextInstructionId(int quote) {
+      return firstInstructionId + instructionCounts[quote]++ * quoteCount
+          + quote;
+    }
+  }
+}
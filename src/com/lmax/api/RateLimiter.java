@@ -0,0 +1,63 @@
+package com.lmax.api;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces out permits to a steady rate, letting up to a burst of them through
+ * at once after a quiet spell. This is a token bucket kept as the single time
+ * at which the bucket would next be empty, so taking a permit is one
+ * comparison under a lock.
+ */
+public class RateLimiter {
+  private final long intervalNanos;
+  private final long burstNanos;
+  private long nextFreeNanos = System.nanoTime();
+
+  /**
+   * @param permitsPerSecond
+   *          the sustained rate.
+   * @param burst
+   *          permits that can be taken back to back, at least 1.
+   */
+  public RateLimiter(double permitsPerSecond, int burst) {
+    if (permitsPerSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException("Invalid rate: " + permitsPerSecond
+          + " per second, burst of " + burst);
+    }
+
+    this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1)
+        / permitsPerSecond);
+    this.burstNanos = (burst - 1) * intervalNanos;
+  }
+
+  /**
+   * Takes a permit, waiting until one is available.
+   */
+  public void acquire() throws InterruptedException {
+    long waitNanos;
+    synchronized (this) {
+      long now = System.nanoTime();
+      long free = Math.max(nextFreeNanos, now - burstNanos);
+      waitNanos = free - now;
+      nextFreeNanos = free + intervalNanos;
+    }
+
+    if (waitNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  /**
+   * Takes a permit if one is available now.
+   */
+  public synchronized boolean tryAcquire() {
+    long now = System.nanoTime();
+    long free = Math.max(nextFreeNanos, now - burstNanos);
+    if (free > now) {
+      return false;
+    }
+
+    nextFreeNanos = free + intervalNanos;
+    return true;
+  }
+}
@@ -0,0 +1,254 @@
+package com.lmax.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lmax.api.order.Execution;
+import com.lmax.api.order.ExecutionEventListener;
+import com.lmax.api.order.Order;
+import com.lmax.api.order.OrderEventListener;
+import com.lmax.api.orderbook.OrderBookEvent;
+import com.lmax.api.orderbook.OrderBookEventListener;
+import com.lmax.api.reject.InstructionRejectedEvent;
+import com.lmax.api.reject.InstructionRejectedEventListener;
+
+/**
+ * Decouples the session's event loop from strategy code. Register the
+ * dispatcher with the {@link Session} in place of the real listeners; each
+ * event is published into a preallocated ring of slots and handed to one or
+ * more consumer threads, each of which sees every event in order and calls its
+ * own listener.
+ * <p>
+ * The event loop only waits if the slowest consumer falls a full ring behind,
+ * so size the ring to absorb the largest expected burst.
+ */
+public class RingBufferDispatcher implements OrderBookEventListener,
+    OrderEventListener, ExecutionEventListener,
+    InstructionRejectedEventListener {
+  private static final int ORDER_BOOK = 0;
+  private static final int ORDER = 1;
+  private static final int EXECUTION = 2;
+  private static final int INSTRUCTION_REJECTED = 3;
+
+  private final int mask;
+  private final int[] types;
+  private final Object[] events;
+  private final WaitStrategy waitStrategy;
+  private final Sequence cursor = new Sequence(-1);
+  private final List<EventConsumer> consumers = new ArrayList<EventConsumer>();
+  private volatile Sequence[] gatingSequences = new Sequence[0];
+  private volatile boolean running = false;
+  private long cachedGatingSequence = -1;
+  private final AtomicLong producerWaitCount = new AtomicLong();
+
+  /**
+   * @param size
+   *          number of slots in the ring, must be a power of 2.
+   */
+  public RingBufferDispatcher(int size, WaitStrategy waitStrategy) {
+    if (Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("Size must be a power of 2: " + size);
+    }
+
+    this.mask = size - 1;
+    this.types = new int[size];
+    this.events = new Object[size];
+    this.waitStrategy = waitStrategy;
+  }
+
+  /**
+   * Adds a consumer thread that delivers events to the listener, which must
+   * implement at least one of the listener interfaces this dispatcher
+   * implements. Events of types the listener does not handle are skipped.
+   */
+  public synchronized void addConsumer(String name, Object listener) {
+    if (running) {
+      throw new IllegalStateException("Dispatcher already started");
+    }
+
+    EventConsumer consumer = new EventConsumer(name, listener,
+        cursor.get());
+    consumers.add(consumer);
+
+    Sequence[] sequences = new Sequence[consumers.size()];
+    for (int i = 0; i < sequences.length; i++) {
+      sequences[i] = consumers.get(i).sequence;
+    }
+    gatingSequences = sequences;
+  }
+
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+
+    running = true;
+    for (EventConsumer consumer : consumers) {
+      Thread thread = new Thread(consumer, consumer.name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Stops the consumer threads once they have delivered everything published
+   * so far.
+   */
+  public void halt() {
+    running = false;
+  }
+
+  /**
+   * The number of times the event loop has had to wait for a consumer to free
+   * up a slot.
+   */
+  public long getProducerWaitCount() {
+    return producerWaitCount.get();
+  }
+
+  @Override
+  public void notify(OrderBookEvent orderBookEvent) {
+    publish(ORDER_BOOK, orderBookEvent);
+  }
+
+  @Override
+  public void notify(Order order) {
+    publish(ORDER, order);
+  }
+
+  @Override
+  public void notify(Execution execution) {
+    publish(EXECUTION, execution);
+  }
+
+  @Override
+  public void notify(InstructionRejectedEvent instructionRejected) {
+    publish(INSTRUCTION_REJECTED, instructionRejected);
+  }
+
+  private void publish(int type, Object event) {
+    long next = cursor.get() + 1;
+    long wrapPoint = next - types.length;
+
+    if (wrapPoint > cachedGatingSequence) {
+      long minimumSequence;
+      int attempt = 0;
+      while (wrapPoint > (minimumSequence = getMinimumSequence())) {
+        if (attempt == 0) {
+          producerWaitCount.lazySet(producerWaitCount.get() + 1);
+        }
+        waitStrategy.idle(attempt++);
+      }
+      cachedGatingSequence = minimumSequence;
+    }
+
+    int index = (int) next & mask;
+    types[index] = type;
+    events[index] = event;
+
+    cursor.lazySet(next);
+  }
+
+  private long getMinimumSequence() {
+    long minimum = Long.MAX_VALUE;
+    for (Sequence sequence : gatingSequences) {
+      minimum = Math.min(minimum, sequence.get());
+    }
+    return minimum == Long.MAX_VALUE ? cursor.get() : minimum;
+  }
+
+  private final class EventConsumer implements Runnable {
+    private final String name;
+    private final Sequence sequence;
+    private final OrderBookEventListener orderBookEventListener;
+    private final OrderEventListener orderEventListener;
+    private final ExecutionEventListener executionEventListener;
+    private final InstructionRejectedEventListener instructionRejectedEventListener;
+
+    public EventConsumer(String name, Object listener, long initialSequence) {
+      this.name = name;
+      this.sequence = new Sequence(initialSequence);
+      this.orderBookEventListener = asListener(listener,
+          OrderBookEventListener.class);
+      this.orderEventListener = asListener(listener, OrderEventListener.class);
+      this.executionEventListener = asListener(listener,
+          ExecutionEventListener.class);
+      this.instructionRejectedEventListener = asListener(listener,
+          InstructionRejectedEventListener.class);
+
+      if (orderBookEventListener == null && orderEventListener == null
+          && executionEventListener == null
+          && instructionRejectedEventListener == null) {
+        throw new IllegalArgumentException("Not an event listener: "
+            + listener);
+      }
+    }
+
+    @Override
+    public void run() {
+      long next = sequence.get() + 1;
+      int attempt = 0;
+
+      while (true) {
+        long available = cursor.get();
+
+        if (available < next) {
+          if (!running && cursor.get() < next) {
+            return;
+          }
+          waitStrategy.idle(attempt++);
+          continue;
+        }
+
+        for (; next <= available; next++) {
+          int index = (int) next & mask;
+          try {
+            dispatch(types[index], events[index]);
+          } catch (RuntimeException e) {
+            e.printStackTrace();
+          }
+        }
+
+        sequence.lazySet(available);
+        attempt = 0;
+      }
+    }
+
+    private <T> T asListener(Object listener, Class<T> type) {
+      return type.isInstance(listener) ? type.cast(listener) : null;
+    }
+
+    private void dispatch(int type, Object event) {
+      switch (type) {
+        case ORDER_BOOK:
+          if (orderBookEventListener != null) {
+            orderBookEventListener.notify((OrderBookEvent) event);
+          }
+          break;
+
+        case ORDER:
+          if (orderEventListener != null) {
+            orderEventListener.notify((Order) event);
+          }
+          break;
+
+        case EXECUTION:
+          if (executionEventListener != null) {
+            executionEventListener.notify((Execution) event);
+          }
+          break;
+
+        case INSTRUCTION_REJECTED:
+          if (instructionRejectedEventListener != null) {
+            instructionRejectedEventListener
+                .notify((InstructionRejectedEvent) event);
+          }
+          break;
+
+        default:
+          throw new IllegalStateException("Unknown event type: " + type);
+      }
+    }
+  }
+}
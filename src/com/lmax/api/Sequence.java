@@ -0,0 +1,33 @@
+package com.lmax.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sequence counter padded onto its own cache line, so a producer and its
+ * consumers can each advance their own sequence without false sharing.
+ */
+public class Sequence {
+  private static final int VALUE = 7;
+
+  private final AtomicLongArray paddedValue = new AtomicLongArray(15);
+
+  public Sequence(long initialValue) {
+    paddedValue.set(VALUE, initialValue);
+  }
+
+  public long get() {
+    return paddedValue.get(VALUE);
+  }
+
+  public void set(long value) {
+    paddedValue.set(VALUE, value);
+  }
+
+  /**
+   * Ordered store; cheaper than {@link #set(long)} when only a single thread
+   * writes the sequence.
+   */
+  public void lazySet(long value) {
+    paddedValue.lazySet(VALUE, value);
+  }
+}
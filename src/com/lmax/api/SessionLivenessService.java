@@ -0,0 +1,225 @@
+package com.lmax.api;
+
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lmax.api.heartbeat.HeartbeatCallback;
+import com.lmax.api.heartbeat.HeartbeatEventListener;
+import com.lmax.api.heartbeat.HeartbeatRequest;
+import com.lmax.api.heartbeat.HeartbeatSubscriptionRequest;
+
+/**
+ * Keeps any number of sessions alive from one small pool of scheduler threads,
+ * rather than a sleeping thread per session.
+ * <p>
+ * A session can have either or both of two periodic tasks. A keep-alive
+ * requests the long poll key, which refreshes the session without sending
+ * anything down the event stream. A heartbeat probe requests a heartbeat
+ * timed through the event stream by the session's {@link HeartbeatMonitor};
+ * heartbeats are delivered to every heartbeat subscriber of the account, so
+ * only probe where that is wanted.
+ */
+public class SessionLivenessService {
+  private static final int DEFAULT_STALE_AFTER_MISSED = 3;
+
+  private final ScheduledExecutorService scheduler;
+  private final int staleAfterMissed;
+  private final ListenerTimer listenerTimer;
+  private final AtomicLong livenessCount = new AtomicLong();
+
+  public SessionLivenessService(int threads) {
+    this(threads, DEFAULT_STALE_AFTER_MISSED, null);
+  }
+
+  public SessionLivenessService(int threads, ListenerTimer listenerTimer) {
+    this(threads, DEFAULT_STALE_AFTER_MISSED, listenerTimer);
+  }
+
+  /**
+   * @param staleAfterMissed
+   *          the number of unanswered heartbeat probes after which a
+   *          session's stream is flagged stale.
+   * @param listenerTimer
+   *          times the heartbeat listeners of every session probed, or null.
+   */
+  public SessionLivenessService(int threads, int staleAfterMissed,
+      ListenerTimer listenerTimer) {
+    this.staleAfterMissed = staleAfterMissed;
+    this.listenerTimer = listenerTimer;
+    this.scheduler = Executors.newScheduledThreadPool(threads,
+        new ThreadFactory() {
+          private int count = 0;
+
+          @Override
+          public synchronized Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "session-liveness-"
+                + count++);
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Starts keeping a session alive. Call before the session is started, as
+   * heartbeat probes register a listener and subscribe to heartbeats, and
+   * {@link Liveness#cancel()} once it has stopped.
+   *
+   * @param keepAliveMillis
+   *          the interval between keep-alives, or 0 for none.
+   * @param heartbeatMillis
+   *          the interval between heartbeat probes, or 0 for none.
+   * @param heartbeatListener
+   *          receives every heartbeat after it has been timed, or null. A
+   *          session has only one heartbeat listener, which probes take, so
+   *          pass any other here rather than registering it.
+   */
+  public Liveness register(Session session, String url, long keepAliveMillis,
+      long heartbeatMillis, HeartbeatEventListener heartbeatListener) {
+    Liveness liveness = new Liveness(session, url, new HeartbeatMonitor(
+        "heartbeat-" + session.getAccountDetails().getAccountId(),
+        "liveness-" + livenessCount.incrementAndGet() + "-", staleAfterMissed),
+        heartbeatListener);
+
+    if (keepAliveMillis > 0) {
+      liveness.keepAlive = scheduler.scheduleWithFixedDelay(
+          liveness.new KeepAlive(), keepAliveMillis, keepAliveMillis,
+          TimeUnit.MILLISECONDS);
+    }
+
+    if (heartbeatMillis > 0) {
+      session.registerHeartbeatListener(listenerTimer != null ? listenerTimer
+          .forHeartbeatEvents(liveness) : liveness);
+      session.subscribe(new HeartbeatSubscriptionRequest(), new Callback() {
+        @Override
+        public void onSuccess() {
+        }
+
+        @Override
+        public void onFailure(FailureResponse failureResponse) {
+          System.err.println("Failed to subscribe to heartbeats: "
+              + failureResponse);
+        }
+      });
+      liveness.heartbeat = scheduler.scheduleWithFixedDelay(
+          liveness.new HeartbeatProbe(), heartbeatMillis, heartbeatMillis,
+          TimeUnit.MILLISECONDS);
+    }
+
+    return liveness;
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * The keep-alives and heartbeat probes of one session.
+   */
+  public static final class Liveness implements HeartbeatEventListener {
+    private final Session session;
+    private final URL longPollKeyUrl;
+    private final HeartbeatMonitor monitor;
+    private final HeartbeatEventListener heartbeatListener;
+    private volatile ScheduledFuture<?> keepAlive;
+    private volatile ScheduledFuture<?> heartbeat;
+
+    private Liveness(Session session, String url, HeartbeatMonitor monitor,
+        HeartbeatEventListener heartbeatListener) {
+      try {
+        this.longPollKeyUrl = new URL(url + "/secure/longPollKey");
+      } catch (MalformedURLException e) {
+        throw new IllegalArgumentException(e);
+      }
+
+      this.session = session;
+      this.monitor = monitor;
+      this.heartbeatListener = heartbeatListener;
+    }
+
+    /**
+     * Times the heartbeat probes; its MBeans are unregistered by
+     * {@link #cancel()}.
+     */
+    public HeartbeatMonitor getMonitor() {
+      return monitor;
+    }
+
+    /**
+     * Stops the session's keep-alives and probes; one already running is
+     * allowed to finish.
+     */
+    public synchronized void cancel() {
+      if (keepAlive != null) {
+        keepAlive.cancel(false);
+      }
+      if (heartbeat != null) {
+        heartbeat.cancel(false);
+      }
+
+      monitor.unregisterMBeans();
+    }
+
+    @Override
+    public void notify(long accountId, String token) {
+      monitor.received(token);
+
+      if (heartbeatListener != null) {
+        heartbeatListener.notify(accountId, token);
+      }
+    }
+
+    private final class KeepAlive implements Runnable {
+      @Override
+      public void run() {
+        // The request fails because it accepts neither XML nor JSON, but it
+        // still refreshes the session.
+        try {
+          session.openUrl(longPollKeyUrl, new UrlCallback() {
+            @Override
+            public void onSuccess(URL url, InputStream inputStream) {
+            }
+
+            @Override
+            public void onFailure(FailureResponse failureResponse) {
+            }
+          });
+        } catch (RuntimeException e) {
+          // Thrown out of a scheduled task, it would cancel the task.
+          e.printStackTrace();
+        }
+      }
+    }
+
+    private final class HeartbeatProbe implements Runnable {
+      @Override
+      public void run() {
+        try {
+          String token = monitor.nextToken();
+          session.requestHeartbeat(new HeartbeatRequest(token),
+              new HeartbeatCallback() {
+                @Override
+                public void onSuccess(String token) {
+                  monitor.acknowledged(token);
+                }
+
+                @Override
+                public void onFailure(FailureResponse failureResponse) {
+                  System.err.println("Failed to request heartbeat: "
+                      + failureResponse);
+                }
+              });
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+}
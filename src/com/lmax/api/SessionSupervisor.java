@@ -0,0 +1,255 @@
+package com.lmax.api;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.lmax.api.account.LoginCallback;
+import com.lmax.api.account.LoginRequest;
+
+/**
+ * Keeps a session logged in. When the session stops, whether from a
+ * disconnect, repeated stream failures or a failed login, it logs in again
+ * after an exponential backoff with full jitter, starting from zero after a
+ * session that got as far as running its event loop, so a dropped connection
+ * is restored within a round trip or two.
+ * <p>
+ * Subscriptions are made through the supervisor, which remembers them and
+ * replays them all concurrently on every new session before its event loop
+ * starts. Anything built from the events, such as a price store, lives
+ * outside the session and carries on across reconnects.
+ */
+public class SessionSupervisor implements LoginCallback, StreamFailureListener,
+    SessionDisconnectedListener {
+  private static final int MAX_STREAM_FAILURES = 5;
+
+  /**
+   * Prepares each new session.
+   */
+  public interface Listener {
+    /**
+     * Called on the supervisor's thread for every new session, before the
+     * subscriptions are replayed and the event loop started: register event
+     * listeners here. Subscriptions made through the supervisor from here on
+     * are replayed with the rest.
+     */
+    void sessionStarted(SessionSupervisor supervisor, Session session);
+  }
+
+  private final LmaxApi lmaxApi;
+  private final LoginRequest loginRequest;
+  private final Listener listener;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private final ExecutorService subscribeExecutor;
+  private final List<SubscriptionRequest> subscriptions =
+      new CopyOnWriteArrayList<SubscriptionRequest>();
+  private final Random random = new Random();
+  private volatile Session session;
+  private volatile boolean running = false;
+  private volatile int streamFailureCount;
+  private volatile long reconnectCount;
+  private int attempt = 0;
+
+  /**
+   * @param subscribeThreads
+   *          the number of subscriptions replayed at once.
+   */
+  public SessionSupervisor(String url, LoginRequest loginRequest,
+      Listener listener, int subscribeThreads, long initialBackoffMillis,
+      long maxBackoffMillis) {
+    this.lmaxApi = new LmaxApi(url);
+    this.loginRequest = loginRequest;
+    this.listener = listener;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.subscribeExecutor = Executors.newFixedThreadPool(subscribeThreads,
+        new ThreadFactory() {
+          private int count = 0;
+
+          @Override
+          public synchronized Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "session-subscribe-"
+                + count++);
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Logs in and keeps logging in again whenever the session stops, until
+   * {@link #stop()} is called.
+   */
+  public void run() throws InterruptedException {
+    running = true;
+    try {
+      while (running) {
+        try {
+          lmaxApi.login(loginRequest, this);
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+        }
+        session = null;
+
+        if (running) {
+          long backoff = nextBackoff();
+          System.out.printf("Session ended, logging in again in %dms%n",
+              backoff);
+          Thread.sleep(backoff);
+          reconnectCount++;
+        }
+      }
+    } finally {
+      subscribeExecutor.shutdownNow();
+    }
+  }
+
+  public void stop() {
+    running = false;
+
+    Session current = session;
+    if (current != null) {
+      current.stop();
+    }
+  }
+
+  /**
+   * Subscribes on the current session, if there is one running, and on every
+   * session after it.
+   */
+  public void subscribe(SubscriptionRequest subscriptionRequest) {
+    subscriptions.add(subscriptionRequest);
+
+    Session current = session;
+    if (current != null) {
+      current.subscribe(subscriptionRequest, new SubscriptionCallback(
+          subscriptionRequest));
+    }
+  }
+
+  public long getReconnectCount() {
+    return reconnectCount;
+  }
+
+  @Override
+  public void onLoginSuccess(Session session) {
+    System.out.println("My accountId is: "
+        + session.getAccountDetails().getAccountId());
+
+    streamFailureCount = 0;
+    session.registerStreamFailureListener(this);
+    session.registerSessionDisconnectedListener(this);
+    listener.sessionStarted(this, session);
+
+    // Published before the replay, so that a subscription made meanwhile is
+    // either replayed or subscribed directly.
+    this.session = session;
+    replaySubscriptions(session);
+
+    attempt = 0;
+    if (running) {
+      session.start();
+    }
+  }
+
+  @Override
+  public void onLoginFailure(FailureResponse failureResponse) {
+    System.out.println("Login Failed: " + failureResponse);
+  }
+
+  @Override
+  public void notifyStreamFailure(Exception e) {
+    System.out.println("Error occured on the stream");
+    e.printStackTrace(System.out);
+
+    if ("UNAUTHENTICATED".equals(e.getMessage())
+        || e instanceof FileNotFoundException
+        || ++streamFailureCount >= MAX_STREAM_FAILURES) {
+      stopSession();
+    }
+  }
+
+  @Override
+  public void notifySessionDisconnected() {
+    System.out.println("Session disconnected");
+    stopSession();
+  }
+
+  private void stopSession() {
+    Session current = session;
+    if (current != null) {
+      current.stop();
+    }
+  }
+
+  private void replaySubscriptions(Session session) {
+    List<Future<?>> replays = new ArrayList<Future<?>>(subscriptions.size());
+    for (SubscriptionRequest subscriptionRequest : subscriptions) {
+      replays.add(subscribeExecutor.submit(new Replay(session,
+          subscriptionRequest)));
+    }
+
+    try {
+      for (Future<?> replay : replays) {
+        replay.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted replaying subscriptions", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Unable to replay subscriptions", e
+          .getCause());
+    }
+  }
+
+  /**
+   * A random delay of up to the current backoff, which doubles with every
+   * attempt that fails before a session starts.
+   */
+  private long nextBackoff() {
+    long backoff = initialBackoffMillis << Math.min(attempt++, 30);
+    return (long) (random.nextDouble() * Math.min(backoff, maxBackoffMillis));
+  }
+
+  private static final class Replay implements Runnable {
+    private final Session session;
+    private final SubscriptionRequest subscriptionRequest;
+
+    public Replay(Session session, SubscriptionRequest subscriptionRequest) {
+      this.session = session;
+      this.subscriptionRequest = subscriptionRequest;
+    }
+
+    @Override
+    public void run() {
+      session.subscribe(subscriptionRequest, new SubscriptionCallback(
+          subscriptionRequest));
+    }
+  }
+
+  private static final class SubscriptionCallback implements Callback {
+    private final SubscriptionRequest subscriptionRequest;
+
+    public SubscriptionCallback(SubscriptionRequest subscriptionRequest) {
+      this.subscriptionRequest = subscriptionRequest;
+    }
+
+    @Override
+    public void onSuccess() {
+    }
+
+    @Override
+    public void onFailure(FailureResponse failureResponse) {
+      System.err.println("Failed to subscribe to " + subscriptionRequest
+          + ": " + failureResponse);
+    }
+  }
+}
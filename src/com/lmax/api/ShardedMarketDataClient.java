@@ -0,0 +1,97 @@
+package com.lmax.api;
+
+import com.lmax.api.account.LoginRequest;
+import com.lmax.api.account.LoginRequest.ProductType;
+
+/**
+ * Spreads market data decoding over several sessions. A session has a single
+ * stream connection decoded on a single event loop thread, so one
+ * {@link MarketDataClient} is limited to one core however many instruments it
+ * subscribes to. This logs in once per shard, each session on its own thread,
+ * and splits the instruments between them; all of them write into the same
+ * {@link TopOfBookStore}, so readers see one set of prices. The clients know
+ * each other, so instruments that one finds on reconnecting are subscribed to
+ * by all of them.
+ */
+public class ShardedMarketDataClient {
+  private static final int MAX_INSTRUMENTS = 4096;
+  private static final int SEARCH_THREADS = 4;
+
+  private final String url;
+  private final LoginRequest loginRequest;
+  private final TopOfBookStore topOfBookStore = new TopOfBookStore(
+      MAX_INSTRUMENTS);
+  private final MarketDataClient[] shards;
+  private final Thread[] shardThreads;
+
+  public ShardedMarketDataClient(String url, LoginRequest loginRequest,
+      InstrumentCatalogue instrumentCatalogue, int shardCount) {
+    this.url = url;
+    this.loginRequest = loginRequest;
+    this.shards = new MarketDataClient[shardCount];
+    this.shardThreads = new Thread[shardCount];
+
+    for (int shard = 0; shard < shardCount; shard++) {
+      shards[shard] = new MarketDataClient(instrumentCatalogue,
+          topOfBookStore, shard, shardCount);
+    }
+    for (MarketDataClient client : shards) {
+      client.setShards(shards);
+    }
+  }
+
+  public TopOfBookStore getTopOfBookStore() {
+    return topOfBookStore;
+  }
+
+  public void start() {
+    for (int shard = 0; shard < shardThreads.length; shard++) {
+      shardThreads[shard] = new Thread(newShard(shard), "market-data-shard-"
+          + shard);
+      shardThreads[shard].start();
+    }
+  }
+
+  public void join() throws InterruptedException {
+    for (Thread shardThread : shardThreads) {
+      shardThread.join();
+    }
+  }
+
+  private Runnable newShard(final int shard) {
+    return new Runnable() {
+      public void run() {
+        System.out.printf("Shard %d attempting to login to: %s%n", shard,
+            url);
+
+        try {
+          shards[shard].newSupervisor(url, loginRequest).run();
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    if (args.length != 5) {
+      System.out.println("Usage " + ShardedMarketDataClient.class.getName()
+          + " <url> <username> <password> [CFD_DEMO|CFD_LIVE] <shards>");
+      System.exit(-1);
+    }
+
+    String url = args[0];
+    String username = args[1];
+    String password = args[2];
+    ProductType productType = ProductType.valueOf(args[3].toUpperCase());
+    int shardCount = Integer.parseInt(args[4]);
+    InstrumentCatalogue instrumentCatalogue = new InstrumentCatalogue(
+        InstrumentCatalogue.defaultFile(productType), SEARCH_THREADS);
+
+    ShardedMarketDataClient client = new ShardedMarketDataClient(url,
+        new LoginRequest(username, password, productType),
+        instrumentCatalogue, shardCount);
+    client.start();
+    client.join();
+  }
+}
@@ -0,0 +1,497 @@
+package com.lmax.api;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Captures the raw event stream, as passed to
+ * {@link Session#setEventStreamDebug(Writer)}, cheaply enough to leave on.
+ * <p>
+ * Text is encoded into a block buffer, and each full block, or one that has
+ * been open for longer than a second, is appended to a preallocated,
+ * memory-mapped segment file, LZ4-style compressed if asked and if that makes
+ * it smaller. A new segment is started whenever the current one is full, and
+ * its index and the time of its first block are appended to
+ * <code>capture.idx</code>, so the capture for a period can be found without
+ * reading every segment. {@link #replay(File, Writer)} decodes a capture back
+ * into text.
+ * <p>
+ * A daemon thread checks for a stale block every second, so that when the
+ * stream stalls, which is when its capture matters most, its last text is
+ * still written out within about two seconds. It shares the writer's lock
+ * with the session's thread.
+ * <p>
+ * Each block is written as its length, a flags byte, its capture time in
+ * milliseconds, its uncompressed length and its contents, with the length
+ * written last so a reader never sees a partial block; a zero length ends a
+ * segment. Text is encoded as UTF-8, with each half of a surrogate pair
+ * encoded separately.
+ */
+public class StreamCaptureWriter extends Writer {
+  static final String SEGMENT_PREFIX = "capture-";
+  static final String SEGMENT_SUFFIX = ".dat";
+  static final String INDEX_NAME = "capture.idx";
+  static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  private static final byte COMPRESSED = 1;
+  // length, flags, timestamp and uncompressed length
+  private static final int HEADER_LENGTH = 4 + 1 + 8 + 4;
+  private static final long MAX_BLOCK_MILLIS = 1000;
+
+  private final File directory;
+  private final int segmentSize;
+  private final boolean compress;
+  private final byte[] block;
+  private final byte[] compressed;
+  private final LZ4Compressor compressor = new LZ4Compressor();
+  private final DataOutputStream index;
+  private int blockLength = 0;
+  private long blockStartMillis;
+  private int segmentIndex;
+  private MappedByteBuffer segment;
+  private boolean segmentEmpty;
+  private final ScheduledExecutorService staleBlockWriter = Executors
+      .newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "stream-capture-flush");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * @param blockSize
+   *          the number of bytes of text compressed and written together.
+   */
+  public StreamCaptureWriter(File directory, int segmentSize, int blockSize,
+      boolean compress) throws IOException {
+    if (HEADER_LENGTH + LZ4Compressor.maxCompressedLength(blockSize) + 4
+        > segmentSize) {
+      throw new IllegalArgumentException("Blocks of " + blockSize
+          + " bytes do not fit in a segment of " + segmentSize);
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory: " + directory);
+    }
+
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.compress = compress;
+    this.block = new byte[blockSize];
+    this.compressed = new byte[LZ4Compressor.maxCompressedLength(blockSize)];
+    this.index = new DataOutputStream(new FileOutputStream(new File(
+        directory, INDEX_NAME), true));
+    this.segmentIndex = findLastSegmentIndex(directory);
+
+    nextSegment();
+
+    staleBlockWriter.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }, MAX_BLOCK_MILLIS, MAX_BLOCK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void write(char[] chars, int offset, int length) throws IOException {
+    synchronized (lock) {
+      encode(chars, offset, length);
+    }
+  }
+
+  private void encode(char[] chars, int offset, int length)
+      throws IOException {
+    if (blockLength == 0) {
+      blockStartMillis = System.currentTimeMillis();
+    }
+
+    for (int i = offset, end = offset + length; i < end; i++) {
+      // Room for the longest encoding of a char.
+      if (blockLength > block.length - 3) {
+        writeBlock();
+        blockStartMillis = System.currentTimeMillis();
+      }
+
+      char c = chars[i];
+      if (c < 0x80) {
+        block[blockLength++] = (byte) c;
+      } else if (c < 0x800) {
+        block[blockLength++] = (byte) (0xC0 | c >> 6);
+        block[blockLength++] = (byte) (0x80 | c & 0x3F);
+      } else {
+        block[blockLength++] = (byte) (0xE0 | c >> 12);
+        block[blockLength++] = (byte) (0x80 | c >> 6 & 0x3F);
+        block[blockLength++] = (byte) (0x80 | c & 0x3F);
+      }
+    }
+
+    flushIfStale();
+  }
+
+  /**
+   * Writes out the current block only if it has been open for more than a
+   * second, so that flushing after every read of the stream does not make
+   * every block tiny.
+   */
+  @Override
+  public void flush() throws IOException {
+    synchronized (lock) {
+      flushIfStale();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    staleBlockWriter.shutdown();
+    synchronized (lock) {
+      writeBlock();
+      segment.force();
+      index.close();
+    }
+  }
+
+  private void flushIfStale() throws IOException {
+    if (blockLength != 0
+        && System.currentTimeMillis() - blockStartMillis > MAX_BLOCK_MILLIS) {
+      writeBlock();
+    }
+  }
+
+  private void writeBlock() throws IOException {
+    if (blockLength == 0) {
+      return;
+    }
+
+    byte flags = 0;
+    byte[] contents = block;
+    int contentLength = blockLength;
+    if (compress) {
+      int compressedLength = compressor.compress(block, blockLength,
+          compressed);
+      if (compressedLength < blockLength) {
+        flags = COMPRESSED;
+        contents = compressed;
+        contentLength = compressedLength;
+      }
+    }
+
+    // Always leave room for the zero length that marks the end of a segment.
+    if (segment.remaining() < HEADER_LENGTH + contentLength + 4) {
+      nextSegment();
+    }
+    if (segmentEmpty) {
+      index.writeLong(blockStartMillis);
+      index.writeInt(segmentIndex);
+      index.flush();
+      segmentEmpty = false;
+    }
+
+    int start = segment.position();
+    segment.position(start + 4);
+    segment.put(flags);
+    segment.putLong(blockStartMillis);
+    segment.putInt(blockLength);
+    segment.put(contents, 0, contentLength);
+    segment.putInt(start, segment.position() - start);
+
+    blockLength = 0;
+  }
+
+  private void nextSegment() throws IOException {
+    File file = segmentFile(directory, ++segmentIndex);
+
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(segmentSize);
+      segment = randomAccessFile.getChannel().map(
+          FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+      segment.order(BYTE_ORDER);
+      segmentEmpty = true;
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  /**
+   * Decodes every block captured in the directory, in order, into text.
+   */
+  public static void replay(File directory, Writer out) throws IOException {
+    int lastIndex = findLastSegmentIndex(directory);
+    byte[] contents = new byte[0];
+    byte[] text = new byte[0];
+    char[] chars = new char[0];
+
+    for (int segmentIndex = 1; segmentIndex <= lastIndex; segmentIndex++) {
+      File file = segmentFile(directory, segmentIndex);
+      if (!file.exists()) {
+        continue;
+      }
+
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = randomAccessFile.getChannel();
+        MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY,
+            0, channel.size());
+        segment.order(BYTE_ORDER);
+
+        int length;
+        while (segment.remaining() >= 4
+            && (length = segment.getInt(segment.position())) != 0) {
+          int start = segment.position();
+          segment.position(start + 4);
+          byte flags = segment.get();
+          segment.getLong();
+          int textLength = segment.getInt();
+          int contentLength = length - HEADER_LENGTH;
+
+          if (contents.length < contentLength) {
+            contents = new byte[contentLength];
+          }
+          if (text.length < textLength) {
+            text = new byte[textLength];
+            chars = new char[textLength];
+          }
+          segment.get(contents, 0, contentLength);
+
+          if ((flags & COMPRESSED) != 0) {
+            LZ4Compressor.decompress(contents, contentLength, text, textLength);
+          } else {
+            System.arraycopy(contents, 0, text, 0, textLength);
+          }
+          out.write(chars, 0, decode(text, textLength, chars));
+          segment.position(start + length);
+        }
+      } finally {
+        randomAccessFile.close();
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Reads the index: the capture time in milliseconds of the first block of
+   * each segment, in pairs with the segment's index.
+   */
+  public static long[] readIndex(File directory) throws IOException {
+    File file = new File(directory, INDEX_NAME);
+    long[] entries = new long[(int) (file.length() / 12) * 2];
+
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      for (int i = 0; i < entries.length; i += 2) {
+        entries[i] = in.readLong();
+        entries[i + 1] = in.readInt();
+      }
+    } catch (EOFException e) {
+      // A partly written last entry.
+    } finally {
+      in.close();
+    }
+    return entries;
+  }
+
+  private static int decode(byte[] bytes, int length, char[] chars) {
+    int count = 0;
+    for (int i = 0; i < length;) {
+      int b = bytes[i++] & 0xFF;
+      if (b < 0x80) {
+        chars[count++] = (char) b;
+      } else if (b < 0xE0) {
+        chars[count++] = (char) ((b & 0x1F) << 6 | bytes[i++] & 0x3F);
+      } else {
+        chars[count++] = (char) ((b & 0x0F) << 12 | (bytes[i++] & 0x3F) << 6
+            | bytes[i++] & 0x3F);
+      }
+    }
+    return count;
+  }
+
+  static File segmentFile(File directory, int index) {
+    return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX,
+        index, SEGMENT_SUFFIX));
+  }
+
+  static int findLastSegmentIndex(File directory) {
+    int lastIndex = 0;
+    String[] names = directory.list();
+    if (names == null) {
+      return lastIndex;
+    }
+
+    for (String name : names) {
+      if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+        try {
+          lastIndex = Math.max(lastIndex, Integer.parseInt(name.substring(
+              SEGMENT_PREFIX.length(),
+              name.length() - SEGMENT_SUFFIX.length())));
+        } catch (NumberFormatException e) {
+          // Not one of ours.
+        }
+      }
+    }
+
+    return lastIndex;
+  }
+
+  /**
+   * A compressor in the style of the LZ4 block format: a sequence of tokens,
+   * each a run of literal bytes followed by a match, a copy of at least 4
+   * earlier bytes at an offset of up to 64KB, found through a hash table of
+   * the 4 bytes at each position. It trades ratio for speed, which suits the
+   * repetitive XML of the event stream.
+   */
+  static final class LZ4Compressor {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 12;
+
+    private final int[] table = new int[1 << HASH_BITS];
+
+    static int maxCompressedLength(int length) {
+      return length + length / 255 + 16;
+    }
+
+    /**
+     * @return the compressed length.
+     */
+    int compress(byte[] src, int length, byte[] dst) {
+      Arrays.fill(table, -1);
+
+      int out = 0;
+      int anchor = 0;
+      int position = 0;
+      int limit = length - MIN_MATCH;
+
+      while (position <= limit) {
+        int sequence = readInt(src, position);
+        int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+        int candidate = table[hash];
+        table[hash] = position;
+
+        if (candidate < 0 || position - candidate > MAX_OFFSET
+            || readInt(src, candidate) != sequence) {
+          position++;
+          continue;
+        }
+
+        int matchLength = MIN_MATCH;
+        while (position + matchLength < length
+            && src[candidate + matchLength] == src[position + matchLength]) {
+          matchLength++;
+        }
+
+        int token = out;
+        out = writeLiterals(src, anchor, position - anchor, dst, out);
+        dst[out++] = (byte) (position - candidate);
+        dst[out++] = (byte) ((position - candidate) >>> 8);
+        int extraLength = matchLength - MIN_MATCH;
+        dst[token] |= (byte) Math.min(extraLength, 15);
+        if (extraLength >= 15) {
+          out = writeExtraLength(extraLength - 15, dst, out);
+        }
+
+        position += matchLength;
+        anchor = position;
+      }
+
+      // The last literals, with no match after them.
+      return writeLiterals(src, anchor, length - anchor, dst, out);
+    }
+
+    static void decompress(byte[] src, int length, byte[] dst, int dstLength) {
+      int in = 0;
+      int out = 0;
+
+      while (in < length) {
+        int token = src[in++] & 0xFF;
+
+        int literalLength = token >>> 4;
+        if (literalLength == 15) {
+          int b;
+          do {
+            b = src[in++] & 0xFF;
+            literalLength += b;
+          } while (b == 255);
+        }
+        System.arraycopy(src, in, dst, out, literalLength);
+        in += literalLength;
+        out += literalLength;
+
+        if (in == length) {
+          break;
+        }
+
+        int offset = (src[in++] & 0xFF) | (src[in++] & 0xFF) << 8;
+        int matchLength = token & 0x0F;
+        if (matchLength == 15) {
+          int b;
+          do {
+            b = src[in++] & 0xFF;
+            matchLength += b;
+          } while (b == 255);
+        }
+        matchLength += MIN_MATCH;
+
+        // Byte by byte, as a match may overlap the bytes it copies.
+        for (int from = out - offset, end = out + matchLength; out < end;) {
+          dst[out++] = dst[from++];
+        }
+      }
+
+      if (out != dstLength) {
+        throw new IllegalStateException("Decompressed " + out
+            + " bytes, expected " + dstLength);
+      }
+    }
+
+    /**
+     * Writes a token with the literal length, leaving the match length to be
+     * filled in, followed by the literals.
+     */
+    private static int writeLiterals(byte[] src, int start, int length,
+        byte[] dst, int out) {
+      dst[out++] = (byte) (Math.min(length, 15) << 4);
+      if (length >= 15) {
+        out = writeExtraLength(length - 15, dst, out);
+      }
+      System.arraycopy(src, start, dst, out, length);
+      return out + length;
+    }
+
+    private static int writeExtraLength(int length, byte[] dst, int out) {
+      while (length >= 255) {
+        dst[out++] = (byte) 255;
+        length -= 255;
+      }
+      dst[out++] = (byte) length;
+      return out;
+    }
+
+    private static int readInt(byte[] bytes, int position) {
+      return (bytes[position] & 0xFF) | (bytes[position + 1] & 0xFF) << 8
+          | (bytes[position + 2] & 0xFF) << 16
+          | (bytes[position + 3] & 0xFF) << 24;
+    }
+  }
+}
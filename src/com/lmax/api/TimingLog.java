@@ -0,0 +1,102 @@
+package com.lmax.api;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Appends a line per {@link TimingRecorder} to a file every interval, for the
+ * callbacks that ran in it: the time, the recorder's name, then the count,
+ * total, mean, percentiles and maximum of the interval's timings, in
+ * microseconds. Totals show where the event loop's time went.
+ * <p>
+ * As with {@link LatencyReporter}, the lines are built in buffers allocated up
+ * front. Interrupting the log writes a last interval and closes the file.
+ */
+public class TimingLog implements Runnable {
+  private final File file;
+  private final long intervalMillis;
+  private final TimingRecorder[] recorders;
+  private final StringBuilder line = new StringBuilder(256);
+  private byte[] bytes = new byte[256];
+
+  public TimingLog(File file, long intervalMillis,
+      TimingRecorder... recorders) {
+    this.file = file;
+    this.intervalMillis = intervalMillis;
+    this.recorders = recorders;
+  }
+
+  public void run() {
+    OutputStream out;
+    try {
+      out = new BufferedOutputStream(new FileOutputStream(file, true));
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to open timing log: " + file, e);
+    }
+
+    try {
+      try {
+        while (!Thread.currentThread().isInterrupted()) {
+          Thread.sleep(intervalMillis);
+
+          write(out);
+        }
+      } catch (InterruptedException e) {
+        write(out);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      try {
+        out.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void write(OutputStream out) throws IOException {
+    long now = System.currentTimeMillis();
+    for (TimingRecorder recorder : recorders) {
+      LatencyHistogram interval = recorder.sampleInterval();
+      if (interval.getCount() == 0) {
+        continue;
+      }
+
+      line.setLength(0);
+      line.append(now).append(' ').append(recorder.getName());
+      line.append(" count=").append(interval.getCount());
+      LatencyHistogram.appendMicros(line.append(" total="),
+          interval.getTotalValue());
+      LatencyHistogram.appendMicros(line.append(" mean="),
+          interval.getMeanValue());
+      LatencyHistogram.appendMicros(line.append(" p50="),
+          interval.getValueAtPercentile(50.0));
+      LatencyHistogram.appendMicros(line.append(" p99="),
+          interval.getValueAtPercentile(99.0));
+      LatencyHistogram.appendMicros(line.append(" p99.9="),
+          interval.getValueAtPercentile(99.9));
+      LatencyHistogram.appendMicros(line.append(" max="),
+          interval.getMaxValue());
+      line.append('\n');
+      write(out, line);
+    }
+    out.flush();
+  }
+
+  private void write(OutputStream out, StringBuilder text) throws IOException {
+    int length = text.length();
+    if (bytes.length < length) {
+      bytes = new byte[length * 2];
+    }
+
+    // Lines are plain ASCII.
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) text.charAt(i);
+    }
+    out.write(bytes, 0, length);
+  }
+}
@@ -0,0 +1,144 @@
+package com.lmax.api;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.lmax.api.profile.TimingListener;
+
+/**
+ * Records timings for one kind of callback into a {@link LatencyHistogram} per
+ * recording thread, so recording never locks or contends, and merges them
+ * when read.
+ * <p>
+ * Each thread's histogram keeps everything it has recorded. A reader samples
+ * an interval by merging them and taking the previous merge away, so nothing
+ * recorded concurrently with the read is lost, only counted in the next
+ * interval.
+ * <p>
+ * As an MBean it reports what was recorded since it was last reset, merging
+ * the threads' histograms on every read, so it can be read alongside
+ * intervals being sampled.
+ */
+public class TimingRecorder implements TimingListener, LatencyHistogramMBean {
+  private final String name;
+  private final long highestTrackableValue;
+  private final CopyOnWriteArrayList<LatencyHistogram> threadHistograms =
+      new CopyOnWriteArrayList<LatencyHistogram>();
+  private final ThreadLocal<LatencyHistogram> threadHistogram =
+      new ThreadLocal<LatencyHistogram>() {
+        @Override
+        protected LatencyHistogram initialValue() {
+          LatencyHistogram histogram = new LatencyHistogram(name,
+              highestTrackableValue);
+          threadHistograms.add(histogram);
+          return histogram;
+        }
+      };
+
+  // Guarded by this.
+  private LatencyHistogram current;
+  private LatencyHistogram previous;
+  private final LatencyHistogram interval;
+  private final LatencyHistogram merged;
+  private final LatencyHistogram resetPoint;
+  private final LatencyHistogram sinceReset;
+
+  public TimingRecorder(String name, long highestTrackableValue) {
+    this.name = name;
+    this.highestTrackableValue = highestTrackableValue;
+    this.current = new LatencyHistogram(name, highestTrackableValue);
+    this.previous = new LatencyHistogram(name, highestTrackableValue);
+    this.interval = new LatencyHistogram(name, highestTrackableValue);
+    this.merged = new LatencyHistogram(name, highestTrackableValue);
+    this.resetPoint = new LatencyHistogram(name, highestTrackableValue);
+    this.sinceReset = new LatencyHistogram(name, highestTrackableValue);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void record(long nanos) {
+    threadHistogram.get().record(nanos);
+  }
+
+  /**
+   * Records a timing from a {@link com.lmax.api.profile.Timer}, whatever the
+   * name it was created with.
+   */
+  @Override
+  public void notify(String name, long nanos) {
+    record(nanos);
+  }
+
+  /**
+   * Merges the threads' histograms into one holding what was recorded since
+   * the last sample, or since the recorder was created.
+   *
+   * @return the interval's histogram, which is reused by the next sample.
+   */
+  public synchronized LatencyHistogram sampleInterval() {
+    mergeInto(current);
+    interval.setToDifference(current, previous);
+
+    LatencyHistogram sampled = current;
+    current = previous;
+    previous = sampled;
+    return interval;
+  }
+
+  /**
+   * Starts the MBean's figures again from what has been recorded so far.
+   */
+  @Override
+  public synchronized void reset() {
+    mergeInto(resetPoint);
+  }
+
+  @Override
+  public synchronized long getCount() {
+    return sampleSinceReset().getCount();
+  }
+
+  @Override
+  public synchronized double getMeanMicros() {
+    return sampleSinceReset().getMeanMicros();
+  }
+
+  @Override
+  public synchronized double getMinMicros() {
+    return sampleSinceReset().getMinMicros();
+  }
+
+  @Override
+  public synchronized double get50thPercentileMicros() {
+    return sampleSinceReset().get50thPercentileMicros();
+  }
+
+  @Override
+  public synchronized double get99thPercentileMicros() {
+    return sampleSinceReset().get99thPercentileMicros();
+  }
+
+  @Override
+  public synchronized double get999thPercentileMicros() {
+    return sampleSinceReset().get999thPercentileMicros();
+  }
+
+  @Override
+  public synchronized double getMaxMicros() {
+    return sampleSinceReset().getMaxMicros();
+  }
+
+  private LatencyHistogram sampleSinceReset() {
+    mergeInto(merged);
+    sinceReset.setToDifference(merged, resetPoint);
+    return sinceReset;
+  }
+
+  private void mergeInto(LatencyHistogram histogram) {
+    histogram.reset();
+    for (LatencyHistogram threadHistogram : threadHistograms) {
+      histogram.add(threadHistogram);
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package com.lmax.api;
+
+/**
+ * A reusable copy of one instrument's top of book, filled in by
+ * {@link TopOfBookStore#read(int, TopOfBook)}. Prices and quantities are raw
+ * {@link FixedPointNumber} longs.
+ */
+public class TopOfBook {
+  long instrumentId;
+  long bidPrice;
+  long bidQuantity;
+  long askPrice;
+  long askQuantity;
+  long timestamp;
+  long sequence;
+
+  public long getInstrumentId() {
+    return instrumentId;
+  }
+
+  public long getBidPrice() {
+    return bidPrice;
+  }
+
+  public long getBidQuantity() {
+    return bidQuantity;
+  }
+
+  public long getAskPrice() {
+    return askPrice;
+  }
+
+  public long getAskQuantity() {
+    return askQuantity;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public long getVersion() {
+    return sequence >>> 1;
+  }
+
+  @Override
+  public String toString() {
+    return "TopOfBook{instrumentId=" + instrumentId + ", bidPrice="
+        + FixedPointNumber.valueOf(bidPrice) + ", bidQuantity="
+        + FixedPointNumber.valueOf(bidQuantity) + ", askPrice="
+        + FixedPointNumber.valueOf(askPrice) + ", askQuantity="
+        + FixedPointNumber.valueOf(askQuantity) + ", timestamp=" + timestamp
+        + "}";
+  }
+}
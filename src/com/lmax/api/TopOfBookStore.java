@@ -0,0 +1,166 @@
+package com.lmax.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Best bid/ask prices and quantities for a fixed set of instruments. Values are
+ * the raw longs of {@link FixedPointNumber}s, held in a preallocated flat array
+ * indexed by a dense slot, so updating a price does not allocate.
+ * <p>
+ * Each slot is versioned by a sequence number (a seqlock): the single writer
+ * makes the sequence odd while it updates the slot and even again when it has
+ * finished. Readers on any thread use {@link #read(int, TopOfBook)} to take a
+ * consistent copy of a slot without locking, retrying if the writer moved on
+ * while they were copying.
+ * <p>
+ * Instruments can be registered while readers and writers are running. The
+ * map from instrument to slot is never changed once published: registering
+ * copies it, adds the new slots and publishes the copy, so a reader finds an
+ * instrument either not at all or with its slot.
+ */
+public class TopOfBookStore {
+  public static final int NO_SLOT = LongIntHashMap.MISSING_VALUE;
+
+  // One cache line of longs per slot, so readers of one instrument do not
+  // contend with updates to its neighbours.
+  private static final int SLOT_SHIFT = 3;
+  private static final int SEQUENCE = 0;
+  private static final int BID_PRICE = 1;
+  private static final int BID_QUANTITY = 2;
+  private static final int ASK_PRICE = 3;
+  private static final int ASK_QUANTITY = 4;
+  private static final int TIMESTAMP = 5;
+
+  private final long[] instrumentIds;
+  private final AtomicLongArray values;
+  // Written under the store's lock, after the instrument ids of new slots.
+  private volatile LongIntHashMap slotByInstrumentId;
+  private volatile int size = 0;
+
+  public TopOfBookStore(int capacity) {
+    slotByInstrumentId = new LongIntHashMap(capacity);
+    instrumentIds = new long[capacity];
+    values = new AtomicLongArray(capacity << SLOT_SHIFT);
+  }
+
+  /**
+   * Allocates a slot for the instrument, returning the existing slot if it has
+   * already been registered.
+   */
+  public int register(long instrumentId) {
+    int slot = slotOf(instrumentId);
+    if (slot != NO_SLOT) {
+      return slot;
+    }
+
+    registerAll(new long[] { instrumentId });
+    return slotOf(instrumentId);
+  }
+
+  /**
+   * Allocates slots for those of the instruments not registered yet,
+   * publishing them all at once; prefer it to {@link #register(long)} for
+   * many instruments, as each registration copies the slot map.
+   */
+  public synchronized void registerAll(long[] newInstrumentIds) {
+    LongIntHashMap slots = new LongIntHashMap(slotByInstrumentId);
+    int next = size;
+
+    for (long instrumentId : newInstrumentIds) {
+      if (slots.get(instrumentId) != NO_SLOT) {
+        continue;
+      }
+      if (next == instrumentIds.length) {
+        throw new IllegalStateException("No free slot for instrument: "
+            + instrumentId + ", capacity: " + instrumentIds.length);
+      }
+
+      instrumentIds[next] = instrumentId;
+      slots.put(instrumentId, next++);
+    }
+
+    size = next;
+    slotByInstrumentId = slots;
+  }
+
+  public int slotOf(long instrumentId) {
+    return slotByInstrumentId.get(instrumentId);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Must only be called from the single writer thread for the slot.
+   */
+  public void update(int slot, long bidPrice, long bidQuantity, long askPrice,
+      long askQuantity, long timestamp) {
+    int base = slot << SLOT_SHIFT;
+    long sequence = values.get(base + SEQUENCE);
+
+    values.set(base + SEQUENCE, sequence + 1);
+    values.lazySet(base + BID_PRICE, bidPrice);
+    values.lazySet(base + BID_QUANTITY, bidQuantity);
+    values.lazySet(base + ASK_PRICE, askPrice);
+    values.lazySet(base + ASK_QUANTITY, askQuantity);
+    values.lazySet(base + TIMESTAMP, timestamp);
+    values.lazySet(base + SEQUENCE, sequence + 2);
+  }
+
+  /**
+   * Copies a consistent view of the slot into the supplied snapshot.
+   */
+  public void read(int slot, TopOfBook topOfBook) {
+    int base = slot << SLOT_SHIFT;
+    long sequence;
+
+    do {
+      sequence = values.get(base + SEQUENCE);
+      if ((sequence & 1) != 0) {
+        continue;
+      }
+
+      topOfBook.bidPrice = values.get(base + BID_PRICE);
+      topOfBook.bidQuantity = values.get(base + BID_QUANTITY);
+      topOfBook.askPrice = values.get(base + ASK_PRICE);
+      topOfBook.askQuantity = values.get(base + ASK_QUANTITY);
+      topOfBook.timestamp = values.get(base + TIMESTAMP);
+    } while ((sequence & 1) != 0 || sequence != values.get(base + SEQUENCE));
+
+    topOfBook.instrumentId = instrumentIds[slot];
+    topOfBook.sequence = sequence;
+  }
+
+  /**
+   * The number of completed updates to the slot, which lets pollers skip
+   * instruments that have not changed since their last read.
+   */
+  public long getVersion(int slot) {
+    return values.get((slot << SLOT_SHIFT) + SEQUENCE) >>> 1;
+  }
+
+  public long getInstrumentId(int slot) {
+    return instrumentIds[slot];
+  }
+
+  public long getBidPrice(int slot) {
+    return values.get((slot << SLOT_SHIFT) + BID_PRICE);
+  }
+
+  public long getBidQuantity(int slot) {
+    return values.get((slot << SLOT_SHIFT) + BID_QUANTITY);
+  }
+
+  public long getAskPrice(int slot) {
+    return values.get((slot << SLOT_SHIFT) + ASK_PRICE);
+  }
+
+  public long getAskQuantity(int slot) {
+    return values.get((slot << SLOT_SHIFT) + ASK_QUANTITY);
+  }
+
+  public long getTimestamp(int slot) {
+    return values.get((slot << SLOT_SHIFT) + TIMESTAMP);
+  }
+}
@@ -1,148 +1,127 @@
 package com.lmax.api;
 
-import java.util.List;
+import java.util.Arrays;
 
 import com.lmax.api.account.LoginCallback;
 import com.lmax.api.account.LoginRequest;
 import com.lmax.api.account.LoginRequest.ProductType;
-import com.lmax.api.order.CancelOrderRequest;
-import com.lmax.api.order.LimitOrderSpecification;
 import com.lmax.api.order.Order;
-import com.lmax.api.order.OrderCallback;
 import com.lmax.api.order.OrderEventListener;
 import com.lmax.api.order.OrderSubscriptionRequest;
 import com.lmax.api.orderbook.OrderBookEvent;
 import com.lmax.api.orderbook.OrderBookEventListener;
 import com.lmax.api.orderbook.OrderBookSubscriptionRequest;
-import com.lmax.api.orderbook.PricePoint;
 import com.lmax.api.reject.InstructionRejectedEvent;
 import com.lmax.api.reject.InstructionRejectedEventListener;
 
+/**
+ * Quotes one lot inside the spread on each side of any number of instruments.
+ * <p>
+ * Everything per instrument lives in arrays indexed by a dense slot, and
+ * everything per quote, one each side of an instrument, in arrays indexed by
+ * <code>slot * 2 + side</code>. Order book events find their slot through an
+ * open addressing map keyed by instrument id, so no event allocates or scans
+ * the instruments. Quotes are handed to a {@link QuoteCoalescer}, which
+ * places and cancels the orders, skipping any quote superseded first.
+ */
 public class TradeInsideTheSpreadBot implements LoginCallback,
     OrderBookEventListener, OrderEventListener,
     InstructionRejectedEventListener {
-  enum OrderState {
-    NONE, PENDING, WORKING
-  }
+  private static final int BUY = QuoteCoalescer.BUY;
+  private static final int SELL = QuoteCoalescer.SELL;
+  private static final int SIDES = 2;
+
+  private static final int RING_SIZE = 1 << 14;
+  private static final int QUOTE_SENDERS = 2;
 
-  private Session session;
-  private final long instrumentId;
-  private final FixedPointNumber tickSize;
+  // Per instrument, by slot.
+  private final long[] instrumentIds;
+  private final long[] tickSizes;
+  private final LocalOrderBook[] orderBooks;
+  private final LongIntHashMap slotsByInstrumentId;
 
-  private final OrderTracker buyOrderTracker = new OrderTracker();
-  private final OrderTracker sellOrderTracker = new OrderTracker();
+  // Per quote, by slot * SIDES + side.
+  private final long[] quotePrices;
+  private final QuoteCoalescer quoteCoalescer;
 
   public TradeInsideTheSpreadBot(long instrumentId, FixedPointNumber tickSize) {
-    this.instrumentId = instrumentId;
-    this.tickSize = tickSize;
+    this(new long[] { instrumentId }, new FixedPointNumber[] { tickSize });
   }
 
-  @Override
-  public void notify(OrderBookEvent orderBookEvent) {
-    System.out.println(orderBookEvent);
-
-    // React to price updates from the exchange.
-    handleBidPrice(orderBookEvent.getBidPrices());
-    handleAskPrice(orderBookEvent.getAskPrices());
-  }
+  /**
+   * @param tickSizes
+   *          the tick size of each instrument, in the same order.
+   */
+  public TradeInsideTheSpreadBot(long[] instrumentIds,
+      FixedPointNumber[] tickSizes) {
+    if (instrumentIds.length != tickSizes.length) {
+      throw new IllegalArgumentException("Got " + instrumentIds.length
+          + " instruments but " + tickSizes.length + " tick sizes");
+    }
 
-  @Override
-  public void notify(InstructionRejectedEvent instructionRejected) {
-    System.err.println(instructionRejected);
+    int instruments = instrumentIds.length;
+    int quotes = instruments * SIDES;
 
-    final long instructionId = instructionRejected.getInstructionId();
-    if (buyOrderTracker.getCancelInstructionId() == instructionId) {
-      buyOrderTracker.setOrderState(OrderState.NONE);
-    } else if (sellOrderTracker.getCancelInstructionId() == instructionId) {
-      sellOrderTracker.setOrderState(OrderState.NONE);
+    this.instrumentIds = instrumentIds.clone();
+    this.tickSizes = new long[instruments];
+    this.orderBooks = new LocalOrderBook[instruments];
+    this.slotsByInstrumentId = new LongIntHashMap(instruments);
+    for (int slot = 0; slot < instruments; slot++) {
+      this.tickSizes[slot] = tickSizes[slot].longValue();
+      this.orderBooks[slot] = new LocalOrderBook(instrumentIds[slot],
+          this.tickSizes[slot]);
+      slotsByInstrumentId.put(instrumentIds[slot], slot);
     }
+
+    this.quotePrices = new long[quotes];
+    Arrays.fill(quotePrices, LocalOrderBook.NO_VALUE);
+    this.quoteCoalescer = new QuoteCoalescer(instrumentIds,
+        FixedPointNumber.ONE, QUOTE_SENDERS, WaitStrategy.YIELD,
+        System.currentTimeMillis() * 1000);
   }
 
   @Override
-  public void notify(Order order) {
-    OrderState stateForOrder = getStateForOrder(order);
-    System.out.printf("State for order: %d, state: %s%n",
-        order.getInstructionId(), stateForOrder);
-
-    if (order.getInstructionId() == buyOrderTracker.getInstructionId()) {
-      buyOrderTracker.setOrderState(stateForOrder);
-    } else if (order.getInstructionId() == sellOrderTracker.getInstructionId()) {
-      sellOrderTracker.setOrderState(stateForOrder);
-    }
+  public void notify(OrderBookEvent orderBookEvent) {
+    // React to price updates from the exchange.
+    handlePrices(orderBookEvent);
   }
 
-  private OrderState getStateForOrder(Order order) {
-    if (order.getCancelledQuantity() == FixedPointNumber.ZERO
-        && order.getFilledQuantity() == FixedPointNumber.ZERO) {
-      return OrderState.WORKING;
+  void handlePrices(OrderBookEvent orderBookEvent) {
+    int slot = slotsByInstrumentId.get(orderBookEvent.getInstrumentId());
+    if (slot == LongIntHashMap.MISSING_VALUE) {
+      return;
     }
 
-    return OrderState.NONE;
+    LocalOrderBook orderBook = orderBooks[slot];
+    if (orderBook.update(orderBookEvent)) {
+      handlePriceChange(slot, BUY, orderBook.getBestBidPrice());
+      handlePriceChange(slot, SELL, orderBook.getBestAskPrice());
+    }
   }
 
-  private void handleAskPrice(List<PricePoint> askPrices) {
-    handlePriceChange(askPrices, sellOrderTracker,
-        FixedPointNumber.ONE.negate(), tickSize.negate());
-  }
+  @Override
+  public void notify(InstructionRejectedEvent instructionRejected) {
+    System.err.println(instructionRejected);
 
-  private void handleBidPrice(List<PricePoint> bidPrices) {
-    handlePriceChange(bidPrices, buyOrderTracker, FixedPointNumber.ONE,
-        tickSize);
+    quoteCoalescer.notify(instructionRejected);
   }
 
-  private void handlePriceChange(List<PricePoint> prices,
-      final OrderTracker orderTracker, final FixedPointNumber quantity,
-      final FixedPointNumber priceDelta) {
-    final FixedPointNumber currentPrice = orderTracker.getPrice();
-    PricePoint bestPrice = prices.size() != 0 ? prices.get(0) : null;
-
-    // Make sure we have a best bid price, and it's not the same as the order we
-    // just placed
-    // and place similar to the ask price change.
-    if (bestPrice != null
-        && (currentPrice == null || currentPrice == bestPrice.getPrice())) {
-      switch (orderTracker.getOrderState()) {
-      // Place an order inside the spread if there isn't one currently in the
-      // market
-        case NONE:
-          orderTracker.setPrice(FixedPointNumber.valueOf(bestPrice.getPrice()
-              .longValue() + priceDelta.longValue()));
-
-          LimitOrderSpecification order = new LimitOrderSpecification(
-              instrumentId, orderTracker.getPrice(), quantity,
-              TimeInForce.GOOD_FOR_DAY);
-
-          session.placeLimitOrder(order, new DefaultOrderCallback() {
-            public void onSuccess(long instructionId) {
-              System.out.println("Placed Order: " + instructionId);
-              orderTracker.setOrderState(OrderState.PENDING);
-              orderTracker.setInstructionId(instructionId);
-            }
-          });
-          break;
-
-        // Cancel a working order on a price change.
-        case WORKING:
-          cancelOrder(orderTracker);
-
-        default:
-          // No-op
-      }
-    }
+  @Override
+  public void notify(Order order) {
+    quoteCoalescer.notify(order);
   }
 
-  private void cancelOrder(final OrderTracker orderTracker) {
-    final long instructionId = orderTracker.getInstructionId();
-
-    if (instructionId != -1) {
-      CancelOrderRequest cancelOrderRequest = new CancelOrderRequest(
-          instrumentId, instructionId);
-      session.cancelOrder(cancelOrderRequest, new DefaultOrderCallback() {
-        public void onSuccess(long cancelInstructionId) {
-          System.out.println("Cancled Order: " + cancelInstructionId);
-          orderTracker.setCancelInstructionId(cancelInstructionId);
-        }
-      });
+  private void handlePriceChange(int slot, int side, long bestPrice) {
+    int quote = slot * SIDES + side;
+
+    // Make sure we have a best price, and it's not the same as the price we
+    // last quoted, then quote inside the spread. The coalescer cancels any
+    // order at the old price first.
+    if (bestPrice != LocalOrderBook.NO_VALUE
+        && quotePrices[quote] != bestPrice) {
+      quotePrices[quote] = side == BUY ? bestPrice + tickSizes[slot]
+          : bestPrice - tickSizes[slot];
+      quoteCoalescer.quote(slot, side, quotePrices[quote]);
     }
   }
 
@@ -151,24 +130,39 @@ public class TradeInsideTheSpreadBot implements LoginCallback,
     System.out.println("My accountId is: "
         + session.getAccountDetails().getAccountId());
 
-    // Hold onto the session for later use.
-    this.session = session;
+    // Hand events to a strategy thread through a ring buffer, and quotes from
+    // it to the senders, so placing and cancelling orders never holds up the
+    // session's event loop or the strategy.
+    RingBufferDispatcher dispatcher = new RingBufferDispatcher(RING_SIZE,
+        WaitStrategy.YIELD);
+    dispatcher.addConsumer("spread-bot", this);
+    dispatcher.start();
+    quoteCoalescer.start(session);
 
     // Add a listener for order book events.
-    session.registerOrderBookEventListener(this);
-    session.registerOrderEventListener(this);
-    session.registerInstructionRejectedEventListener(this);
+    session.registerOrderBookEventListener(dispatcher);
+    session.registerOrderEventListener(dispatcher);
+    session.registerInstructionRejectedEventListener(dispatcher);
 
     // Subscribe to my order events.
     session.subscribe(new OrderSubscriptionRequest(),
         new DefaultSubscriptionCallback());
-    // Subscribe to the order book that I'm interested in.
-    session.subscribe(new OrderBookSubscriptionRequest(instrumentId),
-        new DefaultSubscriptionCallback());
+    // Subscribe to the order books that I'm interested in.
+    for (long instrumentId : instrumentIds) {
+      session.subscribe(new OrderBookSubscriptionRequest(instrumentId),
+          new DefaultSubscriptionCallback());
+    }
 
     // Start the event processing loop, this method will block until the session
     // is stopped.
     session.start();
+
+    dispatcher.halt();
+    quoteCoalescer.halt();
+    System.out.printf("Orders placed: %d, cancelled: %d, round trips saved: "
+        + "%d%n", quoteCoalescer.getPlacedCount(),
+        quoteCoalescer.getCancelledCount(),
+        quoteCoalescer.getRoundTripsSaved());
   }
 
   @Override
@@ -177,9 +171,10 @@ public class TradeInsideTheSpreadBot implements LoginCallback,
   }
 
   public static void main(String[] args) {
-    if (args.length != 4) {
+    if (args.length < 4) {
       System.out.println("Usage " + TradeInsideTheSpreadBot.class.getName()
-          + " <url> <username> <password> [CFD_DEMO|CFD_LIVE]");
+          + " <url> <username> <password> [CFD_DEMO|CFD_LIVE]"
+          + " [<instrumentId>:<tickSize>...]");
       System.exit(-1);
     }
 
@@ -188,61 +183,27 @@ public class TradeInsideTheSpreadBot implements LoginCallback,
     String password = args[2];
     ProductType productType = ProductType.valueOf(args[3].toUpperCase());
 
+    long[] instrumentIds = { 4012 };
+    FixedPointNumber[] tickSizes = { FixedPointNumber.valueOf("0.00001") };
+    if (args.length > 4) {
+      instrumentIds = new long[args.length - 4];
+      tickSizes = new FixedPointNumber[args.length - 4];
+      for (int i = 4; i < args.length; i++) {
+        String[] instrument = args[i].split(":");
+        instrumentIds[i - 4] = Long.parseLong(instrument[0]);
+        tickSizes[i - 4] = FixedPointNumber.valueOf(instrument[1]);
+      }
+    }
+
     LmaxApi lmaxApi = new LmaxApi(url);
-    TradeInsideTheSpreadBot loginClient = new TradeInsideTheSpreadBot(4012,
-        FixedPointNumber.valueOf("0.00001"));
+    TradeInsideTheSpreadBot loginClient = new TradeInsideTheSpreadBot(
+        instrumentIds, tickSizes);
 
     // Login to LMAX!
     lmaxApi.login(new LoginRequest(username, password, productType),
         loginClient);
   }
 
-  private static class OrderTracker {
-    private long instructionId = -1;
-    private long cancelInstructionId = -1;
-    private OrderState orderState = OrderState.NONE;
-    private FixedPointNumber price;
-
-    public long getInstructionId() {
-      return instructionId;
-    }
-
-    public void setInstructionId(long instructionId) {
-      this.instructionId = instructionId;
-    }
-
-    public long getCancelInstructionId() {
-      return cancelInstructionId;
-    }
-
-    public void setCancelInstructionId(long cancelInstructionId) {
-      this.cancelInstructionId = cancelInstructionId;
-    }
-
-    public OrderState getOrderState() {
-      return orderState;
-    }
-
-    public void setOrderState(OrderState orderState) {
-      this.orderState = orderState;
-    }
-
-    public FixedPointNumber getPrice() {
-      return price;
-    }
-
-    public void setPrice(FixedPointNumber price) {
-      this.price = price;
-    }
-  }
-
-  private abstract static class DefaultOrderCallback implements OrderCallback {
-    @Override
-    public void onFailure(FailureResponse failureResponse) {
-      System.err.println("Failed to place order: " + failureResponse);
-    }
-  }
-
   private final class DefaultSubscriptionCallback implements Callback {
     public void onSuccess() {
     }
@@ -0,0 +1,52 @@
+package com.lmax.api;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread idles while it waits for a sequence to advance. Trades latency
+ * against the CPU burnt while waiting.
+ */
+public enum WaitStrategy {
+  /**
+   * Lowest latency, but keeps a core fully busy.
+   */
+  BUSY_SPIN {
+    @Override
+    public void idle(int attempt) {
+    }
+  },
+
+  /**
+   * Spins briefly, then yields the core to other runnable threads.
+   */
+  YIELD {
+    @Override
+    public void idle(int attempt) {
+      if (attempt > SPIN_TRIES) {
+        Thread.yield();
+      }
+    }
+  },
+
+  /**
+   * Spins briefly, then parks, leaving the core idle between events.
+   */
+  PARK {
+    @Override
+    public void idle(int attempt) {
+      if (attempt > SPIN_TRIES) {
+        LockSupport.parkNanos(PARK_NANOS);
+      }
+    }
+  };
+
+  private static final int SPIN_TRIES = 100;
+  private static final long PARK_NANOS = 50 * 1000;
+
+  /**
+   * @param attempt
+   *          number of times the caller has already idled waiting for the
+   *          current sequence, reset to 0 once it advances.
+   */
+  public abstract void idle(int attempt);
+}